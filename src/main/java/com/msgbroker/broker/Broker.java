@@ -1,6 +1,7 @@
 package com.msgbroker.broker;
 
 import com.msgbroker.ComponentFactory;
+import com.msgbroker.broker.enums.Transport;
 import com.msgbroker.config.BrokerConfig;
 
 import java.io.IOException;
@@ -14,7 +15,7 @@ public class Broker implements IBroker {
     private final ThreadFactory threadFactory = Thread.ofVirtual().factory();
     private final BrokerConfig config;
     private final BrokerState brokerState;
-    private BrokerConnectionListener listener;
+    private IConnectionListener listener;
     private Thread listenerThread;
     private DNSRegistrationClient dnsClient;
     private DatagramSocket monitoringSocket;
@@ -26,7 +27,7 @@ public class Broker implements IBroker {
 
     public Broker(BrokerConfig config) {
         this.config = config;
-        this.brokerState = new BrokerState();
+        this.brokerState = BrokerState.open(config.tuning());
     }
 
     @Override
@@ -55,7 +56,11 @@ public class Broker implements IBroker {
         }
         
         // Start the broker listener (SMQP)
-        listener = new BrokerConnectionListener(config.port(), brokerState, this::sendMonitoringData);
+        listener = switch (Transport.fromProtocolName(config.tuning().transport())) {
+            case THREADS -> new BrokerConnectionListener(config.port(), brokerState, this::sendMonitoringData);
+            case NIO -> new NioConnectionListener(config.port(), brokerState, this::sendMonitoringData,
+                    config.tuning().nioLoops());
+        };
         listenerThread = threadFactory.newThread(listener);
         listenerThread.start();
 
@@ -103,6 +108,9 @@ public class Broker implements IBroker {
         if (monitoringSocket != null && !monitoringSocket.isClosed()) {
             monitoringSocket.close();
         }
+
+        // Sync durable queues
+        brokerState.close();
     }
     
     /**
@@ -1,25 +1,31 @@
 package com.msgbroker.broker;
 
-import java.io.BufferedReader;
+import com.msgbroker.connection.SmqpFrame;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
 import java.util.function.Consumer;
 
 /**
- * Handles SMQP protocol for a single client connection
+ * Handles SMQP protocol for a single client connection on its own thread with blocking socket I/O
  */
 public class BrokerConnectionHandler implements Runnable {
 
+    // Large enough to hold a default delivery batch without flushing in between
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+    private static final int INPUT_BUFFER_SIZE = 8 * 1024;
+
     private final Socket socket;
     private final BrokerState brokerState;
     private final Consumer<String> monitoringCallback;
-    
-    // Session state for this client
-    private Exchange currentExchange;
-    private MessageQueue currentQueue;
-    private volatile boolean stopSubscription = false;
 
     public BrokerConnectionHandler(Socket socket, BrokerState brokerState, Consumer<String> monitoringCallback) {
         this.socket = socket;
@@ -29,169 +35,252 @@ public class BrokerConnectionHandler implements Runnable {
 
     @Override
     public void run() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-
-            // Send SMQP greeting
-            out.println("ok SMQP");
-
-            String msg;
-            loop:
-            while ((msg = in.readLine()) != null) {
-                String[] parts = msg.trim().split("\\s+", 3);
+        SmqpSession session = null;
+        try (InputStream in = socket.getInputStream();
+             OutputStream out = new BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE)) {
 
-                if (parts.length == 0 || parts[0].isEmpty()) {
-                    continue;
-                }
+            session = new SmqpSession(brokerState, monitoringCallback, new StreamOutput(out));
+            session.start();
 
-                switch (parts[0]) {
-                    case "exchange" -> {
-                        if (parts.length != 3) {
-                            out.println("error usage: exchange <type> <name>");
-                            break;
-                        }
-                        handleExchange(parts[1], parts[2], out);
-                    }
-                    case "queue" -> {
-                        if (parts.length != 2) {
-                            out.println("error usage: queue <name>");
-                            break;
-                        }
-                        handleQueue(parts[1], out);
-                    }
-                    case "bind" -> {
-                        if (parts.length != 2) {
-                            out.println("error usage: bind <binding-key>");
-                            break;
-                        }
-                        handleBind(parts[1], out);
-                    }
-                    case "publish" -> {
-                        if (parts.length < 3) {
-                            out.println("error usage: publish <routing-key> <message>");
-                            break;
-                        }
-                        handlePublish(parts[1], parts[2], out);
+            CommandReader reader = new CommandReader(in, session::flushConfirms);
+            while (awaitMemory(session)) {
+                if (session.isBinary()) {
+                    ByteBuffer frame = reader.readFrame();
+                    if (frame == null || !session.handleFrame(frame)) {
+                        break;
                     }
-                    case "subscribe" -> {
-                        handleSubscribe(in, out);
-                        // After subscribe ends, continue processing commands
+                } else {
+                    int length = reader.readLine();
+                    if (length < 0 || !session.handle(reader.buffer, reader.lineStart, length)) {
+                        break;
                     }
-                    case "stop" -> {
-                        stopSubscription = true;
-                    }
-                    case "exit" -> {
-                        out.println("ok bye");
-                        break loop;
-                    }
-                    default -> out.println("error unknown command");
                 }
             }
         } catch (IOException e) {
             // Connection closed
         } finally {
+            if (session != null) {
+                session.close();
+            }
             closeSocket();
         }
     }
 
-    private void handleExchange(String type, String name, PrintWriter out) {
-        // Validate exchange type
-        if (!type.equals("direct") && !type.equals("fanout") && !type.equals("topic") && !type.equals("default")) {
-            out.println("error invalid exchange type");
-            return;
-        }
-
-        Exchange exchange = brokerState.getOrCreateExchange(name, type);
-        if (exchange == null) {
-            out.println("error exchange already exists with different type");
-            return;
+    /**
+     * While the memory alarm is raised, a connection that publishes is not read from, so its client is stopped by
+     * full socket buffers until the alarm clears.
+     *
+     * @return false if the thread was interrupted while waiting
+     */
+    private boolean awaitMemory(SmqpSession session) {
+        if (session.isThrottled()) {
+            session.flushConfirms();
+            try {
+                brokerState.getMemoryMonitor().awaitClear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
         }
-
-        currentExchange = exchange;
-        out.println("ok");
+        return true;
     }
 
-    private void handleQueue(String name, PrintWriter out) {
-        currentQueue = brokerState.getOrCreateQueue(name);
-        out.println("ok");
-    }
+    /**
+     * Reads text lines and, once the client switched to binary framing, frames from the same buffer, so nothing read
+     * ahead is lost at the switch
+     */
+    private static final class CommandReader {
+        private final InputStream in;
+        // Called before the reader blocks for more input
+        private final Runnable idle;
+        private byte[] buffer = new byte[INPUT_BUFFER_SIZE];
+        private int lineStart;
+        private int position;
+        private int limit;
+        private boolean skipLineFeed;
 
-    private void handleBind(String bindingKey, PrintWriter out) {
-        if (currentExchange == null) {
-            out.println("error no exchange declared");
-            return;
+        CommandReader(InputStream in, Runnable idle) {
+            this.in = in;
+            this.idle = idle;
         }
-        if (currentQueue == null) {
-            out.println("error no queue declared");
-            return;
+
+        /**
+         * Read a line ending with \n, \r or \r\n, as with BufferedReader, which is left in the buffer from
+         * {@code lineStart} on until the next read
+         *
+         * @return the length of the line, or -1 at the end of the stream
+         * @throws IOException if the line is longer than {@link SmqpSession#MAX_LINE_LENGTH}
+         */
+        int readLine() throws IOException {
+            int scanned = 0;
+            while (true) {
+                if (skipLineFeed && (position < limit || fill())) {
+                    skipLineFeed = false;
+                    if (buffer[position] == '\n') {
+                        position++;
+                    }
+                }
+                for (int i = position + scanned; i < limit; i++) {
+                    byte b = buffer[i];
+                    if (b == '\n' || b == '\r') {
+                        lineStart = position;
+                        skipLineFeed = b == '\r';
+                        position = i + 1;
+                        return i - lineStart;
+                    }
+                }
+                scanned = limit - position;
+                if (scanned > SmqpSession.MAX_LINE_LENGTH) {
+                    throw new IOException("line too long");
+                }
+                if (!fill()) {
+                    if (position == limit) {
+                        return -1;
+                    }
+                    lineStart = position;
+                    position = limit;
+                    return limit - lineStart;
+                }
+            }
         }
 
-        currentExchange.bind(bindingKey, currentQueue);
-        out.println("ok");
-    }
+        /**
+         * Read a frame
+         *
+         * @return the frame from its opcode on, valid until the next read, or null at the end of the stream
+         * @throws IOException if the stream ends within a frame or the frame is too large
+         */
+        ByteBuffer readFrame() throws IOException {
+            if (skipLineFeed) {
+                // The line before the switch ended with \r, a \n following it still belongs to it
+                skipLineFeed = false;
+                if ((position < limit || fill()) && buffer[position] == '\n') {
+                    position++;
+                }
+            }
+            if (!require(Integer.BYTES)) {
+                if (position == limit) {
+                    return null;
+                }
+                throw new EOFException();
+            }
+            int length = ByteBuffer.wrap(buffer, position, Integer.BYTES).getInt();
+            if (length < 1 || length > SmqpFrame.MAX_LENGTH) {
+                throw new IOException("invalid frame length " + length);
+            }
+            if (!require(Integer.BYTES + length)) {
+                throw new EOFException();
+            }
+            ByteBuffer frame = ByteBuffer.wrap(buffer, position + Integer.BYTES, length);
+            position += Integer.BYTES + length;
+            return frame;
+        }
 
-    private void handlePublish(String routingKey, String message, PrintWriter out) {
-        if (currentExchange == null) {
-            out.println("error no exchange declared");
-            return;
+        /**
+         * Make sure the given number of bytes is buffered from the current position on
+         *
+         * @return false if the stream ended before
+         */
+        private boolean require(int bytes) throws IOException {
+            while (limit - position < bytes) {
+                if (!fill()) {
+                    return false;
+                }
+            }
+            return true;
         }
 
-        currentExchange.routeMessage(routingKey, message);
-        
-        // Send monitoring data
-        if (monitoringCallback != null) {
-            monitoringCallback.accept(routingKey);
+        /**
+         * Read more bytes behind the buffered ones, moving them to the front or growing the buffer first if needed
+         *
+         * @return false at the end of the stream
+         */
+        private boolean fill() throws IOException {
+            if (limit == buffer.length) {
+                int buffered = limit - position;
+                if (position == 0) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                } else {
+                    System.arraycopy(buffer, position, buffer, 0, buffered);
+                    position = 0;
+                    limit = buffered;
+                }
+            }
+            if (in.available() == 0) {
+                idle.run();
+            }
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                return false;
+            }
+            limit += read;
+            return true;
         }
-        
-        out.println("ok");
     }
 
-    private void handleSubscribe(BufferedReader in, PrintWriter out) {
-        if (currentQueue == null) {
-            out.println("error no queue declared");
-            return;
-        }
+    /**
+     * Replies and deliveries are written to the buffered socket stream, serialized by synchronizing on it. Payloads
+     * are written as the bytes that were encoded at publish time.
+     */
+    private static final class StreamOutput implements SmqpSession.Output {
+        private static final byte[] OK_LINE = "ok\n".getBytes(StandardCharsets.US_ASCII);
 
-        // Send acknowledgment that subscription started
-        out.println("ok");
-        out.flush();
+        private final OutputStream out;
+        private final byte[] header = new byte[SmqpFrame.DELIVER_HEADER_SIZE];
+        private volatile boolean binary;
 
-        stopSubscription = false;
+        StreamOutput(OutputStream out) {
+            this.out = out;
+        }
 
-        // Start a message delivery thread
-        Thread deliveryThread = Thread.ofVirtual().start(() -> {
-            try {
-                while (!stopSubscription && !socket.isClosed()) {
-                    String message = currentQueue.poll(50, java.util.concurrent.TimeUnit.MILLISECONDS);
-                    if (message != null && !stopSubscription) {
-                        synchronized (out) {
-                            out.println(message);
-                            out.flush();
-                        }
+        @Override
+        public void reply(String line) {
+            synchronized (out) {
+                try {
+                    if (binary) {
+                        out.write(SmqpFrame.encode(SmqpFrame.REPLY, line));
+                    } else if (line.equals("ok")) {
+                        out.write(OK_LINE);
+                    } else {
+                        out.write(line.getBytes(StandardCharsets.UTF_8));
+                        out.write('\n');
                     }
+                    out.flush();
+                } catch (IOException e) {
+                    // Connection closed, noticed by the next read
                 }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
             }
-        });
+        }
 
-        // Main thread listens for stop command
-        try {
-            String cmd;
-            while ((cmd = in.readLine()) != null) {
-                if (cmd.trim().equals("stop")) {
-                    stopSubscription = true;
-                    break;
+        @Override
+        public void switchToBinary() {
+            binary = true;
+        }
+
+        /**
+         * Write everything the consumer drained in one go before flushing. With manual acks, every message is
+         * preceded by its delivery tag.
+         */
+        @Override
+        public void deliver(List<Message> batch, long firstTag) throws IOException {
+            synchronized (out) {
+                long tag = firstTag;
+                for (Message message : batch) {
+                    if (binary) {
+                        SmqpFrame.putDeliverHeader(ByteBuffer.wrap(header), message.getPayloadLength(),
+                                tag > 0 ? tag++ : 0);
+                        out.write(header);
+                        message.writeTo(out);
+                        continue;
+                    }
+                    if (tag > 0) {
+                        out.write(Long.toString(tag++).getBytes(StandardCharsets.US_ASCII));
+                        out.write(' ');
+                    }
+                    message.writeTo(out);
+                    out.write('\n');
                 }
-                // Ignore other commands during subscription
-            }
-        } catch (IOException e) {
-            stopSubscription = true;
-        } finally {
-            try {
-                deliveryThread.join(1000); // Wait for delivery thread to finish
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+                out.flush();
             }
         }
     }
@@ -6,7 +6,10 @@ import java.net.Socket;
 import java.util.concurrent.ThreadFactory;
 import java.util.function.Consumer;
 
-public class BrokerConnectionListener implements Runnable {
+/**
+ * Accepts SMQP connections and serves each of them with a {@link BrokerConnectionHandler} on its own virtual thread
+ */
+public class BrokerConnectionListener implements IConnectionListener {
 
     private final ThreadFactory threadFactory = Thread.ofVirtual().factory();
     private final int port;
@@ -41,6 +44,7 @@ public class BrokerConnectionListener implements Runnable {
         }
     }
 
+    @Override
     public void shutdown() {
         running = false;
         try {
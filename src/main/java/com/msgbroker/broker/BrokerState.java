@@ -1,11 +1,29 @@
 package com.msgbroker.broker;
 
+import com.msgbroker.broker.enums.FsyncMode;
+import com.msgbroker.broker.enums.QueueEngine;
+import com.msgbroker.broker.store.DequeQueueStore;
+import com.msgbroker.broker.store.DurableStorage;
+import com.msgbroker.broker.store.OffHeapQueueStore;
+import com.msgbroker.broker.store.PagingMetrics;
+import com.msgbroker.broker.store.PagingQueueStore;
+import com.msgbroker.broker.store.PriorityQueueStore;
+import com.msgbroker.broker.store.QueueStore;
+import com.msgbroker.broker.store.RingQueueStore;
+import com.msgbroker.broker.store.SlabAllocator;
+import com.msgbroker.config.BrokerTuningConfig;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Shared state for the broker that is accessed by multiple client handlers
  */
-public class BrokerState {
+public final class BrokerState {
 
     // Store exchanges by name
     private final ConcurrentHashMap<String, Exchange> exchanges;
@@ -13,12 +31,84 @@ public class BrokerState {
     // Store queues by name
     private final ConcurrentHashMap<String, MessageQueue> queues;
 
-    public BrokerState() {
+    private final BrokerTuningConfig tuning;
+    private final QueueEngine defaultQueueEngine;
+    private final DurableStorage storage;
+    private final PagingMetrics pagingMetrics = new PagingMetrics();
+    private final SlabAllocator slabAllocator;
+    private final TimingWheel timer;
+    private final DelayedDelivery delayedDelivery;
+    private final MemoryMonitor memoryMonitor;
+
+    /**
+     * Open the broker state with the default tuning, keeping durable queues and pages in the given directory
+     *
+     * @see #open(BrokerTuningConfig)
+     */
+    public static BrokerState open(Path dataDirectory) {
+        return open(BrokerTuningConfig.defaults(dataDirectory.toString()));
+    }
+
+    /**
+     * Create the broker state, declare the durable queues of the previous run again with the messages they still
+     * hold, and start the memory monitor. Both run only once the state is fully constructed, as they call back
+     * into it.
+     *
+     * @throws UncheckedIOException if the durable queues cannot be recovered
+     */
+    public static BrokerState open(BrokerTuningConfig tuning) {
+        BrokerState state = new BrokerState(tuning);
+        state.recoverDurableQueues();
+        state.memoryMonitor.start(state.timer);
+        return state;
+    }
+
+    private BrokerState(BrokerTuningConfig tuning) {
+        this.tuning = tuning;
+        this.defaultQueueEngine = QueueEngine.fromProtocolName(tuning.queueEngine());
         this.exchanges = new ConcurrentHashMap<>();
         this.queues = new ConcurrentHashMap<>();
-        
+        this.timer = new TimingWheel(tuning.timerTickMs());
+        this.slabAllocator = new SlabAllocator(tuning.offHeapSlabSize(), tuning.offHeapPooledSlabs());
+        this.delayedDelivery = new DelayedDelivery(timer);
+        this.memoryMonitor = new MemoryMonitor(tuning.effectiveMemoryHighWatermark(),
+                tuning.effectiveMemoryLowWatermark(), MemoryMonitor.DEFAULT_CHECK_INTERVAL_MS, this::getMessageBytes);
+        this.storage = new DurableStorage(Path.of(tuning.dataDirectory()), tuning.durableSegmentSize(),
+                FsyncMode.fromProtocolName(tuning.durableFsync()), tuning.durableFsyncIntervalMs());
+
         // Create the default exchange at startup with type "default"
-        exchanges.put("default", new Exchange("default", "default"));
+        exchanges.put("default", newExchange("default", "default"));
+    }
+
+    private void recoverDurableQueues() {
+        try {
+            for (Map.Entry<String, String> queue : storage.findQueues().entrySet()) {
+                getOrCreateQueue(queue.getKey(), QueueArguments.parse(queue.getValue()));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot recover durable queues", e);
+        }
+    }
+
+    public BrokerTuningConfig getTuning() {
+        return tuning;
+    }
+
+    public MemoryMonitor getMemoryMonitor() {
+        return memoryMonitor;
+    }
+
+    /**
+     * Payload bytes that all queues and the unacknowledged deliveries of their consumers keep on the heap. Messages
+     * paged to disk or stored off-heap are not counted. A message routed to several queues is counted once per
+     * queue.
+     */
+    public long getMessageBytes() {
+        long bytes = 0;
+        for (MessageQueue queue : queues.values()) {
+            bytes += queue.getHeapBytes() + queue.getUnackedBytes();
+        }
+        return bytes;
     }
 
     public Exchange getExchange(String name) {
@@ -26,7 +116,7 @@ public class BrokerState {
     }
 
     public Exchange createExchange(String name, String type) {
-        return exchanges.computeIfAbsent(name, k -> new Exchange(name, type));
+        return exchanges.computeIfAbsent(name, k -> newExchange(name, type));
     }
 
     public Exchange getOrCreateExchange(String name, String type) {
@@ -37,7 +127,11 @@ public class BrokerState {
             }
             return existing;
         }
-        return exchanges.computeIfAbsent(name, k -> new Exchange(name, type));
+        return exchanges.computeIfAbsent(name, k -> newExchange(name, type));
+    }
+
+    private Exchange newExchange(String name, String type) {
+        return new Exchange(name, type, tuning.routeCacheSize(), tuning.fanoutParallelThreshold());
     }
 
     public MessageQueue getQueue(String name) {
@@ -46,7 +140,7 @@ public class BrokerState {
 
     public MessageQueue createQueue(String name) {
         return queues.computeIfAbsent(name, k -> {
-            MessageQueue queue = new MessageQueue(name);
+            MessageQueue queue = newQueue(name, QueueArguments.DEFAULT);
             // Auto-bind to default exchange
             Exchange defaultExchange = exchanges.get("default");
             if (defaultExchange != null) {
@@ -57,8 +151,25 @@ public class BrokerState {
     }
 
     public MessageQueue getOrCreateQueue(String name) {
+        return getOrCreateQueue(name, null);
+    }
+
+    /**
+     * Get a queue or declare it with the given arguments
+     *
+     * @param arguments the declared arguments, or null to accept the arguments of an existing queue
+     * @return the queue, or null if it already exists with different arguments
+     */
+    public MessageQueue getOrCreateQueue(String name, QueueArguments arguments) {
+        MessageQueue existing = queues.get(name);
+        if (existing != null) {
+            if (arguments != null && !existing.getArguments().equals(arguments)) {
+                return null; // Arguments mismatch
+            }
+            return existing;
+        }
         return queues.computeIfAbsent(name, k -> {
-            MessageQueue queue = new MessageQueue(name);
+            MessageQueue queue = newQueue(name, arguments != null ? arguments : QueueArguments.DEFAULT);
             // Auto-bind to default exchange
             Exchange defaultExchange = exchanges.get("default");
             if (defaultExchange != null) {
@@ -67,4 +178,85 @@ public class BrokerState {
             return queue;
         });
     }
+
+    /**
+     * @throws UncheckedIOException if the log of a durable queue cannot be opened
+     */
+    private MessageQueue newQueue(String name, QueueArguments arguments) {
+        if (arguments.durable()) {
+            try {
+                return new MessageQueue(name, arguments, storage.open(name, arguments.format()), timer);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        if (arguments.maxPriority() > 0) {
+            return new MessageQueue(name, arguments, new PriorityQueueStore(arguments.maxPriority()), timer);
+        }
+        QueueEngine engine = arguments.engine() != null ? arguments.engine() : defaultQueueEngine;
+        QueueStore store = switch (engine) {
+            case DEQUE -> tuning.pagingEnabled()
+                    ? new PagingQueueStore(name, storage, tuning.pagingQueueWatermark(), tuning.pagingGlobalWatermark(), pagingMetrics)
+                    : new DequeQueueStore();
+            // A bounded queue never needs more slots than its max-length
+            case RING -> new RingQueueStore(arguments.maxLength() > 0 ? arguments.maxLength() : tuning.ringCapacity());
+            case OFF_HEAP -> new OffHeapQueueStore(slabAllocator);
+        };
+        return new MessageQueue(name, arguments, store, timer);
+    }
+
+    /**
+     * Broker-wide metrics by name, in a stable order, as reported by the {@code stats} command
+     */
+    public Map<String, Long> getStats() {
+        long hits = 0;
+        long misses = 0;
+        for (Exchange exchange : exchanges.values()) {
+            hits += exchange.getRouteCacheHits();
+            misses += exchange.getRouteCacheMisses();
+        }
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("route-cache-hits", hits);
+        stats.put("route-cache-misses", misses);
+        stats.put("delayed-pending", (long) delayedDelivery.getPendingCount());
+        stats.put("delayed-failed", delayedDelivery.getFailedCount());
+        stats.put("paging-memory-bytes", pagingMetrics.getMemoryBytes());
+        stats.put("paged-bytes", pagingMetrics.getPagedBytes());
+        stats.put("paged-out-bytes", pagingMetrics.getPagedOutBytes());
+        stats.put("page-ins", pagingMetrics.getPageIns());
+        stats.put("page-in-avg-nanos", pagingMetrics.getAveragePageInNanos());
+        stats.put("page-in-max-nanos", pagingMetrics.getMaxPageInNanos());
+        stats.put("slabs-in-use", (long) slabAllocator.getSlabsInUse());
+        stats.put("pooled-slabs", (long) slabAllocator.getPooledSlabs());
+        stats.put("slab-reserved-bytes", slabAllocator.getReservedBytes());
+        stats.put("slab-used-bytes", slabAllocator.getUsedBytes());
+        stats.put("slab-allocations", slabAllocator.getAllocations());
+        stats.put("slab-pool-hits", slabAllocator.getPoolHits());
+        return stats;
+    }
+
+    public PagingMetrics getPagingMetrics() {
+        return pagingMetrics;
+    }
+
+    public SlabAllocator getSlabAllocator() {
+        return slabAllocator;
+    }
+
+    public TimingWheel getTimer() {
+        return timer;
+    }
+
+    public DelayedDelivery getDelayedDelivery() {
+        return delayedDelivery;
+    }
+
+    /**
+     * Stop the timer and force the logs of durable queues to disk. Delayed messages that are not due yet are lost.
+     */
+    public void close() {
+        timer.close();
+        delayedDelivery.close();
+        storage.close();
+    }
 }
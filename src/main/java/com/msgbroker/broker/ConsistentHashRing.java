@@ -0,0 +1,111 @@
+package com.msgbroker.broker;
+
+import java.util.Arrays;
+
+/**
+ * Immutable hash ring used by consistent-hash exchanges.
+ * <p>
+ * Every binding places {@code weight * POINTS_PER_WEIGHT} points for its queue on a 32-bit ring. A routing key is
+ * hashed onto the same ring and owned by the next point clockwise, so a key always lands on the same queue while the
+ * bindings stay the same, and adding a binding only moves the keys that fall onto its new points.
+ */
+public class ConsistentHashRing {
+
+    public static final int POINTS_PER_WEIGHT = 32;
+    public static final int MAX_WEIGHT = 1000;
+
+    public static final ConsistentHashRing EMPTY = new ConsistentHashRing(new MessageQueue[0], new int[0]);
+
+    // Bindings in bind order, the position of a binding seeds the hashes of its points
+    private final MessageQueue[] boundQueues;
+    private final int[] weights;
+
+    private final int[] points;
+    private final MessageQueue[] owners;
+
+    private ConsistentHashRing(MessageQueue[] boundQueues, int[] weights) {
+        this.boundQueues = boundQueues;
+        this.weights = weights;
+
+        int total = 0;
+        for (int weight : weights) {
+            total += weight * POINTS_PER_WEIGHT;
+        }
+
+        // Pack hash and binding index into one long so that sorting keeps them together
+        long[] packed = new long[total];
+        int p = 0;
+        for (int b = 0; b < boundQueues.length; b++) {
+            for (int i = 0; i < weights[b] * POINTS_PER_WEIGHT; i++) {
+                int hash = hash(boundQueues[b].getName() + "#" + b + "#" + i);
+                packed[p++] = ((long) hash << 32) | b;
+            }
+        }
+        Arrays.sort(packed);
+
+        this.points = new int[total];
+        this.owners = new MessageQueue[total];
+        for (int i = 0; i < total; i++) {
+            points[i] = (int) (packed[i] >> 32);
+            owners[i] = boundQueues[(int) packed[i]];
+        }
+    }
+
+    /**
+     * Parse the weight encoded in a binding key
+     *
+     * @return the weight, or -1 if the binding key is not a valid weight
+     */
+    public static int parseWeight(String bindingKey) {
+        try {
+            int weight = Integer.parseInt(bindingKey);
+            return weight >= 1 && weight <= MAX_WEIGHT ? weight : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Create a new ring containing all bindings of this ring plus the given one
+     */
+    public ConsistentHashRing withBinding(MessageQueue queue, int weight) {
+        MessageQueue[] queues = Arrays.copyOf(boundQueues, boundQueues.length + 1);
+        int[] newWeights = Arrays.copyOf(weights, weights.length + 1);
+        queues[boundQueues.length] = queue;
+        newWeights[weights.length] = weight;
+        return new ConsistentHashRing(queues, newWeights);
+    }
+
+    /**
+     * Find the queue owning the given routing key
+     *
+     * @return the owning queue, or null if the ring is empty
+     */
+    public MessageQueue locate(String routingKey) {
+        if (points.length == 0) {
+            return null;
+        }
+        int index = Arrays.binarySearch(points, hash(routingKey));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    /**
+     * FNV-1a over the UTF-16 code units, followed by the murmur3 finalizer to spread similar keys across the ring
+     */
+    static int hash(String key) {
+        int h = 0x811c9dc5;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,118 @@
+package com.msgbroker.broker;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Broker-wide scheduler of messages published with a delay.
+ * <p>
+ * A delayed message is held as a task on the broker's {@link TimingWheel}, so scheduling is O(1) and pending
+ * messages cost no thread. When a message is due, the timer thread hands it to a single dispatcher thread that
+ * routes it through its exchange, because routing may block on a full queue. A due message that matches no queue, is
+ * rejected by a full queue or fails to route cannot be reported to its publisher any more, so it is counted instead.
+ * At most one such failure is logged per {@link #LOG_INTERVAL_MS}, so that losing the route of many pending messages
+ * does not flood the log and slow down the dispatcher.
+ */
+public class DelayedDelivery {
+
+    private record Due(Exchange exchange, Message message) {
+    }
+
+    static final long LOG_INTERVAL_MS = 10_000;
+
+    private final TimingWheel timer;
+    private final LinkedBlockingQueue<Due> due = new LinkedBlockingQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final LongAdder failed = new LongAdder();
+    private final Object startLock = new Object();
+    private volatile Thread dispatcher;
+    // Only accessed by the dispatcher thread
+    private long lastLogged;
+
+    public DelayedDelivery(TimingWheel timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * Route the message through the exchange once the delivery time has come
+     *
+     * @param deliverAt delivery time in milliseconds since the epoch
+     */
+    public void schedule(Exchange exchange, Message message, long deliverAt) {
+        if (dispatcher == null) {
+            startDispatcher();
+        }
+        pending.incrementAndGet();
+        timer.schedule(deliverAt, () -> due.add(new Due(exchange, message)));
+    }
+
+    /**
+     * Number of delayed messages that have not been routed yet
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Number of due messages that matched no queue, were rejected or failed to route
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    private void startDispatcher() {
+        synchronized (startLock) {
+            if (dispatcher == null) {
+                dispatcher = Thread.ofVirtual().name("delayed-delivery").start(this::dispatch);
+            }
+        }
+    }
+
+    private void dispatch() {
+        try {
+            while (true) {
+                Due next = due.take();
+                try {
+                    route(next.exchange(), next.message());
+                } finally {
+                    pending.decrementAndGet();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Broker shut down, pending messages are not delivered
+        }
+    }
+
+    private void route(Exchange exchange, Message message) {
+        String problem;
+        try {
+            if (!exchange.hasRoute(message.getRoutingKey())) {
+                problem = "matches no queue";
+            } else if (!exchange.routeMessage(message)) {
+                problem = "was rejected by a full queue";
+            } else {
+                return;
+            }
+        } catch (RuntimeException e) {
+            problem = "failed to route: " + e.getMessage();
+        }
+        failed.increment();
+        long now = System.currentTimeMillis();
+        if (now - lastLogged >= LOG_INTERVAL_MS) {
+            lastLogged = now;
+            System.err.println("Delayed message with routing key " + message.getRoutingKey() + " on exchange "
+                    + exchange.getName() + " " + problem + " (" + failed.sum() + " failed delayed messages so far)");
+        }
+    }
+
+    /**
+     * Stop routing due messages
+     */
+    public void close() {
+        Thread t = dispatcher;
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+}
@@ -1,23 +1,59 @@
 package com.msgbroker.broker;
 
+import com.msgbroker.config.BrokerTuningConfig;
+
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
 /**
  * Represents an exchange that routes messages to queues
  */
 public class Exchange {
 
+    static final MessageQueue[] NO_QUEUES = new MessageQueue[0];
+
+    // Number of queues a single fork-join task enqueues into before it stops splitting
+    private static final int PARALLEL_CHUNK_SIZE = 256;
+
     private final String name;
-    private final String type; // direct, fanout, topic, default
-    private final Map<String, List<MessageQueue>> bindings;
+    private final String type; // direct, fanout, topic, consistent-hash, default
+    // Binding tables are immutable snapshot arrays, replaced as a whole on bind so that
+    // publishers can iterate them without locking
+    private final Map<String, MessageQueue[]> bindings;
+    private volatile MessageQueue[] allBoundQueues = NO_QUEUES;
+    private final Object bindLock = new Object();
+    private final TopicTrie topicTrie;
+    private volatile ConsistentHashRing hashRing = ConsistentHashRing.EMPTY;
+    // Set once a queue is bound whose enqueues may block the publisher
+    private volatile boolean mayBlock;
+    private final RouteCache routeCache;
+    private final int parallelThreshold;
+
+    // Bumped on every binding change, invalidates all cached routes
+    private final AtomicLong bindEpoch = new AtomicLong();
 
     public Exchange(String name, String type) {
+        this(name, type, BrokerTuningConfig.DEFAULT_ROUTE_CACHE_SIZE,
+                BrokerTuningConfig.DEFAULT_FANOUT_PARALLEL_THRESHOLD);
+    }
+
+    public Exchange(String name, String type, int routeCacheSize, int parallelThreshold) {
         this.name = name;
         this.type = type;
         this.bindings = new ConcurrentHashMap<>();
+        this.topicTrie = new TopicTrie();
+        this.routeCache = new RouteCache(routeCacheSize);
+        this.parallelThreshold = parallelThreshold;
     }
 
     public String getName() {
@@ -29,115 +65,196 @@ public class Exchange {
     }
 
     /**
-     * Bind a queue to this exchange with a binding key
+     * Bind a queue to this exchange with a binding key.
+     * Binds are serialized among each other but never block publishers, which keep routing
+     * against the previous snapshot until the new one is published.
      */
     public void bind(String bindingKey, MessageQueue queue) {
-        bindings.computeIfAbsent(bindingKey, k -> new ArrayList<>()).add(queue);
+        if (!acceptsBindingKey(bindingKey)) {
+            throw new IllegalArgumentException("Invalid binding key for " + type + " exchange: " + bindingKey);
+        }
+        synchronized (bindLock) {
+            bindings.compute(bindingKey, (k, queues) -> append(queues != null ? queues : NO_QUEUES, queue));
+            allBoundQueues = append(allBoundQueues, queue);
+            if (type.equals("topic")) {
+                topicTrie.insert(bindingKey, queue);
+            } else if (type.equals("consistent-hash")) {
+                hashRing = hashRing.withBinding(queue, ConsistentHashRing.parseWeight(bindingKey));
+            }
+            if (queue.mayBlock()) {
+                mayBlock = true;
+            }
+            bindEpoch.incrementAndGet();
+        }
+    }
+
+    /**
+     * Whether routing a message may block the publisher, because a queue is bound that may make it wait
+     * (see {@link MessageQueue#mayBlock()})
+     */
+    public boolean mayBlock() {
+        return mayBlock;
+    }
+
+    /**
+     * Check if a binding key is valid for this exchange type.
+     * Consistent-hash exchanges interpret the binding key as the weight of the queue on the hash ring.
+     */
+    public boolean acceptsBindingKey(String bindingKey) {
+        return !type.equals("consistent-hash") || ConsistentHashRing.parseWeight(bindingKey) > 0;
+    }
+
+    static MessageQueue[] append(MessageQueue[] queues, MessageQueue queue) {
+        MessageQueue[] copy = Arrays.copyOf(queues, queues.length + 1);
+        copy[queues.length] = queue;
+        return copy;
     }
 
     /**
      * Route a message to appropriate queues based on routing key
+     *
+     * @return false if a bounded target queue rejected the message
      */
-    public void routeMessage(String routingKey, String message) {
-        switch (type) {
-            case "direct", "default" -> routeDirect(routingKey, message);
-            case "fanout" -> routeFanout(message);
-            case "topic" -> routeTopic(routingKey, message);
-        }
+    public boolean routeMessage(Message message) {
+        return switch (type) {
+            case "direct", "default", "topic", "consistent-hash" ->
+                    forEachQueue(resolveRoute(message.getRoutingKey()), queue -> queue.enqueue(message));
+            case "fanout" -> forEachQueue(allBoundQueues, queue -> queue.enqueue(message));
+            default -> true;
+        };
     }
 
-    private void routeDirect(String routingKey, String message) {
-        List<MessageQueue> queues = bindings.get(routingKey);
-        if (queues != null) {
-            for (MessageQueue queue : queues) {
-                queue.enqueue(message);
-            }
-        }
+    /**
+     * Whether a message with the routing key would reach at least one queue
+     */
+    public boolean hasRoute(String routingKey) {
+        return switch (type) {
+            case "direct", "default", "topic", "consistent-hash" -> resolveRoute(routingKey).length > 0;
+            case "fanout" -> allBoundQueues.length > 0;
+            default -> false;
+        };
     }
 
-    private void routeFanout(String message) {
-        for (List<MessageQueue> queueList : bindings.values()) {
-            for (MessageQueue queue : queueList) {
-                queue.enqueue(message);
+    /**
+     * Route a batch of messages in one pass.
+     * Messages are grouped by target queue first, so every queue is locked and signalled once per batch
+     * instead of once per message. The relative order of the messages is kept within each queue.
+     *
+     * @return false if a bounded target queue rejected at least one message of the batch
+     */
+    public boolean routeBatch(List<Message> batch) {
+        if (type.equals("fanout")) {
+            return forEachQueue(allBoundQueues, queue -> queue.enqueueAll(batch));
+        }
+
+        Map<MessageQueue, List<Message>> byQueue = new IdentityHashMap<>();
+        for (Message message : batch) {
+            for (MessageQueue queue : resolveRoute(message.getRoutingKey())) {
+                byQueue.computeIfAbsent(queue, q -> new ArrayList<>()).add(message);
             }
         }
+        // The map is only read from here on, so the tasks may look up their queues concurrently
+        return forEachQueue(byQueue.keySet().toArray(NO_QUEUES), queue -> queue.enqueueAll(byQueue.get(queue)));
     }
 
-    private void routeTopic(String routingKey, String message) {
-        String[] routingParts = routingKey.split("\\.");
-        
-        for (Map.Entry<String, List<MessageQueue>> entry : bindings.entrySet()) {
-            String bindingKey = entry.getKey();
-            if (matchesTopicPattern(routingParts, bindingKey)) {
-                for (MessageQueue queue : entry.getValue()) {
-                    queue.enqueue(message);
-                }
-            }
+    public long getRouteCacheHits() {
+        return routeCache.getHits();
+    }
+
+    public long getRouteCacheMisses() {
+        return routeCache.getMisses();
+    }
+
+    /**
+     * Resolve the target queues of a routing key, served from the route cache when possible
+     */
+    private MessageQueue[] resolveRoute(String routingKey) {
+        long epoch = bindEpoch.get();
+        MessageQueue[] queues = routeCache.get(routingKey, epoch);
+        if (queues == null) {
+            queues = switch (type) {
+                case "topic" -> topicTrie.match(routingKey);
+                case "consistent-hash" -> matchHashRing(routingKey);
+                default -> matchDirect(routingKey);
+            };
+            routeCache.put(routingKey, epoch, queues);
         }
+        return queues;
+    }
+
+    private MessageQueue[] matchDirect(String routingKey) {
+        MessageQueue[] queues = bindings.get(routingKey);
+        return queues != null ? queues : NO_QUEUES;
+    }
+
+    private MessageQueue[] matchHashRing(String routingKey) {
+        MessageQueue queue = hashRing.locate(routingKey);
+        return queue != null ? new MessageQueue[]{queue} : NO_QUEUES;
     }
 
     /**
-     * Match routing key against topic pattern
-     * * matches exactly one word
-     * # matches zero or more words
+     * Apply the enqueue action to every target queue.
+     * Above the parallel threshold the targets are split across the fanout pool; the call still returns only once
+     * every queue has been handled, so the publisher is acknowledged after all enqueues.
+     *
+     * @return false if the action failed for at least one queue
      */
-    private boolean matchesTopicPattern(String[] routingParts, String bindingKey) {
-        String[] bindingParts = bindingKey.split("\\.");
-        
-        int r = 0, b = 0;
-        while (r < routingParts.length && b < bindingParts.length) {
-            if (bindingParts[b].equals("#")) {
-                // # can match zero or more words
-                if (b == bindingParts.length - 1) {
-                    return true; // # at the end matches everything remaining
-                }
-                // Try to match the rest
-                for (int i = r; i <= routingParts.length; i++) {
-                    if (matchesTopicPatternFrom(routingParts, i, bindingParts, b + 1)) {
-                        return true;
-                    }
-                }
-                return false;
-            } else if (bindingParts[b].equals("*") || bindingParts[b].equals(routingParts[r])) {
-                r++;
-                b++;
-            } else {
-                return false;
-            }
+    private boolean forEachQueue(MessageQueue[] queues, Predicate<MessageQueue> action) {
+        if (parallelThreshold > 0 && queues.length >= parallelThreshold) {
+            AtomicBoolean accepted = new AtomicBoolean(true);
+            FanoutPool.POOL.invoke(new ParallelEnqueue(queues, 0, queues.length, action, accepted));
+            return accepted.get();
         }
-        
-        // Handle trailing #
-        while (b < bindingParts.length && bindingParts[b].equals("#")) {
-            b++;
+        boolean accepted = true;
+        for (MessageQueue queue : queues) {
+            accepted &= action.test(queue);
         }
-        
-        return r == routingParts.length && b == bindingParts.length;
+        return accepted;
     }
 
-    private boolean matchesTopicPatternFrom(String[] routingParts, int r, String[] bindingParts, int b) {
-        while (r < routingParts.length && b < bindingParts.length) {
-            if (bindingParts[b].equals("#")) {
-                if (b == bindingParts.length - 1) {
-                    return true;
-                }
-                for (int i = r; i <= routingParts.length; i++) {
-                    if (matchesTopicPatternFrom(routingParts, i, bindingParts, b + 1)) {
-                        return true;
+    /**
+     * Fork-join pool shared by all exchanges, created on first use. Enqueues may block on a full queue with the
+     * block overflow policy or on a durable write, so they must not run on the JVM-wide common pool.
+     */
+    private static final class FanoutPool {
+        private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                pool -> {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("exchange-fanout-" + thread.getPoolIndex());
+                    return thread;
+                }, null, false);
+    }
+
+    @SuppressWarnings("serial") // never serialized
+    private static final class ParallelEnqueue extends RecursiveAction {
+        private final MessageQueue[] queues;
+        private final int from;
+        private final int to;
+        private final Predicate<MessageQueue> action;
+        private final AtomicBoolean accepted;
+
+        private ParallelEnqueue(MessageQueue[] queues, int from, int to, Predicate<MessageQueue> action,
+                                AtomicBoolean accepted) {
+            this.queues = queues;
+            this.from = from;
+            this.to = to;
+            this.action = action;
+            this.accepted = accepted;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_CHUNK_SIZE) {
+                for (int i = from; i < to; i++) {
+                    if (!action.test(queues[i])) {
+                        accepted.set(false);
                     }
                 }
-                return false;
-            } else if (bindingParts[b].equals("*") || bindingParts[b].equals(routingParts[r])) {
-                r++;
-                b++;
-            } else {
-                return false;
+                return;
             }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ParallelEnqueue(queues, from, mid, action, accepted),
+                    new ParallelEnqueue(queues, mid, to, action, accepted));
         }
-        
-        while (b < bindingParts.length && bindingParts[b].equals("#")) {
-            b++;
-        }
-        
-        return r == routingParts.length && b == bindingParts.length;
     }
 }
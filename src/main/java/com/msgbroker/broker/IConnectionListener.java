@@ -0,0 +1,12 @@
+package com.msgbroker.broker;
+
+/**
+ * Accepts SMQP connections on the broker port until it is shut down.
+ */
+public interface IConnectionListener extends Runnable {
+
+    /**
+     * Stop accepting connections and release the port
+     */
+    void shutdown();
+}
@@ -0,0 +1,129 @@
+package com.msgbroker.broker;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Broker-wide memory alarm that throttles publishers while queued messages use too much heap.
+ * <p>
+ * The monitor samples the memory used by messages on the broker's {@link TimingWheel} in a fixed interval, so
+ * publishing and consuming do not update any shared counter. The alarm is raised once the usage reaches the high
+ * watermark and cleared only when it drops to the low watermark, so publishers are not switched on and off with
+ * every message around a single threshold. While the alarm is raised, connections that publish stop reading their
+ * next command in {@link #awaitClear()}; their clients then block on a full socket, as with credit-based flow
+ * control, while subscribers keep draining the queues.
+ */
+public class MemoryMonitor {
+
+    public static final long DEFAULT_CHECK_INTERVAL_MS = 50;
+
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final long checkIntervalMs;
+    private final LongSupplier usage;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition cleared = lock.newCondition();
+    private volatile boolean alarm;
+    private volatile long usedBytes;
+    private long alarmCount;
+
+    /**
+     * @param highWatermark bytes from which the alarm is raised
+     * @param lowWatermark  bytes at or below which a raised alarm is cleared
+     * @param usage         computes the bytes currently used by messages, called on the timer thread
+     */
+    public MemoryMonitor(long highWatermark, long lowWatermark, long checkIntervalMs, LongSupplier usage) {
+        this.highWatermark = highWatermark;
+        this.lowWatermark = Math.min(lowWatermark, highWatermark);
+        this.checkIntervalMs = Math.max(1, checkIntervalMs);
+        this.usage = usage;
+    }
+
+    /**
+     * Start sampling the memory usage on the given timer. The next sample is scheduled even if a check fails, so
+     * that a raised alarm is still cleared.
+     */
+    public void start(TimingWheel timer) {
+        timer.schedule(System.currentTimeMillis() + checkIntervalMs, () -> {
+            try {
+                check();
+            } finally {
+                start(timer);
+            }
+        });
+    }
+
+    /**
+     * Sample the memory usage and raise or clear the alarm
+     */
+    void check() {
+        long used = usage.getAsLong();
+        usedBytes = used;
+        if (!alarm && used >= highWatermark) {
+            lock.lock();
+            try {
+                alarm = true;
+                alarmCount++;
+            } finally {
+                lock.unlock();
+            }
+        } else if (alarm && used <= lowWatermark) {
+            lock.lock();
+            try {
+                alarm = false;
+                cleared.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public boolean isAlarmed() {
+        return alarm;
+    }
+
+    /**
+     * Wait until the alarm is cleared, returns right away if it is not raised
+     */
+    public void awaitClear() throws InterruptedException {
+        if (!alarm) {
+            return;
+        }
+        lock.lockInterruptibly();
+        try {
+            while (alarm) {
+                cleared.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Bytes used by messages at the last check
+     */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getHighWatermark() {
+        return highWatermark;
+    }
+
+    public long getLowWatermark() {
+        return lowWatermark;
+    }
+
+    /**
+     * Number of times the alarm was raised
+     */
+    public long getAlarmCount() {
+        lock.lock();
+        try {
+            return alarmCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
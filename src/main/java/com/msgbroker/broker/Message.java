@@ -0,0 +1,147 @@
+package com.msgbroker.broker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Immutable envelope of a published message.
+ * <p>
+ * The payload is encoded to UTF-8 once when the message is published. The same instance is shared by reference
+ * across every queue the message is routed to and its bytes are written to subscribers as they are.
+ */
+public final class Message {
+
+    /**
+     * Highest priority a message can be published with
+     */
+    public static final int MAX_PRIORITY = 9;
+
+    /**
+     * Longest routing key in UTF-8 bytes, as its length is stored in two bytes by the durable log
+     */
+    public static final int MAX_ROUTING_KEY_LENGTH = 0xFFFF;
+
+    private final String routingKey;
+    private final byte[] payload;
+    private final long timestamp;
+    private final long expiresAt;
+    private final int priority;
+
+    public Message(String routingKey, byte[] payload, long timestamp) {
+        this(routingKey, payload, timestamp, 0);
+    }
+
+    /**
+     * @param expiresAt time in milliseconds since the epoch after which the message is dropped, 0 if it never expires
+     */
+    public Message(String routingKey, byte[] payload, long timestamp, long expiresAt) {
+        this(routingKey, payload, timestamp, expiresAt, 0);
+    }
+
+    /**
+     * @param expiresAt time in milliseconds since the epoch after which the message is dropped, 0 if it never expires
+     * @param priority  priority from 0 to {@link #MAX_PRIORITY}, only honoured by queues declared with a max-priority
+     */
+    public Message(String routingKey, byte[] payload, long timestamp, long expiresAt, int priority) {
+        this.routingKey = routingKey;
+        this.payload = payload;
+        this.timestamp = timestamp;
+        this.expiresAt = expiresAt;
+        this.priority = priority;
+    }
+
+    /**
+     * Create a message published now from its text body
+     */
+    public static Message of(String routingKey, String body) {
+        return of(routingKey, body, 0);
+    }
+
+    /**
+     * Create a message published now from its text body that expires after the given time to live
+     *
+     * @param ttlMs time to live in milliseconds, 0 if the message never expires
+     */
+    public static Message of(String routingKey, String body, long ttlMs) {
+        return of(routingKey, body, ttlMs, 0);
+    }
+
+    /**
+     * Create a message published now from its text body with a time to live and a priority
+     *
+     * @param ttlMs    time to live in milliseconds, 0 if the message never expires
+     * @param priority priority from 0 to {@link #MAX_PRIORITY}
+     */
+    public static Message of(String routingKey, String body, long ttlMs, int priority) {
+        long now = System.currentTimeMillis();
+        return new Message(routingKey, body.getBytes(StandardCharsets.UTF_8), now, expiryAfter(now, ttlMs),
+                priority);
+    }
+
+    /**
+     * Time at which a message published at the given time expires after a time to live. A time to live that
+     * reaches beyond {@link Long#MAX_VALUE} saturates there instead of wrapping around into the past.
+     *
+     * @param ttlMs time to live in milliseconds, 0 if the message never expires
+     * @return the expiry time in milliseconds since the epoch, 0 if the message never expires
+     */
+    public static long expiryAfter(long timestamp, long ttlMs) {
+        if (ttlMs <= 0) {
+            return 0;
+        }
+        long expiresAt = timestamp + ttlMs;
+        return expiresAt < timestamp ? Long.MAX_VALUE : expiresAt;
+    }
+
+    public String getRoutingKey() {
+        return routingKey;
+    }
+
+    /**
+     * Publish time in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Expiry time of the message itself in milliseconds since the epoch, 0 if it never expires
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Priority from 0 to {@link #MAX_PRIORITY}, higher priorities are delivered first by priority queues
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    public int getPayloadLength() {
+        return payload.length;
+    }
+
+    /**
+     * Copy the raw payload bytes into the buffer at the given index
+     */
+    public void copyPayload(ByteBuffer target, int index) {
+        target.put(index, payload);
+    }
+
+    /**
+     * Write the raw payload bytes to the given stream
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(payload);
+    }
+
+    /**
+     * Decode the payload. Only meant for diagnostics, delivery writes the bytes directly.
+     */
+    public String getText() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+}
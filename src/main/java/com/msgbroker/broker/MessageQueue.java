@@ -1,50 +1,653 @@
 package com.msgbroker.broker;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import com.msgbroker.broker.enums.OverflowPolicy;
+import com.msgbroker.broker.store.DequeQueueStore;
+import com.msgbroker.broker.store.QueueStore;
+
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
 
 /**
- * Represents a message queue that stores messages for subscribers
+ * Represents a message queue that stores messages for subscribers.
+ * <p>
+ * Messages are kept in a non-blocking {@link QueueStore}. A queue may be bounded by message count and payload bytes
+ * (see {@link QueueArguments}); once a limit is reached, the overflow policy decides whether the publisher blocks,
+ * the message is rejected or the oldest messages are dropped to make room.
+ * <p>
+ * Limits are enforced by reserving count and bytes with atomic counters before a message is stored. The wait lock
+ * is only taken when a consumer has to wait for messages or a publisher for room, so with a lock-free store the
+ * uncontended publish and consume paths do not lock at all.
+ * <p>
+ * Messages expire after the queue's TTL or their own. Consumers skip expired messages when they reach the head of
+ * the queue, and a check on the broker's {@link TimingWheel} drops them while nobody consumes. Only one check is
+ * scheduled at a time, for the earliest known expiry, and each check schedules the next one for the new head, so
+ * expiry needs no timer per message. With only the queue's TTL, messages expire in queue order and the check only
+ * looks at the head. Once messages carry their own TTL, or are ordered by priority, an expired message may sit
+ * behind one that expires later or never, so the check also scans the whole store, at most once per
+ * {@link #EXPIRY_SCAN_INTERVAL_MS}, where the store can remove messages behind its head.
  */
 public class MessageQueue {
 
+    private static final Runnable NOTHING = () -> {
+    };
+
+    static final long EXPIRY_SCAN_INTERVAL_MS = 1000;
+
     private final String name;
-    private final BlockingQueue<String> messages;
+    private final QueueArguments arguments;
+    private final QueueStore store;
+    private final TimingWheel timer;
+
+    // Reserved messages and payload bytes, including messages that are about to be stored
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition notEmpty = waitLock.newCondition();
+    private final Condition notFull = waitLock.newCondition();
+    private final AtomicInteger waitingConsumers = new AtomicInteger();
+    private final AtomicInteger waitingPublishers = new AtomicInteger();
+
+    // Subscribed consumers, woken up in turn when messages arrive instead of polling
+    private volatile QueueConsumer[] consumers = new QueueConsumer[0];
+    private final AtomicInteger nextConsumer = new AtomicInteger();
+
+    // Expiry time of the pending head check, Long.MAX_VALUE if none is pending
+    private final AtomicLong nextExpiryCheck = new AtomicLong(Long.MAX_VALUE);
+    // Whether a message may expire before the ones ahead of it
+    private volatile boolean expiryOutOfOrder;
+    // Earliest time of the next scan of the whole store, only used by the check on the timer thread
+    private long nextExpiryScan;
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder redelivered = new LongAdder();
 
     public MessageQueue(String name) {
+        this(name, QueueArguments.DEFAULT);
+    }
+
+    public MessageQueue(String name, QueueArguments arguments) {
+        this(name, arguments, new DequeQueueStore());
+    }
+
+    public MessageQueue(String name, QueueArguments arguments, QueueStore store) {
+        this(name, arguments, store, null);
+    }
+
+    /**
+     * @param timer drives the expiry of messages at the head, or null to only drop expired messages on consumption
+     */
+    public MessageQueue(String name, QueueArguments arguments, QueueStore store, TimingWheel timer) {
         this.name = name;
-        this.messages = new LinkedBlockingQueue<>();
+        this.arguments = arguments;
+        this.store = store;
+        this.timer = timer;
+        this.expiryOutOfOrder = arguments.maxPriority() > 0;
+        // A durable store may start out with recovered messages
+        count.set(store.size());
+        bytes.set(store.recoveredBytes());
     }
 
     public String getName() {
         return name;
     }
 
+    public QueueArguments getArguments() {
+        return arguments;
+    }
+
+    /**
+     * Whether an enqueue may wait: for room with the block overflow policy, for a free slot of a store whose
+     * capacity the limits do not keep the queue within, or for a durable store to force the message to disk
+     */
+    public boolean mayBlock() {
+        return (arguments.isBounded() && arguments.overflow() == OverflowPolicy.BLOCK)
+                || (store.capacity() < Integer.MAX_VALUE
+                        && (arguments.maxLength() <= 0 || arguments.maxLength() > store.capacity()))
+                || store.forcesWrites();
+    }
+
     /**
      * Add a message to the queue
+     *
+     * @return false if the message was rejected because the queue is full
+     */
+    public boolean enqueue(Message message) {
+        if (!reserve(message, NOTHING) || !store(message)) {
+            return false;
+        }
+        signalNotEmpty(false);
+        scheduleExpiry(expiresAt(message));
+        return true;
+    }
+
+    /**
+     * Add a batch of messages to the queue, storing them in one go and waking consumers only once
+     *
+     * @return false if at least one message of the batch was rejected because the queue is full
+     */
+    public boolean enqueueAll(Collection<? extends Message> batch) {
+        if (batch.isEmpty()) {
+            return true;
+        }
+        PendingBatch pending = new PendingBatch(batch.size());
+        for (Message message : batch) {
+            if (reserve(message, pending)) {
+                pending.messages.add(message);
+            } else {
+                pending.accepted = false;
+            }
+        }
+        pending.run();
+        return pending.accepted;
+    }
+
+    /**
+     * Messages of a batch that are reserved but not stored yet. They have to become visible to consumers
+     * before the overflow policy can make room, so running the batch stores them.
+     */
+    private final class PendingBatch implements Runnable {
+        private final List<Message> messages;
+        private boolean accepted = true;
+
+        private PendingBatch(int size) {
+            this.messages = new ArrayList<>(size);
+        }
+
+        @Override
+        public void run() {
+            long earliestExpiry = earliestExpiry(messages);
+            int stored = store.offerAll(messages);
+            for (int i = stored; i < messages.size(); i++) {
+                try {
+                    accepted &= store(messages.get(i));
+                } catch (UncheckedIOException e) {
+                    messages.subList(i + 1, messages.size()).forEach(MessageQueue.this::release);
+                    messages.clear();
+                    throw e;
+                }
+            }
+            messages.clear();
+            signalNotEmpty(true);
+            scheduleExpiry(earliestExpiry);
+        }
+    }
+
+    /**
+     * Put messages that were delivered but never acknowledged back at the head of the queue, ahead of newer
+     * messages where the store allows it. Limits are not applied, the queue accepted the messages before.
+     *
+     * @param messages the messages in the order they were delivered
+     * @throws UncheckedIOException if a durable store cannot write the messages again
+     */
+    public void requeue(List<Message> messages) {
+        putBack(messages);
+        redelivered.add(messages.size());
+    }
+
+    /**
+     * Put messages that a consumer took but never delivered back at the head of the queue, like
+     * {@link #requeue(List)} but without counting them as redelivered
+     *
+     * @param messages the messages in the order they were taken
+     * @throws UncheckedIOException if a durable store cannot write the messages again
+     */
+    void putBack(List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        for (Message message : messages) {
+            count.incrementAndGet();
+            bytes.addAndGet(message.getPayloadLength());
+        }
+        long earliestExpiry = earliestExpiry(messages);
+        int stored;
+        try {
+            stored = store.requeueAll(messages);
+        } catch (UncheckedIOException e) {
+            messages.forEach(this::release);
+            throw e;
+        }
+        for (int i = stored; i < messages.size(); i++) {
+            try {
+                store(messages.get(i));
+            } catch (UncheckedIOException e) {
+                messages.subList(i + 1, messages.size()).forEach(this::release);
+                throw e;
+            }
+        }
+        signalNotEmpty(true);
+        scheduleExpiry(earliestExpiry);
+    }
+
+    /**
+     * Reserve count and bytes for a message, applying the overflow policy if it does not fit
+     *
+     * @param beforeOverflow run once before the overflow policy is applied
+     * @return false if the message has to be rejected
+     */
+    private boolean reserve(Message message, Runnable beforeOverflow) {
+        int length = message.getPayloadLength();
+        if (!arguments.isBounded()) {
+            count.incrementAndGet();
+            bytes.addAndGet(length);
+            return true;
+        }
+        if (arguments.maxBytes() > 0 && length > arguments.maxBytes()) {
+            return false; // could never fit
+        }
+
+        boolean overflowing = false;
+        while (true) {
+            int reservedCount = count.incrementAndGet();
+            long reservedBytes = bytes.addAndGet(length);
+            if ((arguments.maxLength() <= 0 || reservedCount <= arguments.maxLength())
+                    && (arguments.maxBytes() <= 0 || reservedBytes <= arguments.maxBytes())) {
+                return true;
+            }
+            count.decrementAndGet();
+            bytes.addAndGet(-length);
+
+            if (!overflowing) {
+                overflowing = true;
+                beforeOverflow.run();
+            }
+            switch (arguments.overflow()) {
+                case REJECT -> {
+                    return false;
+                }
+                case DROP_HEAD -> {
+                    if (take() == null) {
+                        Thread.onSpinWait(); // the room is held by publishers that have not stored yet
+                    }
+                }
+                case BLOCK -> {
+                    if (!awaitNotFull(() -> fits(length))) {
+                        return false;
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean fits(int length) {
+        return (arguments.maxLength() <= 0 || count.get() < arguments.maxLength())
+                && (arguments.maxBytes() <= 0 || bytes.get() + length <= arguments.maxBytes());
+    }
+
+    /**
+     * Store a reserved message, waiting for a free slot if the store itself is full
+     *
+     * @return false if the wait was interrupted and the reservation was given back
+     * @throws UncheckedIOException if a durable store cannot write the message
      */
-    public void enqueue(String message) {
-        messages.offer(message);
+    private boolean store(Message message) {
+        while (!offer(message)) {
+            if (!awaitNotFull(() -> store.size() < store.capacity())) {
+                release(message);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean offer(Message message) {
+        try {
+            return store.offer(message);
+        } catch (UncheckedIOException e) {
+            release(message);
+            throw e;
+        }
+    }
+
+    /**
+     * Wait until the condition holds or the thread is interrupted
+     *
+     * @return false if the wait was interrupted
+     */
+    private boolean awaitNotFull(BooleanSupplier condition) {
+        waitLock.lock();
+        waitingPublishers.incrementAndGet();
+        try {
+            while (!condition.getAsBoolean()) {
+                notFull.await();
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waitingPublishers.decrementAndGet();
+            waitLock.unlock();
+        }
+    }
+
+    /**
+     * Register a consumer to be notified when messages arrive
+     */
+    public synchronized void addConsumer(QueueConsumer consumer) {
+        QueueConsumer[] copy = Arrays.copyOf(consumers, consumers.length + 1);
+        copy[consumers.length] = consumer;
+        consumers = copy;
+    }
+
+    public synchronized void removeConsumer(QueueConsumer consumer) {
+        consumers = Arrays.stream(consumers).filter(c -> c != consumer).toArray(QueueConsumer[]::new);
+        if (!store.isEmpty()) {
+            signalConsumer(); // the removed consumer may have swallowed the last wake-up
+        }
+    }
+
+    public int getConsumerCount() {
+        return consumers.length;
+    }
+
+    /**
+     * Wake up the next registered consumer in round-robin order that can take more messages
+     */
+    void signalConsumer() {
+        QueueConsumer[] current = consumers;
+        int start = nextConsumer.getAndIncrement();
+        for (int i = 0; i < current.length; i++) {
+            QueueConsumer consumer = current[Math.floorMod(start + i, current.length)];
+            if (consumer.hasCredit()) {
+                consumer.messagesAvailable();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Wake up every registered consumer that can take more messages
+     */
+    private void signalAllConsumers() {
+        for (QueueConsumer consumer : consumers) {
+            if (consumer.hasCredit()) {
+                consumer.messagesAvailable();
+            }
+        }
+    }
+
+    private void signalNotEmpty(boolean all) {
+        if (all) {
+            signalAllConsumers();
+        } else {
+            signalConsumer();
+        }
+        if (waitingConsumers.get() > 0) {
+            waitLock.lock();
+            try {
+                if (all) {
+                    notEmpty.signalAll();
+                } else {
+                    notEmpty.signal();
+                }
+            } finally {
+                waitLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Remove the oldest message that has not expired from the store and release its reservation
+     */
+    private Message take() {
+        return take(false);
+    }
+
+    /**
+     * @param unsettled whether a durable store keeps the message until it is {@link #settle(Message) settled}
+     */
+    private Message take(boolean unsettled) {
+        Message message;
+        while ((message = unsettled ? store.pollUnsettled() : store.poll()) != null) {
+            release(message);
+            long expiresAt = arguments.expiresAt(message);
+            if (expiresAt == 0 || expiresAt > System.currentTimeMillis()) {
+                return message;
+            }
+            expired.increment();
+            if (unsettled) {
+                store.settle(message);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Expiry time of a message that is being queued, noting whether it carries its own TTL
+     *
+     * @return the expiry time in milliseconds since the epoch, 0 if the message does not expire
+     */
+    private long expiresAt(Message message) {
+        if (message.getExpiresAt() != 0 && !expiryOutOfOrder) {
+            expiryOutOfOrder = true;
+        }
+        return arguments.expiresAt(message);
+    }
+
+    private long earliestExpiry(List<Message> messages) {
+        long earliestExpiry = 0;
+        for (Message message : messages) {
+            long expiresAt = expiresAt(message);
+            if (expiresAt > 0 && (earliestExpiry == 0 || expiresAt < earliestExpiry)) {
+                earliestExpiry = expiresAt;
+            }
+        }
+        return earliestExpiry;
+    }
+
+    /**
+     * Make sure a check runs at the given expiry time
+     */
+    private void scheduleExpiry(long expiresAt) {
+        if (timer == null || expiresAt == 0) {
+            return;
+        }
+        long scheduled = nextExpiryCheck.get();
+        while (expiresAt < scheduled) {
+            if (nextExpiryCheck.compareAndSet(scheduled, expiresAt)) {
+                timer.schedule(expiresAt, this::dropExpired);
+                return;
+            }
+            scheduled = nextExpiryCheck.get();
+        }
+    }
+
+    /**
+     * Drop expired messages at the head, and behind it when messages may expire out of order, then schedule the
+     * next check for the new head. Runs on the timer thread.
+     */
+    private void dropExpired() {
+        nextExpiryCheck.set(Long.MAX_VALUE);
+        long now = System.currentTimeMillis();
+        long[] headExpiry = new long[1];
+        Message message;
+        while ((message = store.pollIf(head -> {
+            headExpiry[0] = arguments.expiresAt(head);
+            return headExpiry[0] != 0 && headExpiry[0] <= now;
+        })) != null) {
+            drop(message);
+            headExpiry[0] = 0;
+        }
+        if (!expiryOutOfOrder) {
+            scheduleExpiry(headExpiry[0]);
+            return;
+        }
+        if (now >= nextExpiryScan) {
+            nextExpiryScan = now + EXPIRY_SCAN_INTERVAL_MS;
+            long[] earliestExpiry = new long[1];
+            List<Message> removed = store.removeIf(held -> {
+                long expiresAt = arguments.expiresAt(held);
+                if (expiresAt != 0 && expiresAt <= now) {
+                    return true;
+                }
+                if (expiresAt != 0 && (earliestExpiry[0] == 0 || expiresAt < earliestExpiry[0])) {
+                    earliestExpiry[0] = expiresAt;
+                }
+                return false;
+            });
+            if (removed != null) {
+                removed.forEach(this::drop);
+                // Checks before the next scan only look at the head, which schedules the scan again
+                scheduleExpiry(earliestExpiry[0]);
+                return;
+            }
+        }
+        // The earliest expiry behind the head is unknown, look again once the next scan is due
+        scheduleExpiry(headExpiry[0]);
+        if (count.get() > 0) {
+            scheduleExpiry(nextExpiryScan);
+        }
+    }
+
+    private void drop(Message message) {
+        release(message);
+        expired.increment();
+    }
+
+    private void release(Message message) {
+        count.decrementAndGet();
+        bytes.addAndGet(-message.getPayloadLength());
+        if (waitingPublishers.get() > 0) {
+            waitLock.lock();
+            try {
+                notFull.signalAll();
+            } finally {
+                waitLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Take a message from the queue without waiting
+     *
+     * @return the message, or null if the queue is empty
+     */
+    public Message poll() {
+        return take();
+    }
+
+    /**
+     * Take a message for a consumer without waiting. A durable queue keeps it in its log until it is settled with
+     * {@link #settle(Message)}, and it can be put back at the head with {@link #requeue(List)}.
+     *
+     * @return the message, or null if the queue is empty
+     */
+    Message pollUnsettled() {
+        return take(true);
+    }
+
+    /**
+     * Release a message taken with {@link #pollUnsettled()} once it was delivered or acknowledged
+     */
+    void settle(Message message) {
+        store.settle(message);
     }
 
     /**
      * Take a message from the queue (blocks if empty)
      */
-    public String dequeue() throws InterruptedException {
-        return messages.take();
+    public Message dequeue() throws InterruptedException {
+        Message message = take();
+        if (message != null) {
+            return message;
+        }
+        waitLock.lockInterruptibly();
+        waitingConsumers.incrementAndGet();
+        try {
+            while ((message = take()) == null) {
+                notEmpty.await();
+            }
+            return message;
+        } finally {
+            waitingConsumers.decrementAndGet();
+            waitLock.unlock();
+        }
     }
 
     /**
      * Poll a message from the queue with timeout
      */
-    public String poll(long timeout, java.util.concurrent.TimeUnit unit) throws InterruptedException {
-        return messages.poll(timeout, unit);
+    public Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Message message = take();
+        if (message != null) {
+            return message;
+        }
+        long nanos = unit.toNanos(timeout);
+        waitLock.lockInterruptibly();
+        waitingConsumers.incrementAndGet();
+        try {
+            while ((message = take()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return message;
+        } finally {
+            waitingConsumers.decrementAndGet();
+            waitLock.unlock();
+        }
     }
 
     /**
      * Check if queue is empty
      */
     public boolean isEmpty() {
-        return messages.isEmpty();
+        return store.isEmpty();
+    }
+
+    public int size() {
+        return store.size();
+    }
+
+    /**
+     * Number of messages dropped because they expired
+     */
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    /**
+     * Number of unacknowledged messages that were put back into the queue for redelivery
+     */
+    public long getRedeliveredCount() {
+        return redelivered.sum();
+    }
+
+    /**
+     * Payload bytes of the messages taken from the queue that its consumers did not acknowledge yet
+     */
+    public long getUnackedBytes() {
+        long unacked = 0;
+        for (QueueConsumer consumer : consumers) {
+            unacked += consumer.getUnackedBytes();
+        }
+        return unacked;
+    }
+
+    /**
+     * Number of payload bytes currently held by the queue
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Payload bytes of the queued messages that are kept on the heap, without those paged to disk or stored in
+     * direct memory
+     */
+    public long getHeapBytes() {
+        return store.heapBytes(bytes.get());
     }
 }
@@ -0,0 +1,450 @@
+package com.msgbroker.broker;
+
+import com.msgbroker.connection.SmqpFrame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * SMQP connection served by a {@link NioEventLoop}.
+ * <p>
+ * Bytes read from the channel are collected until a line is complete, and complete lines are handed to the
+ * connection's {@link SmqpSession} on the loop thread. Replies and deliveries are appended to a pending output
+ * buffer, which only the loop thread writes to the channel, through the loop's direct buffer. A consumer thread
+ * that delivers asks the loop to flush and waits while the client is more than {@value #OUTPUT_LIMIT} bytes
+ * behind, as it would block on a full socket with the thread-per-connection transport.
+ * <p>
+ * The connection stops reading, and leaves unprocessed lines in its input, while its own output is backed up or
+ * while it publishes during a memory alarm; the loop checks paused connections periodically and resumes them.
+ * <p>
+ * The loop thread never blocks on behalf of a connection. A publish that may block, into a full queue with the
+ * block overflow policy or a durable queue that forces every write, runs on a virtual thread of its own, and a
+ * stopped subscription is not waited for; the connection stops reading until either is done, so its commands are
+ * still handled in order, and is resumed by the loop right after.
+ */
+final class NioConnection implements SmqpSession.Output {
+
+    private static final int OUTPUT_LIMIT = 1024 * 1024;
+    // Longest time the commands after stop wait for the consumer to finish delivering
+    private static final long STOP_TIMEOUT_MS = 1000;
+    private static final int INITIAL_BUFFER_SIZE = 256;
+    private static final byte[] OK = "ok".getBytes(StandardCharsets.US_ASCII);
+
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final MemoryMonitor memoryMonitor;
+    private SmqpSession session;
+
+    // Bytes read but not handled yet, only touched by the loop thread
+    private byte[] input = new byte[INITIAL_BUFFER_SIZE];
+    private int inputLength;
+    // Leading input bytes already scanned without finding the end of the line they start
+    private int scanned;
+    private boolean skipLineFeed;
+    private boolean ended;
+    // Set while a publish runs on another thread, the session must not be used meanwhile
+    private volatile boolean publishing;
+    // Termination of a stopped consumer that the next command waits for, only touched by the loop thread
+    private CompletableFuture<Void> stopping;
+    private long stopDeadline;
+
+    // Output that is not written to the channel yet
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition drained = lock.newCondition();
+    private byte[] pending = new byte[INITIAL_BUFFER_SIZE];
+    private int pendingLength;
+    private boolean closed;
+    private boolean deliveryCancelled;
+    private boolean binary;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    NioConnection(NioEventLoop loop, SocketChannel channel, SelectionKey key, MemoryMonitor memoryMonitor) {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.memoryMonitor = memoryMonitor;
+    }
+
+    void start(SmqpSession session) {
+        this.session = session;
+        session.start();
+        flush();
+    }
+
+    /**
+     * Read what the channel has, using the loop's buffer, and handle the complete lines
+     */
+    void read(ByteBuffer buffer) {
+        int read;
+        try {
+            buffer.clear();
+            read = channel.read(buffer);
+        } catch (IOException e) {
+            read = -1;
+        }
+        if (read < 0) {
+            close();
+            return;
+        }
+        buffer.flip();
+        if (inputLength + read > input.length) {
+            input = Arrays.copyOf(input, Math.max(input.length * 2, inputLength + read));
+        }
+        buffer.get(input, inputLength, read);
+        inputLength += read;
+        handleInput();
+    }
+
+    /**
+     * Handle complete lines, or frames in binary mode, until the input is used up or the connection has to pause
+     */
+    private void handleInput() {
+        int start = 0;
+        int position = scanned;
+        while (position < inputLength && !ended && !mustPause()) {
+            if (session.isBinary()) {
+                int frameEnd = frameEnd(start);
+                if (frameEnd < 0) {
+                    break;
+                }
+                int frameStart = start + Integer.BYTES;
+                if (frameEnd > frameStart
+                        && !session.handleFrame(ByteBuffer.wrap(input, frameStart, frameEnd - frameStart))) {
+                    ended = true;
+                }
+                start = position = frameEnd;
+                continue;
+            }
+            byte b = input[position];
+            if (skipLineFeed) {
+                skipLineFeed = false;
+                if (b == '\n') {
+                    start = ++position;
+                    continue;
+                }
+            }
+            if (b != '\n' && b != '\r') {
+                position++;
+                continue;
+            }
+            // A line ends with \n, \r or \r\n, as with BufferedReader
+            skipLineFeed = b == '\r';
+            int lineStart = start;
+            start = ++position;
+            if (!session.handle(input, lineStart, position - 1 - lineStart)) {
+                ended = true;
+            }
+        }
+        // Bytes between start and position never hold a line end, frames are handled from start to start
+        scanned = position - start;
+        if (scanned > SmqpSession.MAX_LINE_LENGTH) {
+            ended = true; // a client that sends a line without end is disconnected
+        }
+        System.arraycopy(input, start, input, 0, inputLength - start);
+        inputLength -= start;
+        if (!publishing) {
+            session.flushConfirms();
+        }
+        flush();
+        if (ended) {
+            close();
+            return;
+        }
+        updateInterest();
+    }
+
+    /**
+     * Find the end of the frame that starts at the given input offset
+     *
+     * @return the offset after the frame, or -1 if it is not read completely yet
+     */
+    private int frameEnd(int start) {
+        if (skipLineFeed && input[start] == '\n') {
+            // The line before the switch ended with \r, a \n following it still belongs to it
+            skipLineFeed = false;
+            return start + 1;
+        }
+        skipLineFeed = false;
+        if (inputLength - start < Integer.BYTES) {
+            return -1;
+        }
+        int length = ByteBuffer.wrap(input, start, Integer.BYTES).getInt();
+        if (length < 1 || length > SmqpFrame.MAX_LENGTH) {
+            ended = true; // a client that sends an invalid frame is disconnected
+            return -1;
+        }
+        int end = start + Integer.BYTES + length;
+        return end <= inputLength ? end : -1;
+    }
+
+    /**
+     * Whether reading has to stop because a publish or a stopped consumer is not done yet, or because the client
+     * does not read its replies or publishes during a memory alarm. A subscribed connection is otherwise always
+     * read, so that it can stop a subscription its client falls behind on.
+     */
+    private boolean mustPause() {
+        if (publishing || isStopping()) {
+            return true;
+        }
+        if (session.isSubscribed()) {
+            return false;
+        }
+        return pendingBytes() > OUTPUT_LIMIT || (session.isThrottled() && memoryMonitor.isAlarmed());
+    }
+
+    private boolean isStopping() {
+        if (stopping != null && (stopping.isDone() || System.currentTimeMillis() >= stopDeadline)) {
+            stopping = null;
+        }
+        return stopping != null;
+    }
+
+    private int pendingBytes() {
+        lock.lock();
+        try {
+            return pendingLength;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Resume a paused connection, handling the lines it left unprocessed first. A connection that still has to
+     * pause registers itself with the loop again.
+     */
+    void resume() {
+        if (key.isValid()) {
+            handleInput();
+        }
+    }
+
+    private void updateInterest() {
+        if (!key.isValid()) {
+            return;
+        }
+        boolean paused = mustPause();
+        boolean writing = pendingBytes() > 0;
+        key.interestOps((paused ? 0 : SelectionKey.OP_READ) | (writing ? SelectionKey.OP_WRITE : 0));
+        if (paused) {
+            loop.paused(this);
+        }
+    }
+
+    @Override
+    public void reply(String line) {
+        lock.lock();
+        try {
+            if (binary) {
+                append(SmqpFrame.encode(SmqpFrame.REPLY, line), false);
+            } else {
+                append(line.equals("ok") ? OK : line.getBytes(StandardCharsets.UTF_8), true);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!loop.inLoop()) {
+            requestFlush();
+        }
+    }
+
+    @Override
+    public void switchToBinary() {
+        lock.lock();
+        try {
+            binary = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void deliver(List<Message> batch, long firstTag) throws IOException {
+        lock.lock();
+        try {
+            while (pendingLength > OUTPUT_LIMIT && !closed && !deliveryCancelled) {
+                drained.await(10, TimeUnit.MILLISECONDS);
+            }
+            if (closed) {
+                throw new IOException("connection closed");
+            }
+            long tag = firstTag;
+            for (Message message : batch) {
+                if (binary) {
+                    ensurePending(SmqpFrame.DELIVER_HEADER_SIZE + message.getPayloadLength());
+                    ByteBuffer target = ByteBuffer.wrap(pending);
+                    SmqpFrame.putDeliverHeader(target.position(pendingLength), message.getPayloadLength(),
+                            tag > 0 ? tag++ : 0);
+                    message.copyPayload(target, target.position());
+                    pendingLength = target.position() + message.getPayloadLength();
+                    continue;
+                }
+                if (tag > 0) {
+                    byte[] digits = Long.toString(tag++).getBytes(StandardCharsets.US_ASCII);
+                    ensurePending(digits.length + 1);
+                    System.arraycopy(digits, 0, pending, pendingLength, digits.length);
+                    pendingLength += digits.length;
+                    pending[pendingLength++] = ' ';
+                }
+                ensurePending(message.getPayloadLength() + 1);
+                message.copyPayload(ByteBuffer.wrap(pending), pendingLength);
+                pendingLength += message.getPayloadLength();
+                pending[pendingLength++] = '\n';
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while delivering", e);
+        } finally {
+            lock.unlock();
+        }
+        requestFlush();
+    }
+
+    @Override
+    public void awaitDeliveryEnd(QueueConsumer consumer) {
+        stopping = consumer.termination();
+        stopDeadline = System.currentTimeMillis() + STOP_TIMEOUT_MS;
+        stopping.thenRun(() -> loop.requestResume(this));
+    }
+
+    @Override
+    public void runBlocking(Runnable publish) {
+        publishing = true;
+        Thread.ofVirtual().name("smqp-publish").start(() -> {
+            try {
+                publish.run();
+            } finally {
+                publishing = false;
+                loop.requestResume(this);
+            }
+        });
+    }
+
+    @Override
+    public void deliveryStarted() {
+        lock.lock();
+        try {
+            deliveryCancelled = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void deliveryCancelled() {
+        lock.lock();
+        try {
+            deliveryCancelled = true;
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Append bytes to the pending output, followed by a line break in text mode. The lock is held by the caller.
+     */
+    private void append(byte[] bytes, boolean lineBreak) {
+        ensurePending(bytes.length + 1);
+        System.arraycopy(bytes, 0, pending, pendingLength, bytes.length);
+        pendingLength += bytes.length;
+        if (lineBreak) {
+            pending[pendingLength++] = '\n';
+        }
+    }
+
+    private void ensurePending(int bytes) {
+        if (pendingLength + bytes > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + bytes));
+        }
+    }
+
+    private void requestFlush() {
+        if (flushRequested.compareAndSet(false, true)) {
+            loop.requestFlush(this);
+        }
+    }
+
+    /**
+     * Write as much pending output as the channel takes, using the loop's buffer. Runs on the loop thread.
+     */
+    void flush() {
+        flushRequested.set(false);
+        ByteBuffer buffer = loop.writeBuffer();
+        boolean wasBackedUp;
+        boolean failed = false;
+        lock.lock();
+        try {
+            wasBackedUp = pendingLength > OUTPUT_LIMIT;
+            int written = 0;
+            try {
+                while (written < pendingLength && !closed) {
+                    buffer.clear();
+                    int chunk = Math.min(buffer.capacity(), pendingLength - written);
+                    buffer.put(pending, written, chunk).flip();
+                    int n = channel.write(buffer);
+                    written += n;
+                    if (n < chunk) {
+                        break; // the socket buffer is full, continue when the channel is writable again
+                    }
+                }
+            } catch (IOException e) {
+                failed = true;
+            }
+            System.arraycopy(pending, written, pending, 0, pendingLength - written);
+            pendingLength -= written;
+            if (pendingLength <= OUTPUT_LIMIT) {
+                drained.signalAll();
+            }
+            if (pendingLength == 0 && pending.length > OUTPUT_LIMIT) {
+                pending = new byte[INITIAL_BUFFER_SIZE]; // do not keep a burst's buffer around
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (failed) {
+            close();
+            return;
+        }
+        if (wasBackedUp && pendingBytes() <= OUTPUT_LIMIT) {
+            resume();
+            return;
+        }
+        updateInterest();
+    }
+
+    /**
+     * Close the channel and end the session, stopping an active subscription
+     */
+    void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        if (session != null) {
+            session.close();
+        }
+    }
+}
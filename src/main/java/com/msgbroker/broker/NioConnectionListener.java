@@ -0,0 +1,74 @@
+package com.msgbroker.broker;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.function.Consumer;
+
+/**
+ * Accepts SMQP connections and spreads them round-robin over a fixed number of {@link NioEventLoop}s, each running
+ * on its own platform thread, instead of serving every connection on a thread of its own
+ */
+public class NioConnectionListener implements IConnectionListener {
+
+    private final int port;
+    private final NioEventLoop[] loops;
+    private final Thread[] loopThreads;
+    private volatile ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
+
+    /**
+     * @param loops number of event loops, 0 for one per available processor
+     */
+    public NioConnectionListener(int port, BrokerState brokerState, Consumer<String> monitoringCallback, int loops) {
+        this.port = port;
+        int count = loops > 0 ? loops : Runtime.getRuntime().availableProcessors();
+        this.loops = new NioEventLoop[count];
+        this.loopThreads = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            this.loops[i] = new NioEventLoop(brokerState, monitoringCallback);
+            this.loopThreads[i] = Thread.ofPlatform().name("smqp-io-" + i).daemon().unstarted(this.loops[i]);
+        }
+    }
+
+    @Override
+    public void run() {
+        for (Thread thread : loopThreads) {
+            thread.start();
+        }
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            int next = 0;
+            while (running && serverChannel.isOpen()) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+                    loops[next].register(channel);
+                    next = (next + 1) % loops.length;
+                } catch (IOException e) {
+                    if (running) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        try {
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (NioEventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.msgbroker.broker;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Serves many SMQP connections on one platform thread with a {@link Selector}.
+ * <p>
+ * Connections are handed over by the {@link NioConnectionListener} and registered on the loop thread. All reads
+ * and writes of the loop's connections go through the two direct buffers the loop owns, so a connection only keeps
+ * heap buffers for the bytes it has not handled or written yet. Other threads that produce output for a connection,
+ * such as its consumer, queue a flush request and wake the selector up. Nothing on the loop thread may block: a
+ * connection that waits for a publish running on another thread or for its stopped consumer pauses instead, and
+ * queues a resume request once that is done. Other connections that stopped reading are checked every
+ * {@value MemoryMonitor#DEFAULT_CHECK_INTERVAL_MS} ms and resumed once they may read again.
+ * <p>
+ * An unexpected exception while handling a connection only closes that connection, never the loop.
+ */
+class NioEventLoop implements Runnable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final BrokerState brokerState;
+    private final Consumer<String> monitoringCallback;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ConcurrentLinkedQueue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<NioConnection> flushRequests = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<NioConnection> resumeRequests = new ConcurrentLinkedQueue<>();
+    // Only touched by the loop thread
+    private final Set<NioConnection> paused = new HashSet<>();
+    private volatile Thread thread;
+    private volatile boolean running = true;
+
+    NioEventLoop(BrokerState brokerState, Consumer<String> monitoringCallback) {
+        this.brokerState = brokerState;
+        this.monitoringCallback = monitoringCallback;
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Hand an accepted connection over to the loop
+     */
+    void register(SocketChannel channel) {
+        registrations.offer(channel);
+        selector.wakeup();
+    }
+
+    void requestFlush(NioConnection connection) {
+        flushRequests.offer(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Resume a paused connection on the loop thread, once what it waited for on another thread is done
+     */
+    void requestResume(NioConnection connection) {
+        resumeRequests.offer(connection);
+        selector.wakeup();
+    }
+
+    void paused(NioConnection connection) {
+        paused.add(connection);
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    ByteBuffer writeBuffer() {
+        return writeBuffer;
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (running) {
+                if (paused.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.select(MemoryMonitor.DEFAULT_CHECK_INTERVAL_MS);
+                    resumePaused();
+                }
+                registerAccepted();
+                flushRequested();
+                resumeRequested();
+                handleSelected();
+            }
+        } catch (IOException e) {
+            if (running) {
+                e.printStackTrace();
+            }
+        } finally {
+            closeConnections();
+        }
+    }
+
+    private void registerAccepted() {
+        SocketChannel channel;
+        while ((channel = registrations.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioConnection connection = new NioConnection(this, channel, key, brokerState.getMemoryMonitor());
+                key.attach(connection);
+                try {
+                    connection.start(new SmqpSession(brokerState, monitoringCallback, connection));
+                } catch (RuntimeException e) {
+                    fail(connection, e);
+                }
+            } catch (IOException | RuntimeException e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Already closed
+                }
+            }
+        }
+    }
+
+    private void flushRequested() {
+        NioConnection connection;
+        while ((connection = flushRequests.poll()) != null) {
+            try {
+                connection.flush();
+            } catch (RuntimeException e) {
+                fail(connection, e);
+            }
+        }
+    }
+
+    private void resumeRequested() {
+        NioConnection connection;
+        while ((connection = resumeRequests.poll()) != null) {
+            resume(connection);
+        }
+    }
+
+    private void handleSelected() {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            NioConnection connection = (NioConnection) key.attachment();
+            try {
+                if (key.isValid() && key.isWritable()) {
+                    connection.flush();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    connection.read(readBuffer);
+                }
+            } catch (RuntimeException e) {
+                fail(connection, e);
+            }
+        }
+    }
+
+    private void resumePaused() {
+        List<NioConnection> waiting = new ArrayList<>(paused);
+        paused.clear();
+        for (NioConnection connection : waiting) {
+            resume(connection);
+        }
+    }
+
+    private void resume(NioConnection connection) {
+        try {
+            connection.resume();
+        } catch (RuntimeException e) {
+            fail(connection, e);
+        }
+    }
+
+    /**
+     * Close a connection whose handling failed unexpectedly. The failure is confined to that connection, so the
+     * loop goes on serving the others.
+     */
+    private void fail(NioConnection connection, RuntimeException e) {
+        e.printStackTrace();
+        try {
+            connection.close();
+        } catch (RuntimeException closeFailure) {
+            closeFailure.printStackTrace();
+        }
+    }
+
+    private void closeConnections() {
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            if (key.attachment() instanceof NioConnection connection) {
+                connection.close();
+            }
+        }
+        SocketChannel channel;
+        while ((channel = registrations.poll()) != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    /**
+     * Stop the loop and close its connections
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,128 @@
+package com.msgbroker.broker;
+
+/**
+ * Optional arguments of a published message, given as {@code key=value} pairs before the routing key:
+ * <pre>
+ * publish [ttl=&lt;ms&gt;] [delay=&lt;ms&gt; | at=&lt;epoch-ms&gt;] [priority=&lt;n&gt;] &lt;routing-key&gt; &lt;message&gt;
+ * </pre>
+ *
+ * @param ttl       milliseconds after delivery from which the message is dropped from its queues (0 means never)
+ * @param delay     milliseconds to hold the message back before it is routed (0 means no delay)
+ * @param deliverAt time in milliseconds since the epoch at which the message is routed (0 means now)
+ * @param priority  priority from 0 to {@link Message#MAX_PRIORITY}, honoured by queues declared with a max-priority
+ */
+public record PublishArguments(long ttl, long delay, long deliverAt, int priority) {
+
+    public static final PublishArguments DEFAULT = new PublishArguments(0, 0, 0, 0);
+
+    // Prefixes of the known arguments, any other token is the routing key even if it contains '='
+    private static final String[] ARGUMENT_PREFIXES = {"ttl=", "delay=", "at=", "priority="};
+
+    /**
+     * Whether a token of a publish command is an argument rather than the routing key
+     */
+    public static boolean isArgument(String token) {
+        for (String prefix : ARGUMENT_PREFIXES) {
+            if (token.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether a token of a publish command, given as its bytes, is an argument rather than the routing key
+     */
+    public static boolean isArgument(byte[] line, int start, int end) {
+        for (String prefix : ARGUMENT_PREFIXES) {
+            if (end - start >= prefix.length() && startsWith(line, start, prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWith(byte[] line, int start, String prefix) {
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line[start + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse the arguments of a published message
+     *
+     * @param options the whitespace separated options, may be null or empty
+     * @throws IllegalArgumentException if an option is unknown or has an invalid value
+     */
+    public static PublishArguments parse(String options) {
+        if (options == null || options.isBlank()) {
+            return DEFAULT;
+        }
+
+        long ttl = DEFAULT.ttl;
+        long delay = DEFAULT.delay;
+        long deliverAt = DEFAULT.deliverAt;
+        int priority = DEFAULT.priority;
+
+        for (String option : options.trim().split("\\s+")) {
+            int eq = option.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("invalid publish argument " + option);
+            }
+            String key = option.substring(0, eq);
+            String value = option.substring(eq + 1);
+            switch (key) {
+                case "ttl" -> ttl = parseMillis(key, value);
+                case "delay" -> delay = parseMillis(key, value);
+                case "at" -> deliverAt = parseMillis(key, value);
+                case "priority" -> priority = parsePriority(key, value);
+                default -> throw new IllegalArgumentException("unknown publish argument " + key);
+            }
+        }
+        if (delay > 0 && deliverAt > 0) {
+            throw new IllegalArgumentException("delay and at cannot be combined");
+        }
+        return new PublishArguments(ttl, delay, deliverAt, priority);
+    }
+
+    /**
+     * Time at which a message published now is routed
+     *
+     * @return the delivery time in milliseconds since the epoch, or {@code now} if the message is not delayed; a
+     * delay reaching beyond {@link Long#MAX_VALUE} saturates there instead of wrapping around into the past
+     */
+    public long deliveryTime(long now) {
+        if (delay > 0) {
+            long deliverAt = now + delay;
+            return deliverAt < now ? Long.MAX_VALUE : deliverAt;
+        }
+        return Math.max(now, deliverAt);
+    }
+
+    private static int parsePriority(String key, String value) {
+        try {
+            int priority = Integer.parseInt(value);
+            if (priority < 0 || priority > Message.MAX_PRIORITY) {
+                throw new IllegalArgumentException("invalid value for " + key);
+            }
+            return priority;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid value for " + key);
+        }
+    }
+
+    private static long parseMillis(String key, String value) {
+        try {
+            long millis = Long.parseLong(value);
+            if (millis < 0) {
+                throw new IllegalArgumentException("invalid value for " + key);
+            }
+            return millis;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid value for " + key);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.msgbroker.broker;
+
+import com.msgbroker.broker.enums.OverflowPolicy;
+import com.msgbroker.broker.enums.QueueEngine;
+
+import java.util.StringJoiner;
+
+/**
+ * Optional arguments of a queue declaration, given as {@code key=value} pairs after the queue name:
+ * <pre>
+ * queue &lt;name&gt; [max-length=&lt;n&gt;] [max-bytes=&lt;n&gt;] [overflow=block|reject|drop-head]
+ *     [engine=deque|ring|offheap] [durable=true|false] [ttl=&lt;ms&gt;] [max-priority=&lt;n&gt;]
+ * </pre>
+ *
+ * @param maxLength maximum number of queued messages (0 means unbounded)
+ * @param maxBytes  maximum number of queued payload bytes (0 means unbounded)
+ * @param overflow  what happens to a message that exceeds one of the limits
+ * @param engine    the storage engine, or null to use the broker-wide default
+ * @param durable   whether messages are kept in a log on disk and survive a restart (replaces the engine)
+ * @param ttl         milliseconds after publishing from which a message is dropped from the queue (0 means never)
+ * @param maxPriority highest message priority the queue orders by, up to {@link Message#MAX_PRIORITY}
+ *                    (0 means first in, first out; replaces the engine and cannot be combined with durable)
+ */
+public record QueueArguments(int maxLength, long maxBytes, OverflowPolicy overflow, QueueEngine engine,
+                             boolean durable, long ttl, int maxPriority) {
+
+    public static final QueueArguments DEFAULT = new QueueArguments(0, 0, OverflowPolicy.DROP_HEAD, null, false, 0, 0);
+
+    /**
+     * Parse the arguments of a queue declaration
+     *
+     * @param options the whitespace separated options, may be null or empty
+     * @throws IllegalArgumentException if an option is unknown or has an invalid value
+     */
+    public static QueueArguments parse(String options) {
+        if (options == null || options.isBlank()) {
+            return DEFAULT;
+        }
+
+        int maxLength = DEFAULT.maxLength;
+        long maxBytes = DEFAULT.maxBytes;
+        OverflowPolicy overflow = DEFAULT.overflow;
+        QueueEngine engine = DEFAULT.engine;
+        boolean durable = DEFAULT.durable;
+        long ttl = DEFAULT.ttl;
+        int maxPriority = DEFAULT.maxPriority;
+
+        for (String option : options.trim().split("\\s+")) {
+            int eq = option.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("invalid queue argument " + option);
+            }
+            String key = option.substring(0, eq);
+            String value = option.substring(eq + 1);
+            switch (key) {
+                case "max-length" -> maxLength = (int) parseLimit(key, value);
+                case "max-bytes" -> maxBytes = parseLimit(key, value);
+                case "overflow" -> overflow = OverflowPolicy.fromProtocolName(value);
+                case "engine" -> engine = QueueEngine.fromProtocolName(value);
+                case "durable" -> durable = parseFlag(key, value);
+                case "ttl" -> ttl = parseLimit(key, value);
+                case "max-priority" -> maxPriority = parsePriority(key, value);
+                default -> throw new IllegalArgumentException("unknown queue argument " + key);
+            }
+        }
+        if (durable && maxPriority > 0) {
+            throw new IllegalArgumentException("durable and max-priority cannot be combined");
+        }
+        return new QueueArguments(maxLength, maxBytes, overflow, engine, durable, ttl, maxPriority);
+    }
+
+    private static int parsePriority(String key, String value) {
+        try {
+            int priority = Integer.parseInt(value);
+            if (priority < 0 || priority > Message.MAX_PRIORITY) {
+                throw new IllegalArgumentException("invalid value for " + key);
+            }
+            return priority;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid value for " + key);
+        }
+    }
+
+    private static boolean parseFlag(String key, String value) {
+        return switch (value) {
+            case "true" -> true;
+            case "false" -> false;
+            default -> throw new IllegalArgumentException("invalid value for " + key);
+        };
+    }
+
+    private static long parseLimit(String key, String value) {
+        try {
+            long limit = Long.parseLong(value);
+            if (limit < 0 || (key.equals("max-length") && limit > Integer.MAX_VALUE)) {
+                throw new IllegalArgumentException("invalid value for " + key);
+            }
+            return limit;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid value for " + key);
+        }
+    }
+
+    /**
+     * Format the arguments as declaration options, parsing them again yields equal arguments
+     */
+    public String format() {
+        StringJoiner options = new StringJoiner(" ");
+        if (maxLength > 0) {
+            options.add("max-length=" + maxLength);
+        }
+        if (maxBytes > 0) {
+            options.add("max-bytes=" + maxBytes);
+        }
+        if (overflow != DEFAULT.overflow) {
+            options.add("overflow=" + overflow.protocolName());
+        }
+        if (engine != null) {
+            options.add("engine=" + engine.protocolName());
+        }
+        if (durable) {
+            options.add("durable=true");
+        }
+        if (ttl > 0) {
+            options.add("ttl=" + ttl);
+        }
+        if (maxPriority > 0) {
+            options.add("max-priority=" + maxPriority);
+        }
+        return options.toString();
+    }
+
+    /**
+     * Time at which a message expires in this queue
+     *
+     * @param message the message, which may carry its own, earlier expiry
+     * @return the expiry time in milliseconds since the epoch, 0 if the message does not expire
+     */
+    public long expiresAt(Message message) {
+        long expiresAt = message.getExpiresAt();
+        if (ttl > 0) {
+            long queueExpiry = Message.expiryAfter(message.getTimestamp(), ttl);
+            expiresAt = expiresAt == 0 ? queueExpiry : Math.min(expiresAt, queueExpiry);
+        }
+        return expiresAt;
+    }
+
+    public boolean isBounded() {
+        return maxLength > 0 || maxBytes > 0;
+    }
+}
@@ -0,0 +1,269 @@
+package com.msgbroker.broker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Delivers the messages of a queue to one subscribed connection.
+ * <p>
+ * The consumer registers itself with its queue and parks its delivery thread while the queue is empty. The queue
+ * wakes it up when messages arrive, and {@link #cancel()} wakes it up to exit, so an idle subscription does not
+ * use any CPU and delivery is not delayed by a poll interval.
+ * <p>
+ * Once woken up, the consumer drains up to a number of messages or payload bytes and hands them to its
+ * {@link Delivery} as one batch, so a subscriber that is catching up on a backlog is flushed once per batch
+ * instead of once per message.
+ * <p>
+ * Several consumers of the same queue compete for its messages. The queue wakes them in round-robin order, and a
+ * consumer that leaves messages behind passes the turn on to the next one instead of draining the queue alone.
+ * With a prefetch count, a consumer takes at most that many messages that are not settled yet; it is skipped by
+ * the queue while its window is full and asks for more work once messages are settled.
+ * <p>
+ * Without acknowledgements, a message is settled as soon as it is written. With manual acknowledgements, every
+ * delivered message gets a delivery tag and stays in the consumer's {@link UnackedMessages} until it is
+ * acknowledged with {@link #ack(long)}, which settles it together with every message delivered before it. A durable
+ * queue keeps a message in its log until it is settled. Messages
+ * that are still unacknowledged when the consumer stops are put back at the head of the queue for redelivery.
+ */
+public class QueueConsumer implements Runnable {
+
+    /**
+     * Where the consumer writes the messages to
+     */
+    public interface Delivery {
+        /**
+         * Write a batch of messages in queue order, flushing once at the end
+         *
+         * @param firstTag delivery tag of the first message, the following messages have consecutive tags; 0 if the
+         *                 consumer does not use acknowledgements
+         */
+        void write(List<Message> batch, long firstTag) throws IOException;
+    }
+
+    private final MessageQueue queue;
+    private final Delivery delivery;
+    private final int batchMessages;
+    private final long batchBytes;
+    private final int prefetch;
+    // Null if messages are settled as soon as they are written
+    private final UnackedMessages unacked;
+    private final AtomicInteger unsettled = new AtomicInteger();
+    private final AtomicBoolean signalled = new AtomicBoolean(true); // drain whatever is queued at start
+    private volatile boolean cancelled;
+    private volatile Thread thread;
+    private final CompletableFuture<Void> terminated = new CompletableFuture<>();
+
+    /**
+     * @param batchMessages maximum number of messages per batch
+     * @param batchBytes    payload bytes after which a batch is closed, 0 for no limit
+     */
+    public QueueConsumer(MessageQueue queue, Delivery delivery, int batchMessages, long batchBytes) {
+        this(queue, delivery, batchMessages, batchBytes, SubscriptionArguments.DEFAULT);
+    }
+
+    public QueueConsumer(MessageQueue queue, Delivery delivery, int batchMessages, long batchBytes,
+                         SubscriptionArguments arguments) {
+        this.queue = queue;
+        this.delivery = delivery;
+        this.batchMessages = Math.max(1, batchMessages);
+        this.batchBytes = batchBytes;
+        this.prefetch = arguments.prefetch();
+        this.unacked = arguments.manualAck() ? new UnackedMessages() : null;
+    }
+
+    /**
+     * Register with the queue and start delivering on a new virtual thread
+     */
+    public void start() {
+        queue.addConsumer(this);
+        thread = Thread.ofVirtual().start(this);
+    }
+
+    /**
+     * Whether the consumer can take another message without exceeding its prefetch count
+     */
+    boolean hasCredit() {
+        return prefetch <= 0 || unsettled.get() < prefetch;
+    }
+
+    /**
+     * Number of messages taken by the consumer that are not settled yet
+     */
+    public int getUnsettled() {
+        return unsettled.get();
+    }
+
+    /**
+     * Payload bytes of the messages delivered by this consumer that are not acknowledged yet
+     */
+    public long getUnackedBytes() {
+        return unacked != null ? unacked.getBytes() : 0;
+    }
+
+    /**
+     * Acknowledge the message with the given delivery tag and every message delivered before it
+     *
+     * @return the number of messages acknowledged by this call
+     * @throws IllegalArgumentException if no message with the tag was delivered
+     * @throws IllegalStateException    if the consumer does not use acknowledgements
+     */
+    public int ack(long tag) {
+        if (unacked == null) {
+            throw new IllegalStateException("subscription does not use acknowledgements");
+        }
+        int acked = unacked.ackUpTo(tag, queue::settle);
+        if (acked > 0) {
+            settle(acked);
+        }
+        return acked;
+    }
+
+    /**
+     * Called by the queue when new messages are available
+     */
+    void messagesAvailable() {
+        signalled.set(true);
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Stop delivering. A message that is being written is completed, no further message is taken afterwards.
+     */
+    public void cancel() {
+        cancelled = true;
+        queue.removeConsumer(this);
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Wait for the delivery thread to finish after {@link #cancel()}
+     */
+    public void awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        Thread t = thread;
+        if (t != null) {
+            t.join(unit.toMillis(timeout));
+        }
+    }
+
+    /**
+     * Completed once the delivery thread has finished after {@link #cancel()}, for callers that must not wait for it
+     */
+    public CompletableFuture<Void> termination() {
+        return terminated;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public void run() {
+        try {
+            deliver();
+        } finally {
+            terminated.complete(null);
+        }
+    }
+
+    private void deliver() {
+        List<Message> batch = new ArrayList<>(Math.min(batchMessages, 1024));
+        try {
+            while (!cancelled) {
+                if (!signalled.getAndSet(false)) {
+                    // A signal arriving after the check unparks immediately, so no wake-up is lost
+                    LockSupport.park(this);
+                    continue;
+                }
+                drain(batch);
+                if (!queue.isEmpty()) {
+                    queue.signalConsumer(); // hand the rest to the next consumer in turn
+                }
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                if (cancelled) {
+                    unsettled.addAndGet(-batch.size());
+                    queue.putBack(batch); // taken after stop, leave them at the head for the next consumer
+                    break;
+                }
+                long firstTag = 0;
+                if (unacked != null) {
+                    firstTag = unacked.add(batch.get(0));
+                    for (int i = 1; i < batch.size(); i++) {
+                        unacked.add(batch.get(i));
+                    }
+                }
+                delivery.write(batch, firstTag);
+                if (unacked == null) {
+                    settleAll(batch);
+                }
+                batch.clear();
+            }
+        } catch (IOException e) {
+            // Connection closed while delivering; without acknowledgements the batch is lost as before
+            cancel();
+            if (unacked == null) {
+                settleAll(batch);
+            }
+        }
+        if (unacked != null) {
+            requeueUnacked();
+        }
+    }
+
+    /**
+     * Give messages that were never acknowledged back to the queue, to be redelivered to the next consumer
+     */
+    private void requeueUnacked() {
+        List<Message> messages = unacked.removeAll();
+        if (!messages.isEmpty()) {
+            unsettled.addAndGet(-messages.size());
+            queue.requeue(messages);
+        }
+    }
+
+    /**
+     * Take messages until the queue is empty, the batch is full, the prefetch window is used up or the consumer
+     * is cancelled
+     */
+    private void drain(List<Message> batch) {
+        int limit = batchMessages;
+        if (prefetch > 0) {
+            limit = Math.min(limit, prefetch - unsettled.get());
+        }
+        long bytes = 0;
+        Message message;
+        while (batch.size() < limit && (batchBytes <= 0 || bytes < batchBytes) && !cancelled
+                && (message = queue.pollUnsettled()) != null) {
+            batch.add(message);
+            bytes += message.getPayloadLength();
+        }
+        unsettled.addAndGet(batch.size());
+    }
+
+    /**
+     * Settle a written batch with the queue and release it from the prefetch window
+     */
+    private void settleAll(List<Message> batch) {
+        for (Message message : batch) {
+            queue.settle(message);
+        }
+        settle(batch.size());
+    }
+
+    /**
+     * Release messages from the prefetch window once they are delivered
+     */
+    private void settle(int messages) {
+        unsettled.addAndGet(-messages);
+        if (prefetch > 0 && !queue.isEmpty()) {
+            queue.signalConsumer(); // skipped consumers may be waiting for this window to open
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.msgbroker.broker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of resolved routes, mapping a routing key to the flattened array of target queues.
+ * <p>
+ * Entries are tagged with the bind epoch of the owning exchange at resolution time. Once the exchange bumps its
+ * epoch (on every binding change), older entries are treated as misses and overwritten on the next lookup.
+ * When the cache is full it is cleared instead of tracking recency, which keeps lookups free of bookkeeping.
+ */
+public class RouteCache {
+
+    private final int capacity;
+    private final ConcurrentHashMap<String, Entry> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public RouteCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Look up the cached route for a routing key
+     *
+     * @return the target queues, or null if there is no entry for the current epoch
+     */
+    public MessageQueue[] get(String routingKey, long epoch) {
+        if (capacity <= 0) {
+            return null;
+        }
+        Entry entry = entries.get(routingKey);
+        if (entry != null && entry.epoch == epoch) {
+            hits.increment();
+            return entry.queues;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Store the route resolved for a routing key at the given epoch
+     */
+    public void put(String routingKey, long epoch, MessageQueue[] queues) {
+        if (capacity <= 0) {
+            return;
+        }
+        if (entries.size() >= capacity && !entries.containsKey(routingKey)) {
+            entries.clear();
+        }
+        entries.put(routingKey, new Entry(epoch, queues));
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private record Entry(long epoch, MessageQueue[] queues) {
+    }
+}
@@ -0,0 +1,809 @@
+package com.msgbroker.broker;
+
+import com.msgbroker.config.BrokerTuningConfig;
+import com.msgbroker.connection.SmqpFrame;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * SMQP protocol state of a single client connection, independent of how the connection is read and written.
+ * <p>
+ * The transport passes every line it reads to {@link #handle(byte[], int, int)} in order, where it is tokenized in
+ * place, and writes replies and deliveries through the session's {@link Output}. Once the client switched to binary
+ * framing with the {@code binary} command, the transport reads {@link SmqpFrame}s instead and passes them to
+ * {@link #handleFrame(ByteBuffer)}. While a subscription is active, messages are delivered from the consumer's own
+ * thread, and the session only accepts {@code ack} and {@code stop}.
+ * <p>
+ * After the {@code confirm} command, publishes are not answered one by one. They are numbered from 1, and the
+ * session answers them with {@code ok <seq>}, confirming every publish up to that number, once the transport calls
+ * {@link #flushConfirms()} because it has no further commands buffered, or before any other reply. A publish that
+ * fails is answered with {@code error <seq> <reason>} right after confirming the ones before it. A publish-batch
+ * command is answered as a whole and takes a single sequence number.
+ */
+public class SmqpSession {
+
+    // Largest number of messages of a text publish-batch command
+    private static final int MAX_BATCH_SIZE = 65536;
+    /**
+     * Longest accepted text line, as long as the largest frame. The transports disconnect a client that sends a
+     * longer one instead of buffering it.
+     */
+    static final int MAX_LINE_LENGTH = SmqpFrame.MAX_LENGTH;
+    private static final byte[] PUBLISH_COMMAND = "publish".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ACK_COMMAND = "ack".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] STOP_COMMAND = "stop".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Where the session writes replies and delivered messages to
+     */
+    public interface Output {
+        /**
+         * Write a reply line
+         */
+        void reply(String line);
+
+        /**
+         * Write a batch of delivered messages, one per line, preceded by their delivery tags if the first tag is
+         * not 0. Called from the consumer's thread.
+         */
+        void deliver(List<Message> batch, long firstTag) throws IOException;
+
+        /**
+         * Encode all further replies and deliveries as {@link SmqpFrame}s, called after the reply to {@code binary}
+         */
+        void switchToBinary();
+
+        /**
+         * Called when a subscription starts delivering
+         */
+        default void deliveryStarted() {
+        }
+
+        /**
+         * Called when a subscription is cancelled, a delivery that waits for the client must complete right away
+         */
+        default void deliveryCancelled() {
+        }
+
+        /**
+         * Called after a subscription is stopped. No further command may be handed to the session before the
+         * consumer finished delivering, so that replies follow the last delivered message. The default waits for
+         * that on the calling thread, for at most a second.
+         */
+        default void awaitDeliveryEnd(QueueConsumer consumer) {
+            try {
+                consumer.awaitTermination(1000, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Run a publish whose routing may block, see {@link Exchange#mayBlock()}. No further command may be handed
+         * to the session, and {@link #flushConfirms()} may not be called, before the publish completed. The default
+         * runs it right away on the calling thread.
+         */
+        default void runBlocking(Runnable publish) {
+            publish.run();
+        }
+    }
+
+    private final BrokerState brokerState;
+    private final Consumer<String> monitoringCallback;
+    private final Output output;
+
+    private Exchange currentExchange;
+    private MessageQueue currentQueue;
+    // Set once the connection publishes, only publishing connections are paused by the memory alarm
+    private boolean publisher;
+    private boolean binary;
+    // With publisher confirms, publishes are numbered from 1 and answered by cumulative "ok <seq>" replies
+    private boolean confirms;
+    private long publishSeq;
+    private long confirmedSeq;
+    private QueueConsumer consumer;
+    private SubscriptionArguments subscription;
+    // Messages of a publish-batch command that are still being read
+    private PublishBatch batch;
+    private byte[] lastRoutingKeyBytes = new byte[0];
+    private String lastRoutingKey = "";
+
+    /**
+     * Messages of one publish-batch command, routed together once all of them are read
+     */
+    private static final class PublishBatch {
+        private final PublishArguments arguments;
+        private final List<String> routingKeys = new ArrayList<>();
+        private final List<byte[]> payloads = new ArrayList<>();
+        private int remaining;
+        // Reported for the whole batch once it is read, a text batch is read to its end even if it is invalid
+        private String error;
+
+        PublishBatch(PublishArguments arguments, int count) {
+            this.arguments = arguments;
+            this.remaining = count;
+        }
+
+        void add(String routingKey, byte[] payload) {
+            routingKeys.add(routingKey);
+            payloads.add(payload);
+        }
+    }
+
+    public SmqpSession(BrokerState brokerState, Consumer<String> monitoringCallback, Output output) {
+        this.brokerState = brokerState;
+        this.monitoringCallback = monitoringCallback;
+        this.output = output;
+    }
+
+    /**
+     * Send the SMQP greeting
+     */
+    public void start() {
+        output.reply("ok SMQP");
+    }
+
+    /**
+     * Whether the connection has to be paused by the memory alarm: it publishes and is not subscribed
+     */
+    public boolean isThrottled() {
+        return publisher && consumer == null;
+    }
+
+    /**
+     * Whether the client switched to binary framing
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Whether a subscription is active, during which only {@code ack} and {@code stop} are read
+     */
+    public boolean isSubscribed() {
+        return consumer != null;
+    }
+
+    /**
+     * Handle one line sent by the client, given as its UTF-8 bytes without the line break. Publishes, the lines of
+     * a batch, acks and stop are tokenized in place, so the only objects they create are the message itself and
+     * the string of a routing key that differs from the previous one. Other commands are decoded to a string.
+     * The bytes are not used after the method returns.
+     *
+     * @return false if the client ended the session
+     */
+    public boolean handle(byte[] line, int offset, int length) {
+        int end = offset + length;
+        while (end > offset && (line[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+        int start = offset;
+        while (start < end && (line[start] & 0xFF) <= ' ') {
+            start++;
+        }
+
+        if (batch != null) {
+            addToBatch(line, start, end);
+            return true;
+        }
+        if (consumer != null) {
+            handleDuringSubscription(line, start, end);
+            return true;
+        }
+        int commandEnd = tokenEnd(line, start, end);
+        if (matches(line, start, commandEnd, PUBLISH_COMMAND)) {
+            countPublish();
+            handleTextPublish(line, skipSpaces(line, commandEnd, end), end);
+            return true;
+        }
+        return handleCommand(new String(line, start, end - start, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Handle a command other than publish, trimmed
+     */
+    private boolean handleCommand(String command) {
+        String[] parts = command.split("\\s+", 3);
+        if (parts.length == 0 || parts[0].isEmpty()) {
+            return true;
+        }
+
+        switch (parts[0]) {
+            case "exchange" -> {
+                if (parts.length != 3) {
+                    reply("error usage: exchange <type> <name>");
+                    break;
+                }
+                handleExchange(parts[1], parts[2]);
+            }
+            case "queue" -> {
+                if (parts.length < 2) {
+                    reply("error usage: queue <name> [<argument>=<value> ...]");
+                    break;
+                }
+                handleQueue(parts[1], parts.length == 3 ? parts[2] : null);
+            }
+            case "bind" -> {
+                if (parts.length != 2) {
+                    reply("error usage: bind <binding-key>");
+                    break;
+                }
+                handleBind(parts[1]);
+            }
+            case "publish-batch" -> startBatch(command);
+            case "subscribe" -> handleSubscribe(command.substring(parts[0].length()));
+            case "confirm" -> handleConfirm();
+            case "stats" -> handleStats();
+            case "binary" -> {
+                reply("ok binary");
+                binary = true;
+                output.switchToBinary();
+            }
+            case "stop" -> {
+                // Only meaningful during a subscription
+            }
+            case "exit" -> {
+                reply("ok bye");
+                return false;
+            }
+            default -> reply("error unknown command");
+        }
+        return true;
+    }
+
+    /**
+     * Handle one binary frame sent by the client
+     *
+     * @param frame the frame from its opcode on, without the length prefix
+     * @return false if the client ended the session
+     */
+    public boolean handleFrame(ByteBuffer frame) {
+        byte opcode = frame.get();
+        try {
+            if (consumer != null) {
+                if (opcode == SmqpFrame.STOP) {
+                    stopSubscription();
+                } else if (opcode == SmqpFrame.ACK && subscription.manualAck()) {
+                    handleAck(frame.getLong());
+                }
+                // Ignore other commands during subscription
+                return true;
+            }
+
+            switch (opcode) {
+                case SmqpFrame.EXCHANGE -> handleExchange(SmqpFrame.getString(frame), SmqpFrame.getString(frame));
+                case SmqpFrame.QUEUE -> {
+                    String name = SmqpFrame.getString(frame);
+                    String options = SmqpFrame.getString(frame);
+                    handleQueue(name, options.isEmpty() ? null : options);
+                }
+                case SmqpFrame.BIND -> handleBind(SmqpFrame.getString(frame));
+                case SmqpFrame.PUBLISH -> {
+                    countPublish();
+                    String options = SmqpFrame.getString(frame);
+                    String routingKey = SmqpFrame.getString(frame);
+                    PublishArguments arguments;
+                    try {
+                        arguments = PublishArguments.parse(options);
+                    } catch (IllegalArgumentException e) {
+                        replyPublish(e.getMessage());
+                        break;
+                    }
+                    handlePublish(routingKey, SmqpFrame.getPayload(frame), arguments);
+                }
+                case SmqpFrame.PUBLISH_BATCH -> {
+                    countPublish();
+                    String options = SmqpFrame.getString(frame);
+                    PublishBatch frameBatch;
+                    try {
+                        frameBatch = new PublishBatch(PublishArguments.parse(options), 0);
+                    } catch (IllegalArgumentException e) {
+                        replyPublish(e.getMessage());
+                        break;
+                    }
+                    while (frame.hasRemaining()) {
+                        frameBatch.add(SmqpFrame.getString(frame), SmqpFrame.getBytes(frame));
+                    }
+                    publishBatch(frameBatch);
+                }
+                case SmqpFrame.SUBSCRIBE -> handleSubscribe(SmqpFrame.getString(frame));
+                case SmqpFrame.CONFIRM -> handleConfirm();
+                case SmqpFrame.STATS -> handleStats();
+                case SmqpFrame.STOP -> {
+                    // Only meaningful during a subscription
+                }
+                case SmqpFrame.EXIT -> {
+                    reply("ok bye");
+                    return false;
+                }
+                default -> reply("error unknown command");
+            }
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            if (opcode == SmqpFrame.PUBLISH || opcode == SmqpFrame.PUBLISH_BATCH) {
+                replyPublish("malformed frame");
+            } else {
+                reply("error malformed frame");
+            }
+        }
+        return true;
+    }
+
+    private void handleConfirm() {
+        confirms = true;
+        reply("ok");
+    }
+
+    /**
+     * Reply with the broker-wide metrics as {@code ok <name>=<value> ...}
+     */
+    private void handleStats() {
+        StringBuilder line = new StringBuilder("ok");
+        brokerState.getStats().forEach((name, value) -> line.append(' ').append(name).append('=').append(value));
+        reply(line.toString());
+    }
+
+    /**
+     * Number a publish when confirms are enabled, before anything about it can fail
+     */
+    private void countPublish() {
+        if (confirms) {
+            publishSeq++;
+        }
+    }
+
+    /**
+     * Answer a publish, or leave it to the next cumulative confirm
+     *
+     * @param error the reason the publish failed, null if it succeeded
+     */
+    private void replyPublish(String error) {
+        if (!confirms) {
+            output.reply(error == null ? "ok" : "error " + error);
+            return;
+        }
+        if (error != null) {
+            if (publishSeq - 1 > confirmedSeq) {
+                output.reply("ok " + (publishSeq - 1));
+            }
+            output.reply("error " + publishSeq + " " + error);
+            confirmedSeq = publishSeq;
+        }
+    }
+
+    /**
+     * Confirm every publish handled so far that is not confirmed yet. Called by the transport when it runs out of
+     * buffered commands, so a burst of publishes is confirmed with a single reply.
+     */
+    public void flushConfirms() {
+        if (publishSeq > confirmedSeq) {
+            output.reply("ok " + publishSeq);
+            confirmedSeq = publishSeq;
+        }
+    }
+
+    /**
+     * Write a reply that is not about a publish, after confirming the publishes before it
+     */
+    private void reply(String line) {
+        flushConfirms();
+        output.reply(line);
+    }
+
+    private void handleExchange(String type, String name) {
+        // Validate exchange type
+        if (!type.equals("direct") && !type.equals("fanout") && !type.equals("topic")
+                && !type.equals("consistent-hash") && !type.equals("default")) {
+            reply("error invalid exchange type");
+            return;
+        }
+
+        Exchange exchange = brokerState.getOrCreateExchange(name, type);
+        if (exchange == null) {
+            reply("error exchange already exists with different type");
+            return;
+        }
+
+        currentExchange = exchange;
+        reply("ok");
+    }
+
+    private void handleQueue(String name, String options) {
+        QueueArguments arguments;
+        try {
+            arguments = options != null ? QueueArguments.parse(options) : null;
+        } catch (IllegalArgumentException e) {
+            reply("error " + e.getMessage());
+            return;
+        }
+
+        MessageQueue queue;
+        try {
+            queue = brokerState.getOrCreateQueue(name, arguments);
+        } catch (UncheckedIOException e) {
+            reply("error cannot open durable queue");
+            return;
+        }
+        if (queue == null) {
+            reply("error queue already exists with different arguments");
+            return;
+        }
+
+        currentQueue = queue;
+        reply("ok");
+    }
+
+    private void handleBind(String bindingKey) {
+        if (currentExchange == null) {
+            reply("error no exchange declared");
+            return;
+        }
+        if (currentQueue == null) {
+            reply("error no queue declared");
+            return;
+        }
+        if (!currentExchange.acceptsBindingKey(bindingKey)) {
+            reply("error invalid binding key");
+            return;
+        }
+
+        currentExchange.bind(bindingKey, currentQueue);
+        reply("ok");
+    }
+
+    /**
+     * Handle the part of a publish command after {@code publish}: the routing key, or arguments in front of it,
+     * followed by the message
+     */
+    private void handleTextPublish(byte[] line, int start, int end) {
+        int keyEnd = tokenEnd(line, start, end);
+        int payloadStart = skipSpaces(line, keyEnd, end);
+        if (payloadStart == end) {
+            replyPublish("usage: publish [<argument>=<value> ...] <routing-key> <message>");
+            return;
+        }
+        if (PublishArguments.isArgument(line, start, keyEnd)) {
+            handlePublishWithArguments(new String(line, start, end - start, StandardCharsets.UTF_8));
+            return;
+        }
+        handlePublish(routingKey(line, start, keyEnd), Arrays.copyOfRange(line, payloadStart, end),
+                PublishArguments.DEFAULT);
+    }
+
+    /**
+     * Decode a routing key, reusing the string of the previous one if the bytes are the same, as they mostly are
+     * for a connection that keeps publishing
+     */
+    private String routingKey(byte[] line, int start, int end) {
+        if (!Arrays.equals(line, start, end, lastRoutingKeyBytes, 0, lastRoutingKeyBytes.length)) {
+            lastRoutingKeyBytes = Arrays.copyOfRange(line, start, end);
+            lastRoutingKey = new String(lastRoutingKeyBytes, StandardCharsets.UTF_8);
+        }
+        return lastRoutingKey;
+    }
+
+    /**
+     * Split the arguments in front of the routing key off a publish command
+     */
+    private void handlePublishWithArguments(String command) {
+        StringBuilder options = new StringBuilder();
+        String[] tokens = command.split("\\s+", 2);
+        while (tokens.length == 2 && PublishArguments.isArgument(tokens[0])) {
+            options.append(tokens[0]).append(' ');
+            tokens = tokens[1].split("\\s+", 2);
+        }
+        if (tokens.length < 2) {
+            replyPublish("usage: publish [<argument>=<value> ...] <routing-key> <message>");
+            return;
+        }
+
+        PublishArguments arguments;
+        try {
+            arguments = PublishArguments.parse(options.toString());
+        } catch (IllegalArgumentException e) {
+            replyPublish(e.getMessage());
+            return;
+        }
+        handlePublish(tokens[0], tokens[1].getBytes(StandardCharsets.UTF_8), arguments);
+    }
+
+    private void handlePublish(String routingKey, byte[] payload, PublishArguments arguments) {
+        publisher = true;
+        if (currentExchange == null) {
+            replyPublish("no exchange declared");
+            return;
+        }
+        if (isTooLong(routingKey)) {
+            replyPublish("routing key too long");
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long deliverAt = arguments.deliveryTime(now);
+        if (deliverAt > now) {
+            // Timestamp and TTL count from the delivery time
+            Message delayed = newMessage(routingKey, payload, arguments, deliverAt);
+            brokerState.getDelayedDelivery().schedule(currentExchange, delayed, deliverAt);
+            if (monitoringCallback != null) {
+                monitoringCallback.accept(routingKey);
+            }
+            replyPublish(null);
+            return;
+        }
+
+        Exchange exchange = currentExchange;
+        Message message = newMessage(routingKey, payload, arguments, now);
+        if (exchange.mayBlock()) {
+            output.runBlocking(() -> routeMessage(exchange, message));
+        } else {
+            routeMessage(exchange, message);
+        }
+    }
+
+    private void routeMessage(Exchange exchange, Message message) {
+        boolean accepted;
+        try {
+            accepted = exchange.routeMessage(message);
+        } catch (UncheckedIOException e) {
+            replyPublish("cannot write to durable queue");
+            return;
+        }
+
+        // Send monitoring data
+        if (monitoringCallback != null) {
+            monitoringCallback.accept(message.getRoutingKey());
+        }
+
+        replyPublish(accepted ? null : "queue full");
+    }
+
+    /**
+     * Whether the UTF-8 encoding of a routing key exceeds {@link Message#MAX_ROUTING_KEY_LENGTH}, which only needs
+     * to be counted for keys of more than a third of that many characters
+     */
+    private static boolean isTooLong(String routingKey) {
+        return routingKey.length() > Message.MAX_ROUTING_KEY_LENGTH / 3
+                && routingKey.getBytes(StandardCharsets.UTF_8).length > Message.MAX_ROUTING_KEY_LENGTH;
+    }
+
+    private static Message newMessage(String routingKey, byte[] payload, PublishArguments arguments, long timestamp) {
+        return new Message(routingKey, payload, timestamp, Message.expiryAfter(timestamp, arguments.ttl()),
+                arguments.priority());
+    }
+
+    /**
+     * Start reading the messages of a {@code publish-batch [<argument>=<value> ...] <count>} command, which follow
+     * as {@code <routing-key> <message>} lines. The arguments apply to every message of the batch.
+     */
+    private void startBatch(String command) {
+        countPublish();
+        String[] tokens = command.split("\\s+");
+        int count;
+        try {
+            count = tokens.length >= 2 ? Integer.parseInt(tokens[tokens.length - 1]) : 0;
+        } catch (NumberFormatException e) {
+            count = 0;
+        }
+        if (count < 1 || count > MAX_BATCH_SIZE) {
+            replyPublish("usage: publish-batch [<argument>=<value> ...] <count>");
+            return;
+        }
+
+        String options = String.join(" ", Arrays.copyOfRange(tokens, 1, tokens.length - 1));
+        try {
+            batch = new PublishBatch(PublishArguments.parse(options), count);
+        } catch (IllegalArgumentException e) {
+            batch = new PublishBatch(PublishArguments.DEFAULT, count);
+            batch.error = e.getMessage();
+        }
+    }
+
+    private void addToBatch(byte[] line, int start, int end) {
+        int keyEnd = tokenEnd(line, start, end);
+        int payloadStart = skipSpaces(line, keyEnd, end);
+        if (payloadStart == end) {
+            batch.error = "usage: <routing-key> <message>";
+        } else if (keyEnd - start > Message.MAX_ROUTING_KEY_LENGTH) {
+            batch.error = "routing key too long";
+        } else if (batch.error == null) {
+            batch.add(routingKey(line, start, keyEnd), Arrays.copyOfRange(line, payloadStart, end));
+        }
+        if (--batch.remaining == 0) {
+            PublishBatch complete = batch;
+            batch = null;
+            publishBatch(complete);
+        }
+    }
+
+    /**
+     * Route all messages of a batch through the exchange in one pass and answer the batch as a whole
+     */
+    private void publishBatch(PublishBatch complete) {
+        publisher = true;
+        if (complete.error != null) {
+            replyPublish(complete.error);
+            return;
+        }
+        if (currentExchange == null) {
+            replyPublish("no exchange declared");
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long deliverAt = complete.arguments.deliveryTime(now);
+        List<Message> messages = new ArrayList<>(complete.routingKeys.size());
+        for (int i = 0; i < complete.routingKeys.size(); i++) {
+            messages.add(newMessage(complete.routingKeys.get(i), complete.payloads.get(i), complete.arguments,
+                    Math.max(now, deliverAt)));
+        }
+
+        if (deliverAt > now) {
+            for (Message message : messages) {
+                brokerState.getDelayedDelivery().schedule(currentExchange, message, deliverAt);
+            }
+            monitorBatch(messages);
+            replyPublish(null);
+            return;
+        }
+        Exchange exchange = currentExchange;
+        if (exchange.mayBlock()) {
+            output.runBlocking(() -> routeBatch(exchange, messages));
+        } else {
+            routeBatch(exchange, messages);
+        }
+    }
+
+    private void routeBatch(Exchange exchange, List<Message> messages) {
+        boolean accepted;
+        try {
+            accepted = exchange.routeBatch(messages);
+        } catch (UncheckedIOException e) {
+            replyPublish("cannot write to durable queue");
+            return;
+        }
+        monitorBatch(messages);
+        replyPublish(accepted ? null : "queue full");
+    }
+
+    /**
+     * The monitoring protocol counts single messages
+     */
+    private void monitorBatch(List<Message> messages) {
+        if (monitoringCallback != null) {
+            for (Message message : messages) {
+                monitoringCallback.accept(message.getRoutingKey());
+            }
+        }
+    }
+
+    /**
+     * Start delivering messages of the current queue until the client sends stop
+     */
+    private void handleSubscribe(String options) {
+        if (currentQueue == null) {
+            reply("error no queue declared");
+            return;
+        }
+
+        SubscriptionArguments arguments;
+        try {
+            arguments = SubscriptionArguments.parse(options);
+        } catch (IllegalArgumentException e) {
+            reply("error " + e.getMessage());
+            return;
+        }
+
+        // Send acknowledgment that subscription started
+        reply("ok");
+
+        // The consumer delivers on its own virtual thread, woken up by the queue when messages arrive,
+        // and writes everything it drained in one go
+        BrokerTuningConfig tuning = brokerState.getTuning();
+        subscription = arguments;
+        consumer = new QueueConsumer(currentQueue, output::deliver, tuning.deliveryBatchMessages(),
+                tuning.deliveryBatchBytes(), arguments);
+        output.deliveryStarted();
+        consumer.start();
+    }
+
+    private void handleDuringSubscription(byte[] line, int start, int end) {
+        int commandEnd = tokenEnd(line, start, end);
+        if (commandEnd == end && matches(line, start, commandEnd, STOP_COMMAND)) {
+            stopSubscription();
+            return;
+        }
+        if (subscription.manualAck() && commandEnd < end && matches(line, start, commandEnd, ACK_COMMAND)) {
+            int tagStart = skipSpaces(line, commandEnd, end);
+            long tag = parseTag(line, tagStart, end);
+            if (tag < 0) {
+                reply("error unknown delivery tag " + new String(line, tagStart, end - tagStart, StandardCharsets.UTF_8));
+                return;
+            }
+            handleAck(tag);
+        }
+        // Ignore other commands during subscription
+    }
+
+    /**
+     * Parse a delivery tag of at most 18 digits
+     *
+     * @return the tag, or -1 if it is not a number
+     */
+    private static long parseTag(byte[] line, int start, int end) {
+        if (start == end || end - start > 18) {
+            return -1;
+        }
+        long tag = 0;
+        for (int i = start; i < end; i++) {
+            if (line[i] < '0' || line[i] > '9') {
+                return -1;
+            }
+            tag = tag * 10 + (line[i] - '0');
+        }
+        return tag;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+    }
+
+    /**
+     * @return the end of the token starting at the given position, the position of the next whitespace
+     */
+    private static int tokenEnd(byte[] line, int start, int end) {
+        int position = start;
+        while (position < end && !isSpace(line[position])) {
+            position++;
+        }
+        return position;
+    }
+
+    private static int skipSpaces(byte[] line, int start, int end) {
+        int position = start;
+        while (position < end && isSpace(line[position])) {
+            position++;
+        }
+        return position;
+    }
+
+    private static boolean matches(byte[] line, int start, int end, byte[] word) {
+        return Arrays.equals(line, start, end, word, 0, word.length);
+    }
+
+    /**
+     * Acknowledge a delivery tag and every tag before it. Acks are not answered, only an invalid tag is reported.
+     */
+    private void handleAck(long tag) {
+        try {
+            consumer.ack(tag);
+        } catch (IllegalArgumentException e) {
+            reply("error unknown delivery tag " + tag);
+        }
+    }
+
+    private void stopSubscription() {
+        QueueConsumer stopped = consumer;
+        consumer = null;
+        subscription = null;
+        stopped.cancel();
+        output.deliveryCancelled();
+        output.awaitDeliveryEnd(stopped);
+    }
+
+    /**
+     * End the session when the connection is closed, stopping an active subscription
+     */
+    public void close() {
+        if (consumer != null) {
+            stopSubscription();
+        }
+    }
+}
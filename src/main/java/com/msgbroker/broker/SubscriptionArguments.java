@@ -0,0 +1,62 @@
+package com.msgbroker.broker;
+
+/**
+ * Optional arguments of a subscription, given as {@code key=value} pairs after the subscribe command:
+ * <pre>
+ * subscribe [prefetch=&lt;n&gt;] [ack=auto|manual]
+ * </pre>
+ *
+ * @param prefetch  maximum number of messages handed to the subscriber that are not yet settled (0 means unlimited)
+ * @param manualAck whether messages are only settled when the subscriber acknowledges them, rather than once they
+ *                  are written
+ */
+public record SubscriptionArguments(int prefetch, boolean manualAck) {
+
+    public static final SubscriptionArguments DEFAULT = new SubscriptionArguments(0, false);
+
+    /**
+     * Parse the arguments of a subscription
+     *
+     * @param options the whitespace separated options, may be null or empty
+     * @throws IllegalArgumentException if an option is unknown or has an invalid value
+     */
+    public static SubscriptionArguments parse(String options) {
+        if (options == null || options.isBlank()) {
+            return DEFAULT;
+        }
+
+        int prefetch = DEFAULT.prefetch;
+        boolean manualAck = DEFAULT.manualAck;
+
+        for (String option : options.trim().split("\\s+")) {
+            int eq = option.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("invalid subscription argument " + option);
+            }
+            String key = option.substring(0, eq);
+            String value = option.substring(eq + 1);
+            switch (key) {
+                case "prefetch" -> prefetch = parseCount(key, value);
+                case "ack" -> manualAck = switch (value) {
+                    case "auto" -> false;
+                    case "manual" -> true;
+                    default -> throw new IllegalArgumentException("invalid value for " + key);
+                };
+                default -> throw new IllegalArgumentException("unknown subscription argument " + key);
+            }
+        }
+        return new SubscriptionArguments(prefetch, manualAck);
+    }
+
+    private static int parseCount(String key, String value) {
+        try {
+            int count = Integer.parseInt(value);
+            if (count < 0) {
+                throw new IllegalArgumentException("invalid value for " + key);
+            }
+            return count;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid value for " + key);
+        }
+    }
+}
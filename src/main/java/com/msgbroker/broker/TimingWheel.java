@@ -0,0 +1,180 @@
+package com.msgbroker.broker;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Broker-wide hierarchical timing wheel that runs tasks at a deadline.
+ * <p>
+ * The wheel has {@value #LEVELS} levels of {@value #SLOTS} slots. A slot of the lowest level covers one tick, a slot
+ * of the next level covers all slots of the level below, and so on. A task is placed in the lowest level whose range
+ * covers its deadline; whenever a level wraps around, the slot of the next level that is now due is emptied and its
+ * tasks are placed again, moving them down until they fire from the lowest level. Scheduling is O(1): callers only
+ * append to a lock-free intake queue, which the single timer thread moves into the wheel every tick.
+ * <p>
+ * Tasks run on the timer thread and must be short; anything that may block has to be handed off to another thread.
+ * The timer thread is started with the first scheduled task.
+ */
+public class TimingWheel implements Closeable {
+
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    // Furthest tick that can be placed, later deadlines are placed there and moved again when it is reached
+    private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private static final class Task {
+        private final long deadline;
+        private final Runnable action;
+
+        private Task(long deadline, Runnable action) {
+            this.deadline = deadline;
+            this.action = action;
+        }
+    }
+
+    private final long tickMs;
+    private final ConcurrentLinkedQueue<Task> intake = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Object startLock = new Object();
+    private volatile Thread thread;
+    private volatile boolean closed;
+
+    // Only touched by the timer thread
+    private final ArrayDeque<Task>[][] slots;
+    private long startMs;
+    private long currentTick;
+
+    public TimingWheel(long tickMs) {
+        this.tickMs = Math.max(1, tickMs);
+        @SuppressWarnings("unchecked") // the array only ever holds ArrayDeque<Task>
+        ArrayDeque<Task>[][] wheel = (ArrayDeque<Task>[][]) new ArrayDeque<?>[LEVELS][SLOTS];
+        this.slots = wheel;
+        for (ArrayDeque<Task>[] level : slots) {
+            for (int i = 0; i < SLOTS; i++) {
+                level[i] = new ArrayDeque<>();
+            }
+        }
+    }
+
+    /**
+     * Run the action once the deadline has passed, at the latest one tick later
+     *
+     * @param deadlineMs the deadline in milliseconds since the epoch
+     */
+    public void schedule(long deadlineMs, Runnable action) {
+        if (closed) {
+            return;
+        }
+        pending.incrementAndGet();
+        intake.add(new Task(deadlineMs, action));
+        if (thread == null) {
+            start();
+        }
+    }
+
+    /**
+     * Number of tasks that are scheduled and did not run yet
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    private void start() {
+        synchronized (startLock) {
+            if (thread == null && !closed) {
+                startMs = System.currentTimeMillis();
+                thread = Thread.ofPlatform().daemon().name("timing-wheel").start(this::run);
+            }
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            long now = System.currentTimeMillis();
+            long dueTick = (now - startMs) / tickMs;
+            drainIntake();
+            while (currentTick < dueTick && !closed) {
+                currentTick++;
+                advance();
+                drainIntake();
+            }
+            long nextTickMs = startMs + (currentTick + 1) * tickMs;
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.max(1, nextTickMs - System.currentTimeMillis())));
+        }
+    }
+
+    private void drainIntake() {
+        Task task;
+        while ((task = intake.poll()) != null) {
+            place(task);
+        }
+    }
+
+    private void place(Task task) {
+        long tick = Math.floorDiv(task.deadline - startMs + tickMs - 1, tickMs); // round up, never fire early
+        long delta = tick - currentTick;
+        if (delta <= 0) {
+            fire(task);
+            return;
+        }
+        delta = Math.min(delta, MAX_DELTA);
+        tick = currentTick + delta;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        slots[level][(int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK].addLast(task);
+    }
+
+    /**
+     * Move the slots of higher levels that became due one level down, then fire the slot of the current tick
+     */
+    private void advance() {
+        int wrapped = 0;
+        while (wrapped < LEVELS - 1 && (currentTick & ((1L << (SLOT_BITS * (wrapped + 1))) - 1)) == 0) {
+            wrapped++;
+        }
+        for (int level = wrapped; level > 0; level--) {
+            ArrayDeque<Task> slot = slots[level][(int) (currentTick >>> (SLOT_BITS * level)) & SLOT_MASK];
+            ArrayDeque<Task> due = new ArrayDeque<>(slot);
+            slot.clear();
+            for (Task task : due) {
+                place(task);
+            }
+        }
+        ArrayDeque<Task> slot = slots[0][(int) currentTick & SLOT_MASK];
+        Task task;
+        while ((task = slot.pollFirst()) != null) {
+            fire(task);
+        }
+    }
+
+    private void fire(Task task) {
+        pending.decrementAndGet();
+        try {
+            task.action.run();
+        } catch (RuntimeException e) {
+            // A failing task must not stop the timer
+        }
+    }
+
+    /**
+     * Stop the timer thread, tasks that did not run yet are discarded
+     */
+    @Override
+    public void close() {
+        synchronized (startLock) {
+            closed = true;
+            Thread t = thread;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.msgbroker.broker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Segment trie over topic binding keys.
+ * <p>
+ * Every binding key is split on '.' once at bind time and stored as a path of nodes. Literal segments are kept
+ * in a per-node map, while the wildcards '*' (exactly one word) and '#' (zero or more words) get dedicated child
+ * edges. Matching a routing key therefore walks the trie segment by segment instead of testing every binding.
+ */
+public class TopicTrie {
+
+    private final Node root = new Node();
+
+    /**
+     * Add a queue under the given binding key.
+     * Inserts are serialized, lookups run concurrently against the published node snapshots.
+     */
+    public synchronized void insert(String bindingKey, MessageQueue queue) {
+        Node node = root;
+        for (String segment : bindingKey.split("\\.")) {
+            node = node.child(segment);
+        }
+        node.queues = Exchange.append(node.queues, queue);
+    }
+
+    /**
+     * Collect the queues of all binding keys matching the routing key.
+     * A queue appears once per matching binding key, just like with a linear scan over the bindings.
+     */
+    public MessageQueue[] match(String routingKey) {
+        String[] routingParts = routingKey.split("\\.");
+        Set<Node> matched = Collections.newSetFromMap(new IdentityHashMap<>());
+        collect(root, routingParts, 0, matched);
+
+        if (matched.size() == 1) {
+            return matched.iterator().next().queues;
+        }
+        List<MessageQueue> result = new ArrayList<>();
+        for (Node node : matched) {
+            Collections.addAll(result, node.queues);
+        }
+        return result.toArray(Exchange.NO_QUEUES);
+    }
+
+    private void collect(Node node, String[] routingParts, int index, Set<Node> matched) {
+        Node hash = node.hash;
+        if (hash != null) {
+            // # can swallow zero or more of the remaining words
+            for (int i = index; i <= routingParts.length; i++) {
+                collect(hash, routingParts, i, matched);
+            }
+        }
+
+        if (index == routingParts.length) {
+            if (node.queues.length > 0) {
+                matched.add(node);
+            }
+            return;
+        }
+
+        Node literal = node.children.get(routingParts[index]);
+        if (literal != null) {
+            collect(literal, routingParts, index + 1, matched);
+        }
+
+        Node star = node.star;
+        if (star != null) {
+            collect(star, routingParts, index + 1, matched);
+        }
+    }
+
+    private static final class Node {
+        private final Map<String, Node> children = new ConcurrentHashMap<>();
+        private volatile MessageQueue[] queues = Exchange.NO_QUEUES;
+        private volatile Node star;
+        private volatile Node hash;
+
+        private Node child(String segment) {
+            switch (segment) {
+                case "*" -> {
+                    if (star == null) {
+                        star = new Node();
+                    }
+                    return star;
+                }
+                case "#" -> {
+                    if (hash == null) {
+                        hash = new Node();
+                    }
+                    return hash;
+                }
+                default -> {
+                    return children.computeIfAbsent(segment, k -> new Node());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.msgbroker.broker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Messages a consumer delivered that are not acknowledged yet, keyed by delivery tag.
+ * <p>
+ * Delivery tags are handed out in delivery order starting at 1 and acknowledgements are cumulative, so the
+ * unacknowledged tags always form one contiguous range. The messages are kept in a power-of-two ring indexed by
+ * the low bits of their tag: adding and acknowledging do not box tags or allocate entries, and acknowledging a
+ * range of tags only clears their slots.
+ */
+public class UnackedMessages {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Message[] ring = new Message[INITIAL_CAPACITY];
+    // Tag of the oldest unacknowledged message and the tag the next delivery gets
+    private long firstTag = 1;
+    private long nextTag = 1;
+    private long bytes;
+
+    /**
+     * Track a delivered message
+     *
+     * @return its delivery tag
+     */
+    public synchronized long add(Message message) {
+        if (nextTag - firstTag == ring.length) {
+            grow();
+        }
+        ring[index(nextTag)] = message;
+        bytes += message.getPayloadLength();
+        return nextTag++;
+    }
+
+    /**
+     * Acknowledge the message with the given tag and every message delivered before it
+     *
+     * @param acked receives every message acknowledged by this call, in delivery order
+     * @return the number of messages acknowledged by this call, 0 if they were all acknowledged before
+     * @throws IllegalArgumentException if no message with the tag was delivered yet
+     */
+    public synchronized int ackUpTo(long tag, Consumer<Message> acked) {
+        if (tag >= nextTag || tag < 1) {
+            throw new IllegalArgumentException("unknown delivery tag " + tag);
+        }
+        int count = 0;
+        while (firstTag <= tag) {
+            int index = index(firstTag++);
+            Message message = ring[index];
+            bytes -= message.getPayloadLength();
+            ring[index] = null;
+            acked.accept(message);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Remove every unacknowledged message
+     *
+     * @return the messages in delivery order
+     */
+    public synchronized List<Message> removeAll() {
+        List<Message> messages = new ArrayList<>((int) (nextTag - firstTag));
+        while (firstTag < nextTag) {
+            int index = index(firstTag++);
+            messages.add(ring[index]);
+            ring[index] = null;
+        }
+        bytes = 0;
+        return messages;
+    }
+
+    public synchronized int size() {
+        return (int) (nextTag - firstTag);
+    }
+
+    /**
+     * Payload bytes of the unacknowledged messages
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    private void grow() {
+        Message[] grown = new Message[ring.length * 2];
+        for (long tag = firstTag; tag < nextTag; tag++) {
+            grown[(int) (tag & (grown.length - 1))] = ring[index(tag)];
+        }
+        ring = grown;
+    }
+
+    private int index(long tag) {
+        return (int) (tag & (ring.length - 1));
+    }
+}
@@ -0,0 +1,22 @@
+package com.msgbroker.broker.enums;
+
+/**
+ * When the log of a durable queue is forced to disk.
+ */
+public enum FsyncMode {
+    /** Force every append before the publisher is answered */
+    ALWAYS,
+    /** Force all logs with unsynced appends periodically */
+    INTERVAL,
+    /** Leave writing back the mapped pages to the operating system */
+    OS;
+
+    public static FsyncMode fromProtocolName(String name) {
+        return switch (name) {
+            case "always" -> ALWAYS;
+            case "interval" -> INTERVAL;
+            case "os" -> OS;
+            default -> throw new IllegalArgumentException("unknown fsync mode " + name);
+        };
+    }
+}
@@ -0,0 +1,30 @@
+package com.msgbroker.broker.enums;
+
+/**
+ * What a bounded queue does with a message that does not fit anymore.
+ */
+public enum OverflowPolicy {
+    /** Block the publisher until consumers make room */
+    BLOCK,
+    /** Refuse the message, the publisher receives an error */
+    REJECT,
+    /** Discard the oldest messages until the new one fits */
+    DROP_HEAD;
+
+    public String protocolName() {
+        return switch (this) {
+            case BLOCK -> "block";
+            case REJECT -> "reject";
+            case DROP_HEAD -> "drop-head";
+        };
+    }
+
+    public static OverflowPolicy fromProtocolName(String name) {
+        return switch (name) {
+            case "block" -> BLOCK;
+            case "reject" -> REJECT;
+            case "drop-head" -> DROP_HEAD;
+            default -> throw new IllegalArgumentException("unknown overflow policy " + name);
+        };
+    }
+}
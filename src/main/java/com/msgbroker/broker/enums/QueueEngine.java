@@ -0,0 +1,30 @@
+package com.msgbroker.broker.enums;
+
+/**
+ * Storage engines a message queue can be backed by.
+ */
+public enum QueueEngine {
+    /** Growable array deque guarded by a lock, unbounded */
+    DEQUE,
+    /** Pre-sized lock-free multi-producer/multi-consumer array ring */
+    RING,
+    /** Records in direct memory slabs outside the Java heap, unbounded */
+    OFF_HEAP;
+
+    public String protocolName() {
+        return switch (this) {
+            case DEQUE -> "deque";
+            case RING -> "ring";
+            case OFF_HEAP -> "offheap";
+        };
+    }
+
+    public static QueueEngine fromProtocolName(String name) {
+        return switch (name) {
+            case "deque" -> DEQUE;
+            case "ring" -> RING;
+            case "offheap" -> OFF_HEAP;
+            default -> throw new IllegalArgumentException("unknown queue engine " + name);
+        };
+    }
+}
@@ -0,0 +1,19 @@
+package com.msgbroker.broker.enums;
+
+/**
+ * How the broker serves SMQP connections.
+ */
+public enum Transport {
+    /** A virtual thread per connection with blocking socket I/O */
+    THREADS,
+    /** A few selector event loops with non-blocking socket channels */
+    NIO;
+
+    public static Transport fromProtocolName(String name) {
+        return switch (name) {
+            case "threads" -> THREADS;
+            case "nio" -> NIO;
+            default -> throw new IllegalArgumentException("unknown transport " + name);
+        };
+    }
+}
@@ -0,0 +1,102 @@
+package com.msgbroker.broker.store;
+
+import com.msgbroker.broker.Message;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Unbounded store backed by an {@link ArrayDeque} and a single lock, a batch is appended with one acquisition.
+ */
+public class DequeQueueStore implements QueueStore {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Message> messages = new ArrayDeque<>();
+
+    @Override
+    public boolean offer(Message message) {
+        lock.lock();
+        try {
+            messages.addLast(message);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int offerAll(Collection<? extends Message> batch) {
+        lock.lock();
+        try {
+            messages.addAll(batch);
+            return batch.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int requeueAll(List<? extends Message> batch) {
+        lock.lock();
+        try {
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                messages.addFirst(batch.get(i));
+            }
+            return batch.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Message poll() {
+        lock.lock();
+        try {
+            return messages.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Message pollIf(Predicate<Message> condition) {
+        lock.lock();
+        try {
+            Message message = messages.peekFirst();
+            return message != null && condition.test(message) ? messages.pollFirst() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Message> removeIf(Predicate<Message> condition) {
+        List<Message> removed = new ArrayList<>();
+        lock.lock();
+        try {
+            messages.removeIf(message -> condition.test(message) && removed.add(message));
+        } finally {
+            lock.unlock();
+        }
+        return removed;
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return messages.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int capacity() {
+        return Integer.MAX_VALUE;
+    }
+}
@@ -0,0 +1,266 @@
+package com.msgbroker.broker.store;
+
+import com.msgbroker.broker.Message;
+import com.msgbroker.broker.enums.FsyncMode;
+
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Unbounded store of a durable queue. Messages are appended to a {@link SegmentedLog} before they become visible
+ * in memory, and the log is advanced once they are settled, so the log always holds the queued messages and the
+ * messages taken but not settled yet.
+ * <p>
+ * Every record gets a sequence number in log order. A message taken with {@link #poll()} is settled right away, one
+ * taken with {@link #pollUnsettled()} only when {@link #settle(Message)} is called, e.g. once a consumer acknowledged
+ * it. The log can only advance over its oldest records, so records settled out of order are remembered until every
+ * record before them is settled as well. After a crash, the unsettled messages are recovered in log order.
+ */
+public class DurableQueueStore implements QueueStore {
+
+    private record Entry(Message message, long sequence) {
+    }
+
+    private static final int INITIAL_WORDS = 4;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Entry> messages = new ArrayDeque<>();
+    // Taken with pollUnsettled and not settled yet, in the order they were taken
+    private final ArrayDeque<Entry> taken = new ArrayDeque<>();
+    private final SegmentedLog log;
+    private final long recoveredBytes;
+    // Sequence of the next appended record and of the oldest record the log still holds
+    private long nextSequence;
+    private long logSequence;
+    // Settled records from the oldest one on, one bit per sequence. The words are a ring whose first word, at
+    // firstWord, holds the sequence logSequence, so the window moves along with the log.
+    private long[] settledWords = new long[INITIAL_WORDS];
+    private int firstWord;
+
+    /**
+     * @param log      the opened log
+     * @param recovered the messages replayed from the log when it was opened
+     */
+    public DurableQueueStore(SegmentedLog log, Collection<Message> recovered) {
+        this.log = log;
+        long bytes = 0;
+        for (Message message : recovered) {
+            messages.addLast(new Entry(message, nextSequence++));
+            bytes += message.getPayloadLength();
+        }
+        this.recoveredBytes = bytes;
+    }
+
+    @Override
+    public boolean offer(Message message) {
+        lock.lock();
+        try {
+            log.append(message);
+            messages.addLast(new Entry(message, nextSequence++));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int offerAll(Collection<? extends Message> batch) {
+        lock.lock();
+        int appended = 0;
+        try {
+            for (Message message : batch) {
+                log.append(message);
+                messages.addLast(new Entry(message, nextSequence++));
+                appended++;
+            }
+            return appended;
+        } catch (UncheckedIOException e) {
+            return appended; // the queue retries the rest one by one and reports the failure
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Put messages taken with {@link #pollUnsettled()} back at the head. Their records are still in the log, so
+     * nothing is written.
+     *
+     * @return the number of leading messages of the batch that were taken unsettled and are put back; the queue
+     * appends the others again
+     */
+    @Override
+    public int requeueAll(List<? extends Message> batch) {
+        lock.lock();
+        try {
+            Entry[] entries = new Entry[batch.size()];
+            int found = 0;
+            while (found < entries.length && (entries[found] = removeTaken(batch.get(found))) != null) {
+                found++;
+            }
+            for (int i = found - 1; i >= 0; i--) {
+                messages.addFirst(entries[i]);
+            }
+            return found;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean forcesWrites() {
+        return log.getFsync() == FsyncMode.ALWAYS;
+    }
+
+    @Override
+    public Message poll() {
+        return pollIf(message -> true);
+    }
+
+    @Override
+    public Message pollIf(Predicate<Message> condition) {
+        lock.lock();
+        try {
+            Entry entry = messages.peekFirst();
+            if (entry == null || !condition.test(entry.message())) {
+                return null;
+            }
+            messages.pollFirst();
+            settle(entry.sequence());
+            return entry.message();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removed messages are settled right away, like messages taken with {@link #poll()}
+     */
+    @Override
+    public List<Message> removeIf(Predicate<Message> condition) {
+        List<Message> removed = new ArrayList<>();
+        lock.lock();
+        try {
+            messages.removeIf(entry -> {
+                if (!condition.test(entry.message())) {
+                    return false;
+                }
+                removed.add(entry.message());
+                settle(entry.sequence());
+                return true;
+            });
+        } finally {
+            lock.unlock();
+        }
+        return removed;
+    }
+
+    @Override
+    public Message pollUnsettled() {
+        lock.lock();
+        try {
+            Entry entry = messages.pollFirst();
+            if (entry == null) {
+                return null;
+            }
+            taken.addLast(entry);
+            return entry.message();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Settle a message taken with {@link #pollUnsettled()}. Messages are usually settled about in the order they
+     * were taken, so the search from the oldest taken message ends early.
+     */
+    @Override
+    public void settle(Message message) {
+        lock.lock();
+        try {
+            Entry entry = removeTaken(message);
+            if (entry != null) {
+                settle(entry.sequence());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Entry removeTaken(Message message) {
+        Iterator<Entry> iterator = taken.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.message() == message) {
+                iterator.remove();
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Mark the record as settled and advance the log over the oldest records as long as they are settled
+     */
+    private void settle(long sequence) {
+        long offset = (sequence >>> 6) - (logSequence >>> 6);
+        if (offset >= settledWords.length) {
+            growSettledWords(offset + 1);
+        }
+        settledWords[(int) ((firstWord + offset) % settledWords.length)] |= 1L << sequence;
+        while ((settledWords[firstWord] & (1L << logSequence)) != 0) {
+            settledWords[firstWord] &= ~(1L << logSequence);
+            log.consume();
+            logSequence++;
+            if ((logSequence & 63) == 0) {
+                firstWord = (firstWord + 1) % settledWords.length; // the cleared word now follows the last one
+            }
+        }
+        if (logSequence == nextSequence && settledWords.length > INITIAL_WORDS) {
+            // Every bit is clear, give back what a long unsettled record made the window grow to
+            settledWords = new long[INITIAL_WORDS];
+            firstWord = 0;
+        }
+    }
+
+    private void growSettledWords(long minLength) {
+        if (minLength > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("too many records behind the oldest unsettled one");
+        }
+        long[] grown = new long[(int) Math.max(minLength, Math.min(Integer.MAX_VALUE - 8, 2L * settledWords.length))];
+        int tail = settledWords.length - firstWord;
+        System.arraycopy(settledWords, firstWord, grown, 0, tail);
+        System.arraycopy(settledWords, 0, grown, tail, firstWord);
+        settledWords = grown;
+        firstWord = 0;
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return messages.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int capacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public long recoveredBytes() {
+        return recoveredBytes;
+    }
+
+    public SegmentedLog getLog() {
+        return log;
+    }
+}
@@ -0,0 +1,162 @@
+package com.msgbroker.broker.store;
+
+import com.msgbroker.broker.Message;
+import com.msgbroker.broker.enums.FsyncMode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Data directory of a broker holding the logs of its durable queues and the pages of paging queues, one
+ * subdirectory per queue below {@code queues} and {@code paging}.
+ * <p>
+ * Next to its segments, every durable queue directory keeps the arguments the queue was declared with, so that the
+ * queue can be declared again with the same arguments when the broker starts. With {@link FsyncMode#INTERVAL}, a
+ * single daemon thread flushes all open durable logs periodically. Pages are never synced and are discarded on
+ * the next start. Closing the storage closes every log it opened.
+ */
+public class DurableStorage implements Closeable {
+
+    private static final String ARGUMENTS_FILE = "arguments";
+    private static final String QUEUES_DIRECTORY = "queues";
+    private static final String PAGING_DIRECTORY = "paging";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final FsyncMode fsync;
+    private final long fsyncIntervalMs;
+    private final List<SegmentedLog> logs = new CopyOnWriteArrayList<>();
+    private final List<SegmentedLog> pages = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService flusher;
+
+    public DurableStorage(Path directory, int segmentSize, FsyncMode fsync, long fsyncIntervalMs) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsync = fsync;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+    }
+
+    /**
+     * Find the durable queues left by a previous run
+     *
+     * @return the declared arguments by queue name
+     */
+    public Map<String, String> findQueues() throws IOException {
+        Map<String, String> found = new LinkedHashMap<>();
+        Path queues = directory.resolve(QUEUES_DIRECTORY);
+        if (!Files.isDirectory(queues)) {
+            return found;
+        }
+        try (Stream<Path> list = Files.list(queues)) {
+            for (Path queueDirectory : list.sorted().toList()) {
+                Path arguments = queueDirectory.resolve(ARGUMENTS_FILE);
+                if (Files.isRegularFile(arguments)) {
+                    String name = URLDecoder.decode(queueDirectory.getFileName().toString(), StandardCharsets.UTF_8);
+                    found.put(name, Files.readString(arguments, StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Open the log of a queue, recovering the messages it still holds
+     *
+     * @param arguments the declaration options of the queue, stored for the next start
+     */
+    public synchronized DurableQueueStore open(String queueName, String arguments) throws IOException {
+        Path queueDirectory = queueDirectory(QUEUES_DIRECTORY, queueName);
+        List<Message> recovered = new ArrayList<>();
+        SegmentedLog log = SegmentedLog.open(queueDirectory, segmentSize, fsync, recovered::add);
+        Files.writeString(queueDirectory.resolve(ARGUMENTS_FILE), arguments, StandardCharsets.UTF_8);
+        logs.add(log);
+
+        if (fsync == FsyncMode.INTERVAL && flusher == null) {
+            flusher = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().name("log-flusher").factory());
+            flusher.scheduleWithFixedDelay(this::flush, fsyncIntervalMs, fsyncIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        return new DurableQueueStore(log, recovered);
+    }
+
+    /**
+     * Open an empty log for the pages of a queue, discarding pages left by a previous run
+     *
+     * @throws IllegalArgumentException if the queue name does not resolve to a directory below {@code paging}
+     */
+    public SegmentedLog openPages(String queueName) throws IOException {
+        Path pagesDirectory = queueDirectory(PAGING_DIRECTORY, queueName);
+        // Never delete files outside the paging directory
+        Path normalized = pagesDirectory.normalize();
+        if (normalized.getParent() == null
+                || !normalized.getParent().equals(directory.resolve(PAGING_DIRECTORY).normalize())) {
+            throw new IllegalArgumentException("invalid paging queue name: " + queueName);
+        }
+        if (Files.isDirectory(pagesDirectory)) {
+            try (Stream<Path> list = Files.list(pagesDirectory)) {
+                for (Path file : list.toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+        SegmentedLog log = SegmentedLog.open(pagesDirectory, segmentSize, FsyncMode.OS, message -> {
+        });
+        pages.add(log);
+        return log;
+    }
+
+    /**
+     * Directory of a queue below the given kind. {@link URLEncoder} leaves dots alone, so the dots of a name that
+     * consists only of dots are encoded as well to keep "." and ".." inside the kind directory.
+     *
+     * @throws IllegalArgumentException if the queue name is empty
+     */
+    private Path queueDirectory(String kind, String queueName) {
+        if (queueName.isEmpty()) {
+            throw new IllegalArgumentException("empty queue name");
+        }
+        String encoded = URLEncoder.encode(queueName, StandardCharsets.UTF_8);
+        if (encoded.chars().allMatch(c -> c == '.')) {
+            encoded = encoded.replace(".", "%2E");
+        }
+        return directory.resolve(kind).resolve(encoded);
+    }
+
+    private void flush() {
+        for (SegmentedLog log : logs) {
+            log.flush();
+        }
+    }
+
+    /**
+     * Stop the periodic flush, then force every durable log to disk and close it together with the page logs
+     */
+    @Override
+    public synchronized void close() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+            flusher = null;
+        }
+        for (SegmentedLog log : logs) {
+            log.close();
+        }
+        for (SegmentedLog log : pages) {
+            log.close();
+        }
+        logs.clear();
+        pages.clear();
+    }
+}
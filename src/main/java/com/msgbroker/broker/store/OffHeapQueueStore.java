@@ -0,0 +1,179 @@
+package com.msgbroker.broker.store;
+
+import com.msgbroker.broker.Message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Unbounded store that keeps queued messages outside the Java heap, in direct slabs of a {@link SlabAllocator}.
+ * <p>
+ * Messages are written one after another into the slab at the tail as records laid out as
+ * {@code [length][timestamp][expires at][priority][key length][key][payload]}, where a zero length marks the end
+ * of a slab. They are read back in the same order from the slab at the head, which goes back to the allocator
+ * once all of its records are taken. The heap only holds the list of slabs and two offsets however many messages
+ * are queued, so a large backlog neither fills the old generation nor has to be traced by the garbage collector.
+ * A taken message is decoded into a new {@link Message} with a heap copy of its payload. Messages that were taken
+ * but not processed, at most a consumer's unacknowledged window, are put back on the heap in front of the slabs.
+ */
+public class OffHeapQueueStore implements QueueStore {
+
+    // length, timestamp, expires at, priority, key length
+    private static final int TIMESTAMP_OFFSET = Integer.BYTES;
+    private static final int EXPIRES_AT_OFFSET = TIMESTAMP_OFFSET + Long.BYTES;
+    private static final int PRIORITY_OFFSET = EXPIRES_AT_OFFSET + Long.BYTES;
+    private static final int KEY_LENGTH_OFFSET = PRIORITY_OFFSET + Byte.BYTES;
+    private static final int RECORD_HEADER = KEY_LENGTH_OFFSET + Short.BYTES;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final SlabAllocator allocator;
+    // Oldest first, the last slab is the one written to
+    private final ArrayDeque<ByteBuffer> slabs = new ArrayDeque<>();
+    // Messages put back by requeueAll, taken before any message of the slabs
+    private final ArrayDeque<Message> requeued = new ArrayDeque<>();
+    private int readOffset;
+    private int writeOffset;
+    private int size;
+
+    public OffHeapQueueStore(SlabAllocator allocator) {
+        this.allocator = allocator;
+    }
+
+    @Override
+    public boolean offer(Message message) {
+        byte[] key = message.getRoutingKey().getBytes(StandardCharsets.UTF_8);
+        int recordSize = RECORD_HEADER + key.length + message.getPayloadLength();
+        lock.lock();
+        try {
+            ByteBuffer slab = slabs.peekLast();
+            if (slab == null || writeOffset + recordSize > slab.capacity()) {
+                if (slab != null && writeOffset + Integer.BYTES <= slab.capacity()) {
+                    slab.putInt(writeOffset, 0); // end of slab
+                }
+                slab = allocator.allocate(recordSize);
+                slabs.addLast(slab);
+                writeOffset = 0;
+            }
+            slab.putInt(writeOffset, recordSize - Integer.BYTES);
+            slab.putLong(writeOffset + TIMESTAMP_OFFSET, message.getTimestamp());
+            slab.putLong(writeOffset + EXPIRES_AT_OFFSET, message.getExpiresAt());
+            slab.put(writeOffset + PRIORITY_OFFSET, (byte) message.getPriority());
+            slab.putShort(writeOffset + KEY_LENGTH_OFFSET, (short) key.length);
+            slab.put(writeOffset + RECORD_HEADER, key);
+            message.copyPayload(slab, writeOffset + RECORD_HEADER + key.length);
+            writeOffset += recordSize;
+            size++;
+            allocator.addUsedBytes(recordSize);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int requeueAll(List<? extends Message> batch) {
+        lock.lock();
+        try {
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                requeued.addFirst(batch.get(i));
+            }
+            size += batch.size();
+            return batch.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Message poll() {
+        return pollIf(message -> true);
+    }
+
+    @Override
+    public Message pollIf(Predicate<Message> condition) {
+        lock.lock();
+        try {
+            if (size == 0) {
+                return null;
+            }
+            if (!requeued.isEmpty()) {
+                if (!condition.test(requeued.peekFirst())) {
+                    return null;
+                }
+                size--;
+                return requeued.pollFirst();
+            }
+            ByteBuffer head = slabs.getFirst();
+            if (readOffset + Integer.BYTES > head.capacity() || head.getInt(readOffset) == 0) {
+                allocator.release(slabs.removeFirst()); // every record of the slab is taken
+                head = slabs.getFirst();
+                readOffset = 0;
+            }
+            Message message = read(head, readOffset);
+            if (!condition.test(message)) {
+                return null;
+            }
+            int recordSize = Integer.BYTES + head.getInt(readOffset);
+            readOffset += recordSize;
+            allocator.addUsedBytes(-recordSize);
+            if (--size == 0) {
+                // Hand every slab back while the queue is empty, an idle queue holds no direct memory
+                while (!slabs.isEmpty()) {
+                    allocator.release(slabs.removeFirst());
+                }
+                readOffset = 0;
+                writeOffset = 0;
+            }
+            return message;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Message read(ByteBuffer slab, int offset) {
+        int length = slab.getInt(offset);
+        int keyLength = slab.getShort(offset + KEY_LENGTH_OFFSET) & 0xFFFF;
+        byte[] key = new byte[keyLength];
+        slab.get(offset + RECORD_HEADER, key);
+        byte[] payload = new byte[length - (RECORD_HEADER - Integer.BYTES) - keyLength];
+        slab.get(offset + RECORD_HEADER + keyLength, payload);
+        return new Message(new String(key, StandardCharsets.UTF_8), payload, slab.getLong(offset + TIMESTAMP_OFFSET),
+                slab.getLong(offset + EXPIRES_AT_OFFSET), slab.get(offset + PRIORITY_OFFSET));
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Only the messages put back by {@link #requeueAll(List)}, the others are in direct memory
+     */
+    @Override
+    public long heapBytes(long storedBytes) {
+        lock.lock();
+        try {
+            long bytes = 0;
+            for (Message message : requeued) {
+                bytes += message.getPayloadLength();
+            }
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int capacity() {
+        return Integer.MAX_VALUE;
+    }
+}
@@ -0,0 +1,77 @@
+package com.msgbroker.broker.store;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Broker-wide memory accounting and metrics of paging queue stores.
+ * <p>
+ * The in-memory bytes of all paging stores are summed up here so that a store can start paging once the
+ * broker-wide watermark is exceeded, even if its own share is small.
+ */
+public class PagingMetrics {
+
+    private final AtomicLong memoryBytes = new AtomicLong();
+    private final AtomicLong pagedBytes = new AtomicLong();
+    private final LongAdder pagedOutBytes = new LongAdder();
+    private final LongAdder pageIns = new LongAdder();
+    private final LongAdder pageInNanos = new LongAdder();
+    private final LongAccumulator maxPageInNanos = new LongAccumulator(Math::max, 0);
+
+    void addMemoryBytes(long delta) {
+        memoryBytes.addAndGet(delta);
+    }
+
+    void pagedOut(long bytes) {
+        pagedBytes.addAndGet(bytes);
+        pagedOutBytes.add(bytes);
+    }
+
+    void pagedIn(long bytes, long nanos) {
+        pagedBytes.addAndGet(-bytes);
+        pageIns.increment();
+        pageInNanos.add(nanos);
+        maxPageInNanos.accumulate(nanos);
+    }
+
+    /**
+     * Payload bytes held in memory by all paging stores
+     */
+    public long getMemoryBytes() {
+        return memoryBytes.get();
+    }
+
+    /**
+     * Payload bytes currently paged out to disk
+     */
+    public long getPagedBytes() {
+        return pagedBytes.get();
+    }
+
+    /**
+     * Payload bytes paged out to disk since the broker started
+     */
+    public long getPagedOutBytes() {
+        return pagedOutBytes.sum();
+    }
+
+    /**
+     * Number of times messages were read back from disk
+     */
+    public long getPageIns() {
+        return pageIns.sum();
+    }
+
+    /**
+     * Average time a page-in took, in nanoseconds
+     */
+    public long getAveragePageInNanos() {
+        long count = pageIns.sum();
+        return count == 0 ? 0 : pageInNanos.sum() / count;
+    }
+
+    public long getMaxPageInNanos() {
+        return maxPageInNanos.get();
+    }
+}
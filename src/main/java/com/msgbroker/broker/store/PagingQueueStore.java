@@ -0,0 +1,215 @@
+package com.msgbroker.broker.store;
+
+import com.msgbroker.broker.Message;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Unbounded store that keeps the head of the queue in memory and pages newer messages out to a
+ * {@link SegmentedLog} once a memory watermark is exceeded.
+ * <p>
+ * While paged messages exist, new messages are appended to the log as well so that the order is kept. When the
+ * in-memory part runs empty, a chunk of messages is read back from the log. Paging starts when the queue's own
+ * in-memory bytes exceed the queue watermark, or the bytes of all paging stores exceed the broker-wide watermark.
+ * The page log is only created when the store pages out for the first time.
+ */
+public class PagingQueueStore implements QueueStore {
+
+    // Upper bound of a page-in without a queue watermark to derive it from
+    private static final long DEFAULT_PAGE_IN_BYTES = 256 * 1024;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Message> memory = new ArrayDeque<>();
+    private final String queueName;
+    private final DurableStorage storage;
+    private SegmentedLog pages;
+    private final long queueWatermark;
+    private final long globalWatermark;
+    private final long pageInBytes;
+    private final PagingMetrics metrics;
+    private long memoryBytes;
+    private int pagedCount;
+
+    /**
+     * @param queueWatermark  in-memory bytes of this store from which messages are paged out (0 to ignore)
+     * @param globalWatermark in-memory bytes of all paging stores from which messages are paged out (0 to ignore)
+     */
+    public PagingQueueStore(String queueName, DurableStorage storage, long queueWatermark, long globalWatermark,
+                            PagingMetrics metrics) {
+        this.queueName = queueName;
+        this.storage = storage;
+        this.queueWatermark = queueWatermark;
+        this.globalWatermark = globalWatermark;
+        this.pageInBytes = queueWatermark > 0 ? Math.max(1, queueWatermark / 2) : DEFAULT_PAGE_IN_BYTES;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @throws UncheckedIOException if the page log cannot be created
+     */
+    @Override
+    public boolean offer(Message message) {
+        int length = message.getPayloadLength();
+        lock.lock();
+        try {
+            if (pagedCount > 0
+                    || (queueWatermark > 0 && memoryBytes + length > queueWatermark)
+                    || (globalWatermark > 0 && metrics.getMemoryBytes() + length > globalWatermark)) {
+                if (pages == null) {
+                    pages = openPages();
+                }
+                pages.append(message);
+                pagedCount++;
+                metrics.pagedOut(length);
+            } else {
+                memory.addLast(message);
+                memoryBytes += length;
+                metrics.addMemoryBytes(length);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Put the messages back at the head of the in-memory part, regardless of the watermarks
+     */
+    @Override
+    public int requeueAll(List<? extends Message> batch) {
+        lock.lock();
+        try {
+            long bytes = 0;
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                Message message = batch.get(i);
+                memory.addFirst(message);
+                bytes += message.getPayloadLength();
+            }
+            memoryBytes += bytes;
+            metrics.addMemoryBytes(bytes);
+            return batch.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Message poll() {
+        return pollIf(message -> true);
+    }
+
+    @Override
+    public Message pollIf(Predicate<Message> condition) {
+        lock.lock();
+        try {
+            if (memory.isEmpty() && pagedCount > 0) {
+                pageIn();
+            }
+            Message message = memory.peekFirst();
+            if (message == null || !condition.test(message)) {
+                return null;
+            }
+            memory.pollFirst();
+            memoryBytes -= message.getPayloadLength();
+            metrics.addMemoryBytes(-message.getPayloadLength());
+            return message;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Not supported while messages are paged out, as they cannot be removed from the middle of the log
+     */
+    @Override
+    public List<Message> removeIf(Predicate<Message> condition) {
+        List<Message> removed = new ArrayList<>();
+        lock.lock();
+        try {
+            if (pagedCount > 0) {
+                return null;
+            }
+            memory.removeIf(message -> condition.test(message) && removed.add(message));
+            long bytes = 0;
+            for (Message message : removed) {
+                bytes += message.getPayloadLength();
+            }
+            memoryBytes -= bytes;
+            metrics.addMemoryBytes(-bytes);
+        } finally {
+            lock.unlock();
+        }
+        return removed;
+    }
+
+    private SegmentedLog openPages() {
+        try {
+            return storage.openPages(queueName);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Read the oldest paged messages back into memory, at least one
+     */
+    private void pageIn() {
+        long start = System.nanoTime();
+        long bytes = 0;
+        while (pagedCount > 0 && (bytes == 0 || bytes < pageInBytes)) {
+            Message message = pages.poll();
+            pagedCount--;
+            memory.addLast(message);
+            bytes += message.getPayloadLength();
+        }
+        memoryBytes += bytes;
+        metrics.addMemoryBytes(bytes);
+        metrics.pagedIn(bytes, System.nanoTime() - start);
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return memory.size() + pagedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Only the in-memory part, paged messages are on disk
+     */
+    @Override
+    public long heapBytes(long storedBytes) {
+        lock.lock();
+        try {
+            return memoryBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int capacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Number of messages currently paged out to disk
+     */
+    public int getPagedCount() {
+        lock.lock();
+        try {
+            return pagedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.msgbroker.broker.store;
+
+import com.msgbroker.broker.Message;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Unbounded store that hands out messages by priority, oldest first within a priority.
+ * <p>
+ * Every priority level has its own {@link ArrayDeque}, and a bitmap keeps track of the levels that hold messages,
+ * so the highest non-empty level is found with a single leading-zero count and both offer and poll are O(1)
+ * regardless of the backlog of lower priorities. Messages with a priority above the highest level are stored at
+ * the highest level. Like {@link DequeQueueStore}, a single lock guards the store.
+ */
+public class PriorityQueueStore implements QueueStore {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Message>[] levels;
+    // Bit i is set while level i holds messages
+    private int nonEmpty;
+    private int size;
+
+    /**
+     * @param maxPriority highest priority level, from 1 to {@link Message#MAX_PRIORITY}
+     */
+    public PriorityQueueStore(int maxPriority) {
+        if (maxPriority < 1 || maxPriority > Message.MAX_PRIORITY) {
+            throw new IllegalArgumentException("invalid max priority " + maxPriority);
+        }
+        @SuppressWarnings("unchecked") // the array only ever holds ArrayDeque<Message>
+        ArrayDeque<Message>[] created = (ArrayDeque<Message>[]) new ArrayDeque<?>[maxPriority + 1];
+        levels = created;
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = new ArrayDeque<>();
+        }
+    }
+
+    @Override
+    public boolean offer(Message message) {
+        lock.lock();
+        try {
+            add(message);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int offerAll(Collection<? extends Message> batch) {
+        lock.lock();
+        try {
+            for (Message message : batch) {
+                add(message);
+            }
+            return batch.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void add(Message message) {
+        int level = level(message);
+        levels[level].addLast(message);
+        nonEmpty |= 1 << level;
+        size++;
+    }
+
+    /**
+     * Put the messages back at the head of their priority levels
+     */
+    @Override
+    public int requeueAll(List<? extends Message> batch) {
+        lock.lock();
+        try {
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                Message message = batch.get(i);
+                int level = level(message);
+                levels[level].addFirst(message);
+                nonEmpty |= 1 << level;
+                size++;
+            }
+            return batch.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int level(Message message) {
+        return Math.max(0, Math.min(message.getPriority(), levels.length - 1));
+    }
+
+    @Override
+    public Message poll() {
+        lock.lock();
+        try {
+            return nonEmpty == 0 ? null : remove(highestLevel());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Message pollIf(Predicate<Message> condition) {
+        lock.lock();
+        try {
+            if (nonEmpty == 0) {
+                return null;
+            }
+            int level = highestLevel();
+            return condition.test(levels[level].peekFirst()) ? remove(level) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Message> removeIf(Predicate<Message> condition) {
+        List<Message> removed = new ArrayList<>();
+        lock.lock();
+        try {
+            for (int level = 0; level < levels.length; level++) {
+                if (levels[level].removeIf(message -> condition.test(message) && removed.add(message))
+                        && levels[level].isEmpty()) {
+                    nonEmpty &= ~(1 << level);
+                }
+            }
+            size -= removed.size();
+        } finally {
+            lock.unlock();
+        }
+        return removed;
+    }
+
+    private int highestLevel() {
+        return Integer.SIZE - 1 - Integer.numberOfLeadingZeros(nonEmpty);
+    }
+
+    private Message remove(int level) {
+        ArrayDeque<Message> messages = levels[level];
+        Message message = messages.pollFirst();
+        if (messages.isEmpty()) {
+            nonEmpty &= ~(1 << level);
+        }
+        size--;
+        return message;
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int capacity() {
+        return Integer.MAX_VALUE;
+    }
+}
@@ -0,0 +1,129 @@
+package com.msgbroker.broker.store;
+
+import com.msgbroker.broker.Message;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Thread-safe, non-blocking FIFO storage behind a message queue.
+ * <p>
+ * Limits, overflow policies and blocking of consumers are handled by the queue on top of the store,
+ * so a store only has to hand out messages in the order they were offered, or by priority for a
+ * {@link PriorityQueueStore}.
+ */
+public interface QueueStore {
+
+    /**
+     * Append a message
+     *
+     * @return false if the store has no capacity left
+     */
+    boolean offer(Message message);
+
+    /**
+     * Append all messages of a batch in order
+     *
+     * @return the number of messages appended, which is smaller than the batch size if the store ran full
+     */
+    default int offerAll(Collection<? extends Message> batch) {
+        int offered = 0;
+        for (Message message : batch) {
+            if (!offer(message)) {
+                break;
+            }
+            offered++;
+        }
+        return offered;
+    }
+
+    /**
+     * Put messages that were taken but not processed back in front of the oldest message, keeping their order.
+     * Stores that cannot insert at the head append them like {@link #offerAll(Collection)}.
+     *
+     * @param batch the messages in the order they were taken
+     * @return the number of messages put back, which is smaller than the batch size if the store ran full
+     */
+    default int requeueAll(List<? extends Message> batch) {
+        return offerAll(batch);
+    }
+
+    /**
+     * Remove the oldest message
+     *
+     * @return the message, or null if the store is empty
+     */
+    Message poll();
+
+    /**
+     * Remove the oldest message like {@link #poll()}, but keep it in the store's durable state until it is
+     * {@link #settle(Message) settled}, so that it is recovered if the broker stops before. Such a message can be
+     * put back at the head with {@link #requeueAll(List)}. Stores without durable state just poll.
+     *
+     * @return the message, or null if the store is empty
+     */
+    default Message pollUnsettled() {
+        return poll();
+    }
+
+    /**
+     * Release the durable state of a message taken with {@link #pollUnsettled()} once it has been processed
+     */
+    default void settle(Message message) {
+    }
+
+    /**
+     * Remove the oldest message, but only if it matches the condition
+     *
+     * @param condition tested with the oldest message, at most once per removal attempt
+     * @return the removed message, or null if the store is empty or the oldest message does not match
+     */
+    Message pollIf(Predicate<Message> condition);
+
+    /**
+     * Remove every message that matches the condition, including the ones behind the oldest message. Stores that
+     * can only remove their oldest message do not support it.
+     *
+     * @param condition tested once with every held message, in no particular order
+     * @return the removed messages, or null if the store does not support it and nothing was tested
+     */
+    default List<Message> removeIf(Predicate<Message> condition) {
+        return null;
+    }
+
+    int size();
+
+    default boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Payload bytes of the messages the store already held when it was created, e.g. recovered from disk
+     */
+    default long recoveredBytes() {
+        return 0;
+    }
+
+    /**
+     * Payload bytes of the held messages that are kept on the heap, which the broker's memory alarm is based on.
+     * Stores that keep every message on the heap return what the queue counted.
+     *
+     * @param storedBytes payload bytes of all messages held by the store, as counted by the queue
+     */
+    default long heapBytes(long storedBytes) {
+        return storedBytes;
+    }
+
+    /**
+     * Number of messages the store can take at most, {@link Integer#MAX_VALUE} if it is unbounded
+     */
+    int capacity();
+
+    /**
+     * Whether offering and taking messages waits for them to be forced to disk
+     */
+    default boolean forcesWrites() {
+        return false;
+    }
+}
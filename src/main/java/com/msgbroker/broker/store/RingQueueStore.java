@@ -0,0 +1,197 @@
+package com.msgbroker.broker.store;
+
+import com.msgbroker.broker.Message;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Bounded lock-free multi-producer/multi-consumer ring (after Dmitry Vyukov's bounded MPMC queue).
+ * <p>
+ * All slots are allocated up front. Every slot carries a sequence number telling producers and consumers whether
+ * it is free for the lap they are in, so both sides only contend on a CAS of their own position counter and
+ * no node is allocated per message.
+ * <p>
+ * A ring cannot insert at its head, so messages put back by {@link #requeueAll(List)} are kept in a small locked
+ * deque that is taken from before the ring. The lock is only taken while that deque holds messages.
+ */
+public class RingQueueStore implements QueueStore {
+
+    private final int mask;
+    private final AtomicReferenceArray<Message> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong enqueuePosition = new AtomicLong();
+    private final AtomicLong dequeuePosition = new AtomicLong();
+
+    // Messages put back by requeueAll, taken before any message of the ring
+    private final ReentrantLock requeueLock = new ReentrantLock();
+    private final ArrayDeque<Message> requeued = new ArrayDeque<>();
+    private final AtomicInteger requeuedCount = new AtomicInteger();
+
+    /**
+     * @param requestedCapacity minimum number of slots, rounded up to the next power of two
+     */
+    public RingQueueStore(int requestedCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, requestedCapacity) - 1) << 1;
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("ring capacity too large: " + requestedCapacity);
+        }
+        this.mask = capacity - 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    @Override
+    public boolean offer(Message message) {
+        long position = enqueuePosition.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (enqueuePosition.compareAndSet(position, position + 1)) {
+                    slots.set(index, message);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = enqueuePosition.get();
+            } else if (difference < 0) {
+                return false; // the slot still holds a message from the previous lap
+            } else {
+                position = enqueuePosition.get();
+            }
+        }
+    }
+
+    /**
+     * Put the messages back ahead of the ring. They do not take slots, so requeueing never fails for lack of room.
+     */
+    @Override
+    public int requeueAll(List<? extends Message> batch) {
+        requeueLock.lock();
+        try {
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                requeued.addFirst(batch.get(i));
+            }
+            requeuedCount.addAndGet(batch.size());
+            return batch.size();
+        } finally {
+            requeueLock.unlock();
+        }
+    }
+
+    /**
+     * Remove the oldest requeued message if it matches the condition
+     *
+     * @param found set to true if a requeued message was tested, in which case the ring must not be looked at
+     */
+    private Message pollRequeued(Predicate<Message> condition, boolean[] found) {
+        requeueLock.lock();
+        try {
+            Message message = requeued.peekFirst();
+            if (message == null) {
+                return null;
+            }
+            found[0] = true;
+            if (!condition.test(message)) {
+                return null;
+            }
+            requeued.pollFirst();
+            requeuedCount.decrementAndGet();
+            return message;
+        } finally {
+            requeueLock.unlock();
+        }
+    }
+
+    @Override
+    public Message poll() {
+        if (requeuedCount.get() > 0) {
+            boolean[] found = new boolean[1];
+            Message message = pollRequeued(m -> true, found);
+            if (found[0]) {
+                return message;
+            }
+        }
+        long position = dequeuePosition.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (dequeuePosition.compareAndSet(position, position + 1)) {
+                    Message message = slots.get(index);
+                    slots.set(index, null);
+                    sequences.set(index, position + mask + 1);
+                    return message;
+                }
+                position = dequeuePosition.get();
+            } else if (difference < 0) {
+                return null; // the slot has not been written in this lap yet
+            } else {
+                position = dequeuePosition.get();
+            }
+        }
+    }
+
+    @Override
+    public Message pollIf(Predicate<Message> condition) {
+        if (requeuedCount.get() > 0) {
+            boolean[] found = new boolean[1];
+            Message message = pollRequeued(condition, found);
+            if (found[0]) {
+                return message;
+            }
+        }
+        long position = dequeuePosition.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                // The slot keeps its message until the consumer that wins this position clears it. A consumer that
+                // won it first may already have cleared it, or even have let a producer of the next lap refill it,
+                // so the message only belongs to this position if the slot is still set for it after the read.
+                Message message = slots.get(index);
+                if (message == null || sequences.get(index) != position + 1) {
+                    position = dequeuePosition.get();
+                    continue;
+                }
+                if (!condition.test(message)) {
+                    if (dequeuePosition.get() != position) {
+                        position = dequeuePosition.get(); // the head moved on while the condition was checked
+                        continue;
+                    }
+                    return null;
+                }
+                if (dequeuePosition.compareAndSet(position, position + 1)) {
+                    slots.set(index, null);
+                    sequences.set(index, position + mask + 1);
+                    return message;
+                }
+                position = dequeuePosition.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = dequeuePosition.get();
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        long size = enqueuePosition.get() - dequeuePosition.get();
+        return (int) Math.max(0, Math.min(size, capacity())) + requeuedCount.get();
+    }
+
+    @Override
+    public int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,356 @@
+package com.msgbroker.broker.store;
+
+import com.msgbroker.broker.Message;
+import com.msgbroker.broker.enums.FsyncMode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import sun.misc.Unsafe;
+
+/**
+ * Append-only message log of a durable queue, split into fixed-size segment files that are written through
+ * memory mappings.
+ * <p>
+ * A record is laid out as {@code [length][crc32][timestamp][expires at][key length][key][payload]}, where the
+ * length covers everything after the length field itself and a zero length marks the end of a segment. Messages are
+ * consumed in the order they were appended; the read position is kept in a small mapped cursor file, and a segment
+ * is deleted as soon as all of its records are consumed. On open, the records after the cursor are replayed, stopping at the first
+ * record whose checksum does not match (a write that was torn by a crash).
+ * <p>
+ * Appends and consumes are serialized by the owning store; the log still synchronizes them so that a periodic
+ * {@link #flush()} from another thread never forces a half-written record. Segments are unmapped as soon as they are
+ * deleted, and every mapping is released when the log is closed.
+ */
+public class SegmentedLog implements Closeable {
+
+    // length, crc32, timestamp, expires at, key length
+    private static final int TIMESTAMP_OFFSET = 2 * Integer.BYTES;
+    private static final int EXPIRES_AT_OFFSET = TIMESTAMP_OFFSET + Long.BYTES;
+    private static final int KEY_LENGTH_OFFSET = EXPIRES_AT_OFFSET + Long.BYTES;
+    private static final int RECORD_HEADER = KEY_LENGTH_OFFSET + Short.BYTES;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CURSOR_FILE = "cursor";
+    // segment id, offset within the segment
+    private static final int CURSOR_SIZE = Long.BYTES + Integer.BYTES;
+    // Null if the JDK does not expose it, mappings are then released once the buffers are garbage collected
+    private static final Unsafe UNSAFE = loadUnsafe();
+
+    private final Path directory;
+    private final int segmentSize;
+    private final FsyncMode fsync;
+    private final CRC32 crc = new CRC32();
+
+    // Oldest first, the last segment is the one appended to
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final MappedByteBuffer cursor;
+    private int readOffset;
+    private boolean dirty;
+    private boolean closed;
+
+    private static final class Segment {
+        private final long id;
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private int writeOffset;
+
+        private Segment(long id, Path path, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    private SegmentedLog(Path directory, int segmentSize, FsyncMode fsync, MappedByteBuffer cursor) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsync = fsync;
+        this.cursor = cursor;
+    }
+
+    /**
+     * Open the log in the given directory, creating it if needed, and replay the messages that are not consumed yet
+     *
+     * @param recovered receives the unconsumed messages in append order
+     */
+    public static SegmentedLog open(Path directory, int segmentSize, FsyncMode fsync, Consumer<Message> recovered)
+            throws IOException {
+        Files.createDirectories(directory);
+        SegmentedLog log = new SegmentedLog(directory, segmentSize, fsync, map(directory.resolve(CURSOR_FILE), CURSOR_SIZE));
+        log.recover(recovered);
+        return log;
+    }
+
+    private void recover(Consumer<Message> recovered) throws IOException {
+        long cursorSegment = cursor.getLong(0);
+        int cursorOffset = cursor.getInt(Long.BYTES);
+
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = new ArrayList<>(list.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList());
+        }
+        for (Path file : files) {
+            long id = segmentId(file);
+            if (id < cursorSegment) {
+                Files.deleteIfExists(file); // consumed before the last shutdown
+                continue;
+            }
+            Segment segment = new Segment(id, file, map(file, (int) Files.size(file)));
+            int start = id == cursorSegment ? cursorOffset : 0;
+            if (segments.isEmpty()) {
+                readOffset = start;
+            }
+            segment.writeOffset = replay(segment, start, recovered);
+            segments.addLast(segment);
+        }
+        if (segments.isEmpty()) {
+            segments.addLast(createSegment(Math.max(cursorSegment, 0), segmentSize));
+            readOffset = 0;
+        }
+        advanceHead();
+    }
+
+    /**
+     * Read the valid records of a segment from the given offset
+     *
+     * @return the offset after the last valid record
+     */
+    private int replay(Segment segment, int offset, Consumer<Message> recovered) {
+        MappedByteBuffer buffer = segment.buffer;
+        while (offset + RECORD_HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length < RECORD_HEADER - Integer.BYTES || offset + Integer.BYTES + length > buffer.capacity()) {
+                break; // end of segment
+            }
+            crc.reset();
+            crc.update(buffer.slice(offset + TIMESTAMP_OFFSET, length - Integer.BYTES));
+            if ((int) crc.getValue() != buffer.getInt(offset + Integer.BYTES)) {
+                break; // torn write
+            }
+            recovered.accept(read(buffer, offset, length));
+            offset += Integer.BYTES + length;
+        }
+        return offset;
+    }
+
+    private static Message read(MappedByteBuffer buffer, int offset, int length) {
+        long timestamp = buffer.getLong(offset + TIMESTAMP_OFFSET);
+        long expiresAt = buffer.getLong(offset + EXPIRES_AT_OFFSET);
+        int keyLength = buffer.getShort(offset + KEY_LENGTH_OFFSET) & 0xFFFF;
+        byte[] key = new byte[keyLength];
+        buffer.get(offset + RECORD_HEADER, key);
+        byte[] payload = new byte[length - (RECORD_HEADER - Integer.BYTES) - keyLength];
+        buffer.get(offset + RECORD_HEADER + keyLength, payload);
+        return new Message(new String(key, StandardCharsets.UTF_8), payload, timestamp, expiresAt);
+    }
+
+    /**
+     * Append a message, forcing it to disk right away if the log syncs every message
+     *
+     * @throws UncheckedIOException    if a new segment cannot be created
+     * @throws IllegalArgumentException if the routing key is longer than {@link Message#MAX_ROUTING_KEY_LENGTH}
+     */
+    public synchronized void append(Message message) {
+        ensureOpen();
+        byte[] key = message.getRoutingKey().getBytes(StandardCharsets.UTF_8);
+        if (key.length > Message.MAX_ROUTING_KEY_LENGTH) {
+            throw new IllegalArgumentException("routing key too long");
+        }
+        int recordSize = RECORD_HEADER + key.length + message.getPayloadLength();
+
+        Segment segment = segments.getLast();
+        if (segment.writeOffset + recordSize > segment.buffer.capacity()) {
+            segment = roll(recordSize);
+        }
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = segment.writeOffset;
+        buffer.putLong(offset + TIMESTAMP_OFFSET, message.getTimestamp());
+        buffer.putLong(offset + EXPIRES_AT_OFFSET, message.getExpiresAt());
+        buffer.putShort(offset + KEY_LENGTH_OFFSET, (short) key.length);
+        buffer.put(offset + RECORD_HEADER, key);
+        message.copyPayload(buffer, offset + RECORD_HEADER + key.length);
+        crc.reset();
+        crc.update(buffer.slice(offset + TIMESTAMP_OFFSET, recordSize - TIMESTAMP_OFFSET));
+        buffer.putInt(offset + Integer.BYTES, (int) crc.getValue());
+        buffer.putInt(offset, recordSize - Integer.BYTES);
+        segment.writeOffset += recordSize;
+        if (segment.writeOffset + Integer.BYTES <= buffer.capacity()) {
+            buffer.putInt(segment.writeOffset, 0); // hide whatever a torn write left behind
+        }
+
+        if (fsync == FsyncMode.ALWAYS) {
+            buffer.force(offset, Math.min(recordSize + Integer.BYTES, buffer.capacity() - offset));
+        } else {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Start a new segment that can hold at least the given record
+     */
+    private Segment roll(int recordSize) {
+        Segment previous = segments.getLast();
+        if (fsync != FsyncMode.OS) {
+            previous.buffer.force(); // the periodic flush only looks at the active segment
+        }
+        try {
+            Segment segment = createSegment(previous.id + 1, Math.max(segmentSize, recordSize));
+            segments.addLast(segment);
+            advanceHead();
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Mark the oldest unconsumed record as consumed
+     */
+    public synchronized void consume() {
+        ensureOpen();
+        Segment head = segments.getFirst();
+        readOffset += Integer.BYTES + head.buffer.getInt(readOffset);
+        advanceHead();
+        if (fsync == FsyncMode.ALWAYS) {
+            cursor.force();
+        } else {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Read and consume the oldest unconsumed record
+     *
+     * @return the message, or null if every record is consumed
+     */
+    public synchronized Message poll() {
+        ensureOpen();
+        if (isEmpty()) {
+            return null;
+        }
+        Segment head = segments.getFirst();
+        Message message = read(head.buffer, readOffset, head.buffer.getInt(readOffset));
+        consume();
+        return message;
+    }
+
+    public synchronized boolean isEmpty() {
+        return segments.size() == 1 && readOffset >= segments.getFirst().writeOffset;
+    }
+
+    /**
+     * Delete fully consumed segments, except the one appended to, and store the read position
+     */
+    private void advanceHead() {
+        while (segments.size() > 1 && readOffset >= segments.getFirst().writeOffset) {
+            Segment consumed = segments.removeFirst();
+            readOffset = 0;
+            unmap(consumed.buffer);
+            try {
+                Files.deleteIfExists(consumed.path);
+            } catch (IOException e) {
+                // Left behind, deleted on the next start because it is before the cursor
+            }
+        }
+        cursor.putLong(0, segments.getFirst().id);
+        cursor.putInt(Long.BYTES, readOffset);
+    }
+
+    /**
+     * Force appends and consumes since the last flush to disk
+     */
+    public synchronized void flush() {
+        if (dirty && !closed) {
+            dirty = false;
+            segments.getLast().buffer.force();
+            cursor.force();
+        }
+    }
+
+    public FsyncMode getFsync() {
+        return fsync;
+    }
+
+    /**
+     * Number of segment files currently kept
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Force the log to disk and release its mappings. The log cannot be used afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        flush();
+        closed = true;
+        for (Segment segment : segments) {
+            unmap(segment.buffer);
+        }
+        unmap(cursor);
+    }
+
+    /**
+     * @throws IllegalStateException if the log is closed, its buffers must not be touched once they are unmapped
+     */
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("log closed");
+        }
+    }
+
+    private Segment createSegment(long id, int size) throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", id, SEGMENT_SUFFIX));
+        return new Segment(id, path, map(path, size));
+    }
+
+    private static long segmentId(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Release a mapping right away rather than when its buffer is garbage collected. There is no public API for
+     * this, so the buffer's cleaner is invoked through {@link Unsafe}.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        if (UNSAFE != null) {
+            UNSAFE.invokeCleaner(buffer);
+        }
+    }
+
+    private static Unsafe loadUnsafe() {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return (Unsafe) field.get(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.msgbroker.broker.store;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Broker-wide allocator of direct {@link ByteBuffer} slabs for off-heap queue stores.
+ * <p>
+ * Direct memory is only returned to the operating system once the garbage collector finds its buffer unreachable,
+ * so released slabs are kept in a pool and handed out again instead of allocating new ones. Slabs have a fixed
+ * size; a record that does not fit into one gets a buffer of its own, which is not pooled. Stores allocate records
+ * within a slab themselves and report the record bytes they use for the statistics.
+ */
+public class SlabAllocator {
+
+    private final int slabSize;
+    private final int maxPooledSlabs;
+    private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledSlabs = new AtomicInteger();
+    private final AtomicInteger slabsInUse = new AtomicInteger();
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final LongAdder allocations = new LongAdder();
+    private final LongAdder poolHits = new LongAdder();
+
+    /**
+     * @param slabSize       size of a slab in bytes
+     * @param maxPooledSlabs number of released slabs kept for reuse, further slabs are left to the garbage collector
+     */
+    public SlabAllocator(int slabSize, int maxPooledSlabs) {
+        this.slabSize = slabSize;
+        this.maxPooledSlabs = maxPooledSlabs;
+    }
+
+    /**
+     * Hand out a cleared slab that can hold at least the given number of bytes
+     */
+    public ByteBuffer allocate(int minSize) {
+        slabsInUse.incrementAndGet();
+        if (minSize <= slabSize) {
+            ByteBuffer slab = pool.poll();
+            if (slab != null) {
+                pooledSlabs.decrementAndGet();
+                poolHits.increment();
+                return slab.clear();
+            }
+        }
+        int size = Math.max(slabSize, minSize);
+        allocations.increment();
+        reservedBytes.addAndGet(size);
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Give back a slab that is no longer used
+     */
+    public void release(ByteBuffer slab) {
+        slabsInUse.decrementAndGet();
+        if (slab.capacity() == slabSize && pooledSlabs.incrementAndGet() <= maxPooledSlabs) {
+            pool.offer(slab);
+            return;
+        }
+        if (slab.capacity() == slabSize) {
+            pooledSlabs.decrementAndGet();
+        }
+        reservedBytes.addAndGet(-slab.capacity());
+    }
+
+    void addUsedBytes(long delta) {
+        usedBytes.addAndGet(delta);
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    /**
+     * Number of slabs currently handed out to stores
+     */
+    public int getSlabsInUse() {
+        return slabsInUse.get();
+    }
+
+    /**
+     * Number of released slabs kept for reuse
+     */
+    public int getPooledSlabs() {
+        return pooledSlabs.get();
+    }
+
+    /**
+     * Direct memory held by slabs in use and in the pool, in bytes
+     */
+    public long getReservedBytes() {
+        return reservedBytes.get();
+    }
+
+    /**
+     * Bytes of the records currently stored in slabs, including their headers
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Number of direct buffers allocated since the broker started
+     */
+    public long getAllocations() {
+        return allocations.sum();
+    }
+
+    /**
+     * Number of slabs handed out again from the pool instead of being allocated
+     */
+    public long getPoolHits() {
+        return poolHits.sum();
+    }
+}
@@ -7,7 +7,6 @@ import com.msgbroker.connection.types.ExchangeType;
 import com.msgbroker.connection.Subscription;
 
 import java.io.*;
-import java.util.Locale;
 
 public class ClientCLI implements IClientCLI {
 
@@ -98,7 +97,7 @@ public class ClientCLI implements IClientCLI {
         }
 
         try {
-            ExchangeType type = ExchangeType.valueOf(args[2].toUpperCase(Locale.ROOT));
+            ExchangeType type = ExchangeType.fromProtocolName(args[2]);
 
             if (!channel.exchangeDeclare(type, args[1])) {
                 writer.println("error");
@@ -139,7 +138,7 @@ public class ClientCLI implements IClientCLI {
         }
 
         try {
-            ExchangeType type = ExchangeType.valueOf(args[2].toUpperCase(Locale.ROOT));
+            ExchangeType type = ExchangeType.fromProtocolName(args[2]);
 
             if (!channel.exchangeDeclare(type, args[1]) || !channel.publish(args[3], args[4])) {
                 writer.println("error");
@@ -18,8 +18,19 @@ public record BrokerConfig(
         int[] electionPeerIds,
         long electionHeartbeatTimeoutMs,
         String monitoringHost,
-        int monitoringPort
+        int monitoringPort,
+        BrokerTuningConfig tuning
 ) {
+
+    public BrokerConfig(String componentId, String host, int port, String dnsHost, int dnsPort, String domain,
+                        int electionId, String electionType, int electionPort, String electionDomain,
+                        String[] electionPeerHosts, int[] electionPeerPorts, int[] electionPeerIds,
+                        long electionHeartbeatTimeoutMs, String monitoringHost, int monitoringPort) {
+        this(componentId, host, port, dnsHost, dnsPort, domain, electionId, electionType, electionPort,
+                electionDomain, electionPeerHosts, electionPeerPorts, electionPeerIds, electionHeartbeatTimeoutMs,
+                monitoringHost, monitoringPort, BrokerTuningConfig.defaults(BrokerTuningConfig.defaultDataDirectory(componentId)));
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -38,6 +49,7 @@ public record BrokerConfig(
                 Objects.equals(electionType, that.electionType) &&
                 Objects.equals(electionDomain, that.electionDomain) &&
                 Objects.equals(monitoringHost, that.monitoringHost) &&
+                Objects.equals(tuning, that.tuning) &&
                 Objects.deepEquals(electionPeerIds, that.electionPeerIds) &&
                 Objects.deepEquals(electionPeerPorts, that.electionPeerPorts) &&
                 Objects.deepEquals(electionPeerHosts, that.electionPeerHosts);
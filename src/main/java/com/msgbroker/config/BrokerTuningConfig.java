@@ -0,0 +1,128 @@
+package com.msgbroker.config;
+
+/**
+ * Optional broker settings that tune routing and queueing. Every value has a default, so a broker can be
+ * configured without any of the corresponding properties.
+ *
+ * @param routeCacheSize          maximum number of routing keys cached per exchange (0 disables the cache)
+ * @param fanoutParallelThreshold number of target queues from which a message is enqueued in parallel
+ *                                (0 disables parallel delivery)
+ * @param queueEngine             storage engine of queues that do not choose one ({@code deque}, {@code ring} or
+ *                                {@code offheap})
+ * @param ringCapacity            number of slots of a ring-backed queue without a max-length
+ * @param deliveryBatchMessages   maximum number of messages written to a subscriber before flushing
+ * @param deliveryBatchBytes      payload bytes after which a delivery batch is flushed (0 for no byte limit)
+ * @param dataDirectory           directory holding the logs of durable queues and the pages of paging queues
+ * @param durableFsync            when durable logs are forced to disk ({@code always}, {@code interval} or {@code os})
+ * @param durableFsyncIntervalMs  period of the flush with the {@code interval} fsync mode
+ * @param durableSegmentSize      size of a durable log segment file in bytes
+ * @param pagingQueueWatermark    in-memory payload bytes of a queue above which new messages are paged to disk
+ *                                (0 disables)
+ * @param pagingGlobalWatermark   in-memory payload bytes of all queues above which new messages are paged to disk
+ *                                (0 disables)
+ * @param timerTickMs             resolution of the timing wheel that expires messages
+ * @param memoryHighWatermark     heap payload bytes of queues and unacknowledged deliveries from which publishers
+ *                                are paused (0 for 40% of the maximum heap)
+ * @param memoryLowWatermark      payload bytes at or below which paused publishers resume
+ *                                (0 for 80% of the high watermark)
+ * @param offHeapSlabSize         size in bytes of a direct memory slab of off-heap queues
+ * @param offHeapPooledSlabs      number of released off-heap slabs kept for reuse
+ * @param transport               how SMQP connections are served ({@code threads} or {@code nio})
+ * @param nioLoops                number of event loops of the {@code nio} transport (0 for one per processor)
+ */
+public record BrokerTuningConfig(
+        int routeCacheSize,
+        int fanoutParallelThreshold,
+        String queueEngine,
+        int ringCapacity,
+        int deliveryBatchMessages,
+        int deliveryBatchBytes,
+        String dataDirectory,
+        String durableFsync,
+        int durableFsyncIntervalMs,
+        int durableSegmentSize,
+        long pagingQueueWatermark,
+        long pagingGlobalWatermark,
+        int timerTickMs,
+        long memoryHighWatermark,
+        long memoryLowWatermark,
+        int offHeapSlabSize,
+        int offHeapPooledSlabs,
+        String transport,
+        int nioLoops
+) {
+
+    public static final int DEFAULT_ROUTE_CACHE_SIZE = 1024;
+    public static final int DEFAULT_FANOUT_PARALLEL_THRESHOLD = 1024;
+    public static final String DEFAULT_QUEUE_ENGINE = "deque";
+    public static final int DEFAULT_RING_CAPACITY = 65536;
+    public static final int DEFAULT_DELIVERY_BATCH_MESSAGES = 256;
+    public static final int DEFAULT_DELIVERY_BATCH_BYTES = 65536;
+    public static final String DEFAULT_DATA_DIRECTORY = "data";
+    public static final String DEFAULT_DURABLE_FSYNC = "interval";
+    public static final int DEFAULT_DURABLE_FSYNC_INTERVAL_MS = 100;
+    public static final int DEFAULT_DURABLE_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final long DEFAULT_PAGING_QUEUE_WATERMARK = 0;
+    public static final long DEFAULT_PAGING_GLOBAL_WATERMARK = 0;
+    public static final int DEFAULT_TIMER_TICK_MS = 10;
+    public static final long DEFAULT_MEMORY_HIGH_WATERMARK = 0;
+    public static final long DEFAULT_MEMORY_LOW_WATERMARK = 0;
+    public static final int DEFAULT_OFF_HEAP_SLAB_SIZE = 1024 * 1024;
+    public static final int DEFAULT_OFF_HEAP_POOLED_SLABS = 64;
+    public static final String DEFAULT_TRANSPORT = "threads";
+    public static final int DEFAULT_NIO_LOOPS = 0;
+
+    public boolean pagingEnabled() {
+        return pagingQueueWatermark > 0 || pagingGlobalWatermark > 0;
+    }
+
+    /**
+     * The configured high watermark, or 40% of the maximum heap if none is configured
+     */
+    public long effectiveMemoryHighWatermark() {
+        return memoryHighWatermark > 0 ? memoryHighWatermark : Runtime.getRuntime().maxMemory() / 5 * 2;
+    }
+
+    /**
+     * The configured low watermark, or 80% of the high watermark if none is configured
+     */
+    public long effectiveMemoryLowWatermark() {
+        long high = effectiveMemoryHighWatermark();
+        return memoryLowWatermark > 0 ? Math.min(memoryLowWatermark, high) : high / 5 * 4;
+    }
+
+    /**
+     * Data directory of a broker that does not configure one, below {@link #DEFAULT_DATA_DIRECTORY} and separate
+     * for every component, so that brokers started in the same working directory do not share their queues
+     */
+    public static String defaultDataDirectory(String componentId) {
+        return DEFAULT_DATA_DIRECTORY + "/" + componentId;
+    }
+
+    /**
+     * Default tuning of a broker keeping its durable queues and pages in the given directory
+     */
+    public static BrokerTuningConfig defaults(String dataDirectory) {
+        return new BrokerTuningConfig(
+                DEFAULT_ROUTE_CACHE_SIZE,
+                DEFAULT_FANOUT_PARALLEL_THRESHOLD,
+                DEFAULT_QUEUE_ENGINE,
+                DEFAULT_RING_CAPACITY,
+                DEFAULT_DELIVERY_BATCH_MESSAGES,
+                DEFAULT_DELIVERY_BATCH_BYTES,
+                dataDirectory,
+                DEFAULT_DURABLE_FSYNC,
+                DEFAULT_DURABLE_FSYNC_INTERVAL_MS,
+                DEFAULT_DURABLE_SEGMENT_SIZE,
+                DEFAULT_PAGING_QUEUE_WATERMARK,
+                DEFAULT_PAGING_GLOBAL_WATERMARK,
+                DEFAULT_TIMER_TICK_MS,
+                DEFAULT_MEMORY_HIGH_WATERMARK,
+                DEFAULT_MEMORY_LOW_WATERMARK,
+                DEFAULT_OFF_HEAP_SLAB_SIZE,
+                DEFAULT_OFF_HEAP_POOLED_SLABS,
+                DEFAULT_TRANSPORT,
+                DEFAULT_NIO_LOOPS
+        );
+    }
+}
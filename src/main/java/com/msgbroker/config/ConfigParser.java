@@ -27,7 +27,32 @@ public class ConfigParser {
                 config.getIntArr("election.peer.ids"),
                 config.getInt("election.heartbeat.timeout.ms"),
                 config.getString("monitoring.host"),
-                config.getInt("monitoring.port")
+                config.getInt("monitoring.port"),
+                toBrokerTuningConfig()
+        );
+    }
+
+    public BrokerTuningConfig toBrokerTuningConfig() {
+        return new BrokerTuningConfig(
+                config.getInt("broker.route.cache.size", BrokerTuningConfig.DEFAULT_ROUTE_CACHE_SIZE),
+                config.getInt("broker.fanout.parallel.threshold", BrokerTuningConfig.DEFAULT_FANOUT_PARALLEL_THRESHOLD),
+                config.getString("broker.queue.engine", BrokerTuningConfig.DEFAULT_QUEUE_ENGINE),
+                config.getInt("broker.queue.ring.capacity", BrokerTuningConfig.DEFAULT_RING_CAPACITY),
+                config.getInt("broker.delivery.batch.messages", BrokerTuningConfig.DEFAULT_DELIVERY_BATCH_MESSAGES),
+                config.getInt("broker.delivery.batch.bytes", BrokerTuningConfig.DEFAULT_DELIVERY_BATCH_BYTES),
+                config.getString("broker.data.dir", BrokerTuningConfig.defaultDataDirectory(componentId)),
+                config.getString("broker.durable.fsync", BrokerTuningConfig.DEFAULT_DURABLE_FSYNC),
+                config.getInt("broker.durable.fsync.interval.ms", BrokerTuningConfig.DEFAULT_DURABLE_FSYNC_INTERVAL_MS),
+                config.getInt("broker.durable.segment.size", BrokerTuningConfig.DEFAULT_DURABLE_SEGMENT_SIZE),
+                config.getLong("broker.paging.queue.watermark", BrokerTuningConfig.DEFAULT_PAGING_QUEUE_WATERMARK),
+                config.getLong("broker.paging.global.watermark", BrokerTuningConfig.DEFAULT_PAGING_GLOBAL_WATERMARK),
+                config.getInt("broker.timer.tick.ms", BrokerTuningConfig.DEFAULT_TIMER_TICK_MS),
+                config.getLong("broker.memory.high.watermark", BrokerTuningConfig.DEFAULT_MEMORY_HIGH_WATERMARK),
+                config.getLong("broker.memory.low.watermark", BrokerTuningConfig.DEFAULT_MEMORY_LOW_WATERMARK),
+                config.getInt("broker.offheap.slab.size", BrokerTuningConfig.DEFAULT_OFF_HEAP_SLAB_SIZE),
+                config.getInt("broker.offheap.pooled.slabs", BrokerTuningConfig.DEFAULT_OFF_HEAP_POOLED_SLABS),
+                config.getString("broker.transport", BrokerTuningConfig.DEFAULT_TRANSPORT),
+                config.getInt("broker.nio.loops", BrokerTuningConfig.DEFAULT_NIO_LOOPS)
         );
     }
 
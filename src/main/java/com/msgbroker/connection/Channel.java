@@ -4,7 +4,12 @@ import com.msgbroker.connection.types.ExchangeType;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.function.Consumer;
 
@@ -12,20 +17,41 @@ public class Channel implements IChannel {
 
     private final String host;
     private final int port;
+    private final boolean binary;
 
     private Socket socket;
     private PrintWriter out;
     private BufferedReader in;
+    // Used instead of out and in with binary framing
+    private DataOutputStream frameOut;
+    private DataInputStream frameIn;
+    // Publisher confirms, off while the window is 0
+    private int confirmWindow;
+    private long publishedSeq;
+    private long confirmedSeq;
+    private boolean rejected;
 
     public Channel(String host, int port) {
+        this(host, port, false);
+    }
+
+    /**
+     * @param binary whether to switch the connection to binary {@link SmqpFrame}s, which carry messages as raw
+     *               bytes, so they may contain line breaks
+     */
+    public Channel(String host, int port, boolean binary) {
         this.host = host;
         this.port = port;
+        this.binary = binary;
     }
 
     @Override
     public boolean connect() throws IOException {
         try {
             socket = new Socket(host, port);
+            if (binary) {
+                return connectBinary();
+            }
             out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
             in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 
@@ -36,9 +62,36 @@ public class Channel implements IChannel {
         }
     }
 
+    /**
+     * Read the greeting and switch to binary framing, reading the text replies from the stream the frames follow on
+     */
+    private boolean connectBinary() throws IOException {
+        frameOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        frameIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        if (!"ok SMQP".equalsIgnoreCase(readTextLine())) {
+            return false;
+        }
+        frameOut.write("binary\n".getBytes(StandardCharsets.US_ASCII));
+        frameOut.flush();
+        return "ok binary".equals(readTextLine());
+    }
+
+    private String readTextLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = frameIn.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        return b == -1 && line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8).trim();
+    }
+
     @Override
     public void disconnect() {
         try {
+            if (frameOut != null) {
+                frameOut.write(SmqpFrame.encode(SmqpFrame.EXIT));
+                frameOut.flush();
+            }
             if (out != null) {
                 out.println("exit");
                 out.flush();
@@ -52,21 +105,55 @@ public class Channel implements IChannel {
 
     @Override
     public boolean exchangeDeclare(ExchangeType exchangeType, String exchangeName) {
-        return sendAndExpectOk("exchange " + exchangeType.name().toLowerCase() + " " + exchangeName);
+        if (binary) {
+            return sendAndExpectOk(SmqpFrame.encode(SmqpFrame.EXCHANGE, exchangeType.protocolName(), exchangeName));
+        }
+        return sendAndExpectOk("exchange " + exchangeType.protocolName() + " " + exchangeName);
     }
 
     @Override
     public boolean queueBind(String queueName, String bindingKey) {
+        if (binary) {
+            if (!sendAndExpectOk(SmqpFrame.encode(SmqpFrame.QUEUE, queueName, ""))) return false;
+            return sendAndExpectOk(SmqpFrame.encode(SmqpFrame.BIND, bindingKey));
+        }
         if (!sendAndExpectOk("queue " + queueName)) return false;
         return sendAndExpectOk("bind " + bindingKey);
     }
 
     @Override
     public Thread subscribe(Consumer<String> callback) {
+        return subscribe(0, callback);
+    }
+
+    @Override
+    public Thread subscribe(int prefetch, Consumer<String> callback) {
+        return subscribe(prefetch, false, callback);
+    }
+
+    @Override
+    public Thread subscribe(int prefetch, boolean manualAck, Consumer<String> callback) {
+        String arguments = "";
+        if (prefetch > 0) {
+            arguments += " prefetch=" + prefetch;
+        }
+        if (manualAck) {
+            arguments += " ack=manual";
+        }
+        if (!settleConfirms()) {
+            return null;
+        }
         try {
-            out.println("subscribe");
-            out.flush();
-            String response = in.readLine();
+            String response;
+            if (binary) {
+                frameOut.write(SmqpFrame.encode(SmqpFrame.SUBSCRIBE, arguments.trim()));
+                frameOut.flush();
+                response = readFrame();
+            } else {
+                out.println("subscribe" + arguments);
+                out.flush();
+                response = in.readLine();
+            }
             if (response == null || !response.trim().equalsIgnoreCase("ok")) return null;
         } catch (IOException e) {
             return null;
@@ -75,7 +162,8 @@ public class Channel implements IChannel {
         Thread t = new Thread(() -> {
             try {
                 String msg;
-                while ((msg = in.readLine()) != null && !Thread.currentThread().isInterrupted()) {
+                while ((msg = binary ? readFrame() : in.readLine()) != null
+                        && !Thread.currentThread().isInterrupted()) {
                     callback.accept(msg);
                 }
             } catch (IOException ignored) {}
@@ -85,10 +173,25 @@ public class Channel implements IChannel {
         return t;
     }
 
+    @Override
+    public void ack(long deliveryTag) {
+        if (binary) {
+            try {
+                synchronized (frameOut) {
+                    frameOut.write(SmqpFrame.encode(SmqpFrame.ACK, deliveryTag));
+                    frameOut.flush();
+                }
+            } catch (IOException ignored) {
+            }
+            return;
+        }
+        out.println("ack " + deliveryTag);
+    }
+
     @Override
     public String getFromSubscription() {
         try {
-            return in.readLine();
+            return binary ? readFrame() : in.readLine();
         } catch (IOException e) {
             return null;
         }
@@ -96,10 +199,176 @@ public class Channel implements IChannel {
 
     @Override
     public boolean publish(String routingKey, String message) {
-        return sendAndExpectOk("publish " + routingKey + " " + message);
+        if (binary) {
+            byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+            byte[] frame = SmqpFrame.encode(SmqpFrame.PUBLISH, payload, "", routingKey);
+            return confirmWindow > 0 ? publishWithConfirm(frame, null) : sendAndExpectOk(frame);
+        }
+        String command = "publish " + routingKey + " " + message;
+        return confirmWindow > 0 ? publishWithConfirm(null, command) : sendAndExpectOk(command);
+    }
+
+    @Override
+    public boolean publishBatch(List<Map.Entry<String, String>> messages) {
+        if (messages.isEmpty()) {
+            return true;
+        }
+        if (binary) {
+            List<String> routingKeys = new ArrayList<>(messages.size());
+            List<byte[]> payloads = new ArrayList<>(messages.size());
+            for (Map.Entry<String, String> message : messages) {
+                routingKeys.add(message.getKey());
+                payloads.add(message.getValue().getBytes(StandardCharsets.UTF_8));
+            }
+            byte[] frame = SmqpFrame.encodeBatch("", routingKeys, payloads);
+            return confirmWindow > 0 ? publishWithConfirm(frame, null) : sendAndExpectOk(frame);
+        }
+        StringBuilder command = new StringBuilder("publish-batch ").append(messages.size());
+        for (Map.Entry<String, String> message : messages) {
+            command.append('\n').append(message.getKey()).append(' ').append(message.getValue());
+        }
+        return confirmWindow > 0 ? publishWithConfirm(null, command.toString()) : sendAndExpectOk(command.toString());
+    }
+
+    @Override
+    public boolean confirmSelect(int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        boolean enabled = binary ? sendAndExpectOk(SmqpFrame.encode(SmqpFrame.CONFIRM)) : sendAndExpectOk("confirm");
+        if (enabled) {
+            confirmWindow = maxInFlight;
+        }
+        return enabled;
+    }
+
+    @Override
+    public boolean waitForConfirms() {
+        if (!settleConfirms()) {
+            return false;
+        }
+        boolean accepted = !rejected;
+        rejected = false;
+        return accepted;
+    }
+
+    /**
+     * Read the confirms of all published messages, before another command expects its own answer
+     */
+    private boolean settleConfirms() {
+        try {
+            while (confirmedSeq < publishedSeq) {
+                if (!readConfirm()) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Send a publish without waiting for its answer, taking in the confirms that already arrived and waiting for
+     * more only while the window is full
+     */
+    private boolean publishWithConfirm(byte[] frame, String command) {
+        try {
+            while (confirmedSeq < publishedSeq && (binary ? frameIn.available() > 0 : in.ready())) {
+                if (!readConfirm()) {
+                    return false;
+                }
+            }
+            while (publishedSeq - confirmedSeq >= confirmWindow) {
+                if (!readConfirm()) {
+                    return false;
+                }
+            }
+            if (binary) {
+                frameOut.write(frame);
+                frameOut.flush();
+            } else {
+                out.println(command);
+            }
+            publishedSeq++;
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read a confirm: {@code ok <seq>} settles every publish up to the sequence number,
+     * {@code error <seq> <reason>} settles that publish as rejected
+     *
+     * @return false if the connection was closed or the answer is not a confirm
+     */
+    private boolean readConfirm() throws IOException {
+        String response = binary ? readFrame() : in.readLine();
+        if (response == null) {
+            return false;
+        }
+        String[] parts = response.trim().split("\\s+", 3);
+        try {
+            if (parts.length >= 2 && parts[0].equals("ok")) {
+                confirmedSeq = Long.parseLong(parts[1]);
+                return true;
+            }
+            if (parts.length >= 2 && parts[0].equals("error")) {
+                confirmedSeq = Long.parseLong(parts[1]);
+                rejected = true;
+                return true;
+            }
+        } catch (NumberFormatException e) {
+            // Not a confirm
+        }
+        return false;
+    }
+
+    private boolean sendAndExpectOk(byte[] frame) {
+        if (!settleConfirms()) {
+            return false;
+        }
+        try {
+            frameOut.write(frame);
+            frameOut.flush();
+            String response = readFrame();
+            return response != null && response.equalsIgnoreCase("ok");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read the next frame from the broker, a delivered message is returned like in text mode
+     *
+     * @return the reply line or message, or null if the connection was closed
+     */
+    private String readFrame() throws IOException {
+        int length;
+        try {
+            length = frameIn.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 1 || length > SmqpFrame.MAX_LENGTH) {
+            throw new IOException("invalid frame length " + length);
+        }
+        byte[] body = new byte[length];
+        frameIn.readFully(body);
+        ByteBuffer frame = ByteBuffer.wrap(body);
+        if (frame.get() == SmqpFrame.DELIVER) {
+            long tag = frame.getLong();
+            String message = new String(body, frame.position(), frame.remaining(), StandardCharsets.UTF_8);
+            return tag > 0 ? tag + " " + message : message;
+        }
+        return SmqpFrame.getString(frame);
     }
 
     private boolean sendAndExpectOk(String command) {
+        if (!settleConfirms()) {
+            return false;
+        }
         try {
             out.println(command);
             out.flush();
@@ -4,6 +4,8 @@ import com.msgbroker.connection.types.ExchangeType;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.List;
+import java.util.Map;
 import java.util.function.Consumer;
 
 /**
@@ -38,7 +40,8 @@ public interface IChannel {
      *
      * @param queueName the name of the queue to bind
      * @param bindingKey the binding key to use for the binding
-     *                   (for the fanout exchange, any binding key can be specified, but is ignored)
+     *                   (for the fanout exchange, any binding key can be specified, but is ignored;
+     *                   for the consistent-hash exchange, the binding key is the weight of the queue, e.g. "10")
      *
      * @return true if the binding between the queue and the exchange was successful, false otherwise
      */
@@ -53,6 +56,35 @@ public interface IChannel {
      */
     Thread subscribe(Consumer<String> callback);
 
+    /**
+     * Subscribes to the specified queue like {@link #subscribe(Consumer)}, limiting the number of messages the broker
+     * hands to this subscriber before earlier ones are settled. Subscribers of the same queue are served in turn.
+     *
+     * @param prefetch the maximum number of unsettled messages (0 means unlimited)
+     * @param callback the callback to be called when a message is received.
+     * @return the background-thread that is used to subscribe to the queue
+     */
+    Thread subscribe(int prefetch, Consumer<String> callback);
+
+    /**
+     * Subscribes to the specified queue like {@link #subscribe(int, Consumer)}. With manual acknowledgements, every
+     * message is passed to the callback as {@code <delivery-tag> <message>} and stays unsettled until it is
+     * acknowledged with {@link #ack(long)}; unacknowledged messages are redelivered when the subscription ends.
+     *
+     * @param prefetch  the maximum number of unsettled messages (0 means unlimited)
+     * @param manualAck whether messages have to be acknowledged
+     * @param callback  the callback to be called when a message is received.
+     * @return the background-thread that is used to subscribe to the queue
+     */
+    Thread subscribe(int prefetch, boolean manualAck, Consumer<String> callback);
+
+    /**
+     * Acknowledges the message with the given delivery tag and every message received before it.
+     *
+     * @param deliveryTag the delivery tag of the last processed message
+     */
+    void ack(long deliveryTag);
+
     /**
      * Returns the next message from the subscribed queue.
      * This method should block until a message is available.
@@ -71,4 +103,34 @@ public interface IChannel {
          */
     boolean publish(String routingKey, String message);
 
+    /**
+     * Publishes a batch of messages to the exchange with a single command, which the broker routes in one pass and
+     * answers once for the whole batch.
+     *
+     * @param messages the routing keys and messages to publish, in order
+     *
+     * @return true if every message was successfully published, false otherwise
+     * @throws IllegalArgumentException if a binary channel cannot encode the batch in one frame, because a routing
+     *                                  key or the whole batch is too long
+     */
+    boolean publishBatch(List<Map.Entry<String, String>> messages);
+
+    /**
+     * Switches the channel to publisher confirms. {@link #publish(String, String)} then returns as soon as the message
+     * is sent instead of waiting for the broker's answer, unless {@code maxInFlight} published messages are not
+     * confirmed yet, in which case it first waits for confirms.
+     *
+     * @param maxInFlight the maximum number of unconfirmed messages
+     * @return true if the broker enabled confirms, false otherwise
+     */
+    boolean confirmSelect(int maxInFlight);
+
+    /**
+     * Waits until the broker confirmed every message published in confirm mode.
+     *
+     * @return true if all messages published since the last call were accepted, false if any was rejected or the
+     * connection was lost
+     */
+    boolean waitForConfirms();
+
 }
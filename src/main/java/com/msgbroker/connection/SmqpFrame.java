@@ -0,0 +1,186 @@
+package com.msgbroker.connection;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Binary SMQP framing, which a client switches to by sending {@code binary} after the {@code ok SMQP} greeting and
+ * receiving {@code ok binary}. The client must not send frames before that reply.
+ * <p>
+ * A frame is {@code [length][opcode][fields]}, where the length is a 4-byte big-endian count of the bytes that
+ * follow it. Text fields are written as a 2-byte length followed by their UTF-8 bytes, delivery tags as 8 bytes, and
+ * a message payload takes the rest of the frame as raw bytes, so it may contain line breaks.
+ * <p>
+ * Apart from the encoding, the commands and replies are the same as in text mode: an argument field holds the
+ * {@code key=value} arguments of the text command (empty for none), and a reply frame carries the reply line.
+ */
+public final class SmqpFrame {
+
+    // Client to broker
+    /** Fields: type, name */
+    public static final byte EXCHANGE = 0x01;
+    /** Fields: name, arguments */
+    public static final byte QUEUE = 0x02;
+    /** Fields: binding key */
+    public static final byte BIND = 0x03;
+    /** Fields: arguments, routing key, payload */
+    public static final byte PUBLISH = 0x04;
+    /** Fields: arguments */
+    public static final byte SUBSCRIBE = 0x05;
+    /** Fields: delivery tag */
+    public static final byte ACK = 0x06;
+    public static final byte STOP = 0x07;
+    public static final byte EXIT = 0x08;
+    public static final byte CONFIRM = 0x09;
+    /** Fields: arguments, then a routing key and a length-prefixed payload per message */
+    public static final byte PUBLISH_BATCH = 0x0A;
+    public static final byte STATS = 0x0B;
+
+    // Broker to client
+    /** Fields: reply line */
+    public static final byte REPLY = 0x10;
+    /** Fields: delivery tag (0 without manual acks), payload */
+    public static final byte DELIVER = 0x11;
+
+    /** Largest accepted value of the length prefix */
+    public static final int MAX_LENGTH = 16 * 1024 * 1024;
+    /** Length prefix, opcode and delivery tag in front of a delivered payload */
+    public static final int DELIVER_HEADER_SIZE = Integer.BYTES + Byte.BYTES + Long.BYTES;
+
+    private SmqpFrame() {
+    }
+
+    /**
+     * Encode a frame made of text fields
+     */
+    public static byte[] encode(byte opcode, String... fields) {
+        return encode(opcode, null, fields);
+    }
+
+    /**
+     * Encode a frame made of text fields followed by a payload
+     *
+     * @throws IllegalArgumentException if a field or the whole frame is too long
+     */
+    public static byte[] encode(byte opcode, byte[] payload, String... fields) {
+        byte[][] encoded = new byte[fields.length][];
+        long length = Byte.BYTES + (payload != null ? payload.length : 0);
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = encodeField(fields[i]);
+            length += Short.BYTES + encoded[i].length;
+        }
+        ByteBuffer frame = allocate(length);
+        frame.put(opcode);
+        for (byte[] field : encoded) {
+            frame.putShort((short) field.length).put(field);
+        }
+        if (payload != null) {
+            frame.put(payload);
+        }
+        return frame.array();
+    }
+
+    /**
+     * Encode a batch of messages, given as routing keys and payloads, to publish with the same arguments
+     *
+     * @throws IllegalArgumentException if the arguments, a routing key or the whole frame is too long
+     */
+    public static byte[] encodeBatch(String arguments, List<String> routingKeys, List<byte[]> payloads) {
+        byte[] encodedArguments = encodeField(arguments);
+        byte[][] keys = new byte[routingKeys.size()][];
+        long length = Byte.BYTES + Short.BYTES + encodedArguments.length;
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = encodeField(routingKeys.get(i));
+            length += Short.BYTES + keys[i].length + Integer.BYTES + payloads.get(i).length;
+        }
+        ByteBuffer frame = allocate(length);
+        frame.put(PUBLISH_BATCH);
+        frame.putShort((short) encodedArguments.length).put(encodedArguments);
+        for (int i = 0; i < keys.length; i++) {
+            frame.putShort((short) keys[i].length).put(keys[i]);
+            frame.putInt(payloads.get(i).length).put(payloads.get(i));
+        }
+        return frame.array();
+    }
+
+    private static byte[] encodeField(String field) {
+        byte[] encoded = field.getBytes(StandardCharsets.UTF_8);
+        if (encoded.length > 0xFFFF) {
+            throw new IllegalArgumentException("field too long");
+        }
+        return encoded;
+    }
+
+    /**
+     * Allocate a frame, checking the value of its length prefix against {@link #MAX_LENGTH}, which the broker
+     * would otherwise answer by closing the connection
+     */
+    private static ByteBuffer allocate(long length) {
+        if (length > MAX_LENGTH) {
+            throw new IllegalArgumentException("frame too long");
+        }
+        return ByteBuffer.allocate(Integer.BYTES + (int) length).putInt((int) length);
+    }
+
+    /**
+     * Encode a frame holding a single number, such as an acknowledged delivery tag
+     */
+    public static byte[] encode(byte opcode, long number) {
+        return ByteBuffer.allocate(Integer.BYTES + Byte.BYTES + Long.BYTES)
+                .putInt(Byte.BYTES + Long.BYTES).put(opcode).putLong(number).array();
+    }
+
+    /**
+     * Write the header of a delivery frame, which the payload of the given length follows
+     */
+    public static void putDeliverHeader(ByteBuffer target, int payloadLength, long tag) {
+        target.putInt(Byte.BYTES + Long.BYTES + payloadLength).put(DELIVER).putLong(tag);
+    }
+
+    /**
+     * Read a text field at the position of the buffer
+     *
+     * @throws IllegalArgumentException if the field exceeds the frame
+     */
+    public static String getString(ByteBuffer frame) {
+        if (frame.remaining() < Short.BYTES) {
+            throw new IllegalArgumentException("truncated frame");
+        }
+        int length = frame.getShort() & 0xFFFF;
+        if (frame.remaining() < length) {
+            throw new IllegalArgumentException("truncated frame");
+        }
+        String value = new String(frame.array(), frame.arrayOffset() + frame.position(), length,
+                StandardCharsets.UTF_8);
+        frame.position(frame.position() + length);
+        return value;
+    }
+
+    /**
+     * Read a payload with a 4-byte length prefix at the position of the buffer
+     *
+     * @throws IllegalArgumentException if the payload exceeds the frame
+     */
+    public static byte[] getBytes(ByteBuffer frame) {
+        if (frame.remaining() < Integer.BYTES) {
+            throw new IllegalArgumentException("truncated frame");
+        }
+        int length = frame.getInt();
+        if (length < 0 || frame.remaining() < length) {
+            throw new IllegalArgumentException("truncated frame");
+        }
+        byte[] payload = new byte[length];
+        frame.get(payload);
+        return payload;
+    }
+
+    /**
+     * Read the rest of the frame as payload
+     */
+    public static byte[] getPayload(ByteBuffer frame) {
+        byte[] payload = new byte[frame.remaining()];
+        frame.get(payload);
+        return payload;
+    }
+}
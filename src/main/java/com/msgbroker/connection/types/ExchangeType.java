@@ -1,5 +1,7 @@
 package com.msgbroker.connection.types;
 
+import java.util.Locale;
+
 /**
  * Enum for the different exchange types.
  */
@@ -7,5 +9,22 @@ public enum ExchangeType {
     DEFAULT,
     DIRECT,
     FANOUT,
-    TOPIC
+    TOPIC,
+    CONSISTENT_HASH;
+
+    /**
+     * Returns the name of the exchange type as used by the SMQP protocol, e.g. {@code consistent-hash}.
+     */
+    public String protocolName() {
+        return name().toLowerCase(Locale.ROOT).replace('_', '-');
+    }
+
+    /**
+     * Looks up the exchange type for its SMQP protocol name (case-insensitive).
+     *
+     * @throws IllegalArgumentException if there is no exchange type with the given name
+     */
+    public static ExchangeType fromProtocolName(String name) {
+        return valueOf(name.toUpperCase(Locale.ROOT).replace('-', '_'));
+    }
 }
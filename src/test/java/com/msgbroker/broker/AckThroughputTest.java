@@ -0,0 +1,98 @@
+package com.msgbroker.broker;
+
+import com.msgbroker.broker.enums.FsyncMode;
+import com.msgbroker.broker.store.DurableStorage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Throughput of one consumer draining a backlog with auto-ack against manual acks, sending one cumulative ack per
+ * delivered batch, on an in-memory and a durable queue. A plain nanoTime harness, as JMH is not part of the build.
+ * Only runs when asked for:
+ * <pre>
+ * mvn test -Dtest=AckThroughputTest -Dbenchmark=true
+ * </pre>
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class AckThroughputTest {
+
+    private static final int MESSAGES = 2_000_000;
+    private static final int BATCH_MESSAGES = 256;
+    private static final int PREFETCH = 1000;
+    private static final int ROUNDS = 3;
+
+    @TempDir
+    Path dataDirectory;
+
+    private int run;
+
+    @Test
+    void compare_auto_and_manual_acks() throws IOException, InterruptedException {
+        System.out.printf("%-8s %-7s %14s %14s%n", "engine", "ack", "best msg/s", "median msg/s");
+        for (boolean durable : new boolean[]{false, true}) {
+            report(durable, "auto");
+            report(durable, "manual");
+        }
+    }
+
+    private void report(boolean durable, String ack) throws IOException, InterruptedException {
+        run(durable, ack); // warm-up
+        double[] rates = new double[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            rates[i] = run(durable, ack);
+        }
+        Arrays.sort(rates);
+        System.out.printf("%-8s %-7s %14.0f %14.0f%n", durable ? "durable" : "deque", ack, rates[ROUNDS - 1],
+                rates[ROUNDS / 2]);
+    }
+
+    /**
+     * Fill a queue with {@link #MESSAGES} messages, then consume all of them
+     *
+     * @return messages per second delivered to the consumer
+     */
+    private double run(boolean durable, String ack) throws IOException, InterruptedException {
+        try (DurableStorage storage = new DurableStorage(dataDirectory.resolve("run-" + run++), 64 * 1024 * 1024,
+                FsyncMode.OS, 0)) {
+            MessageQueue queue = durable
+                    ? new MessageQueue("queue", QueueArguments.parse("durable=true"),
+                    storage.open("queue", "durable=true"))
+                    : new MessageQueue("queue");
+            Message message = Message.of("key", "payload");
+            for (int i = 0; i < MESSAGES; i++) {
+                queue.enqueue(message);
+            }
+
+            CountDownLatch delivered = new CountDownLatch(1);
+            QueueConsumer[] consumer = new QueueConsumer[1];
+            long[] count = new long[1];
+            consumer[0] = new QueueConsumer(queue, (batch, firstTag) -> {
+                if (firstTag > 0) {
+                    consumer[0].ack(firstTag + batch.size() - 1);
+                }
+                count[0] += batch.size();
+                if (count[0] == MESSAGES) {
+                    delivered.countDown();
+                }
+            }, BATCH_MESSAGES, 0, SubscriptionArguments.parse("prefetch=" + PREFETCH + " ack=" + ack));
+
+            long begin = System.nanoTime();
+            consumer[0].start();
+            assertThat(delivered.await(5, TimeUnit.MINUTES)).isTrue();
+            long elapsed = System.nanoTime() - begin;
+            consumer[0].cancel();
+            consumer[0].awaitTermination(1, TimeUnit.SECONDS);
+            assertThat(queue.isEmpty()).isTrue();
+            return (double) MESSAGES * 1_000_000_000L / elapsed;
+        }
+    }
+}
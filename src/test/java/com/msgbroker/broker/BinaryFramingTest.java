@@ -0,0 +1,140 @@
+package com.msgbroker.broker;
+
+import com.msgbroker.broker.enums.Transport;
+import com.msgbroker.connection.Channel;
+import com.msgbroker.connection.SmqpFrame;
+import com.msgbroker.connection.types.ExchangeType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class BinaryFramingTest {
+
+    @TempDir
+    Path dataDirectory;
+
+    private BrokerState state;
+    private IConnectionListener listener;
+
+    private int start(Transport transport) throws IOException {
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        state = BrokerState.open(dataDirectory);
+        listener = transport == Transport.NIO
+                ? new NioConnectionListener(port, state, null, 1)
+                : new BrokerConnectionListener(port, state, null);
+        Thread.ofVirtual().start(listener);
+        NioTransportTest.awaitListening(port);
+        return port;
+    }
+
+    @AfterEach
+    void stop() {
+        if (listener != null) {
+            listener.shutdown();
+            state.close();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Transport.class)
+    @Timeout(value = 5000, unit = TimeUnit.MILLISECONDS)
+    void binary_channel_carries_payloads_with_line_breaks(Transport transport) throws IOException,
+            InterruptedException {
+        int port = start(transport);
+        Channel publisher = connect(port);
+        assertThat(publisher.exchangeDeclare(ExchangeType.DIRECT, "binary")).isTrue();
+        assertThat(publisher.queueBind("binary-queue", "key")).isTrue();
+        assertThat(publisher.publish("key", "first line\nsecond line")).isTrue();
+        assertThat(publisher.publish("key", "m2")).isTrue();
+        // Errors are replied in frames as well
+        assertThat(publisher.exchangeDeclare(ExchangeType.TOPIC, "binary")).isFalse();
+
+        Channel subscriber = connect(port);
+        assertThat(subscriber.exchangeDeclare(ExchangeType.DIRECT, "binary")).isTrue();
+        assertThat(subscriber.queueBind("binary-queue", "key")).isTrue();
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        assertThat(subscriber.subscribe(0, true, received::add)).isNotNull();
+        assertThat(received.poll(1, TimeUnit.SECONDS)).isEqualTo("1 first line\nsecond line");
+        assertThat(received.poll(1, TimeUnit.SECONDS)).isEqualTo("2 m2");
+        subscriber.ack(2);
+
+        publisher.disconnect();
+        subscriber.disconnect();
+    }
+
+    @ParameterizedTest
+    @EnumSource(Transport.class)
+    @Timeout(value = 20000, unit = TimeUnit.MILLISECONDS)
+    void text_line_longer_than_the_largest_frame_disconnects_the_client(Transport transport) throws IOException,
+            InterruptedException {
+        int port = start(transport);
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(15000); // a broker that keeps buffering fails the test instead of hanging it
+            OutputStream out = socket.getOutputStream();
+            Thread writer = Thread.ofVirtual().start(() -> {
+                byte[] chunk = new byte[64 * 1024];
+                Arrays.fill(chunk, (byte) 'x');
+                try {
+                    for (long sent = 0; sent < SmqpSession.MAX_LINE_LENGTH + (1 << 20); sent += chunk.length) {
+                        out.write(chunk);
+                    }
+                } catch (IOException e) {
+                    // Disconnected by the broker
+                }
+            });
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[1024];
+            try {
+                while (in.read(buffer) >= 0) {
+                    // Only the greeting is sent
+                }
+            } catch (SocketException e) {
+                // Reset by the broker, which closed the socket with input left unread
+            }
+            writer.join();
+        }
+
+        Channel channel = connect(port);
+        assertThat(channel.exchangeDeclare(ExchangeType.DIRECT, "after-long-line")).isTrue();
+        channel.disconnect();
+    }
+
+    @Test
+    void batch_frame_that_the_broker_would_refuse_is_not_encoded() {
+        byte[] half = new byte[SmqpFrame.MAX_LENGTH / 2];
+        assertThatThrownBy(() -> SmqpFrame.encodeBatch("", List.of("key", "key"), List.of(half, half)))
+                .isInstanceOf(IllegalArgumentException.class).hasMessage("frame too long");
+        assertThatThrownBy(() -> SmqpFrame.encodeBatch("", List.of("k".repeat(0x10000)), List.of(new byte[1])))
+                .isInstanceOf(IllegalArgumentException.class).hasMessage("field too long");
+        assertThatThrownBy(() -> SmqpFrame.encodeBatch("a".repeat(0x10000), List.of("key"), List.of(new byte[1])))
+                .isInstanceOf(IllegalArgumentException.class).hasMessage("field too long");
+    }
+
+    private static Channel connect(int port) throws IOException {
+        Channel channel = new Channel("localhost", port, true);
+        assertThat(channel.connect()).isTrue();
+        return channel;
+    }
+}
@@ -0,0 +1,147 @@
+package com.msgbroker.broker;
+
+import com.msgbroker.broker.enums.Transport;
+import com.msgbroker.connection.SmqpFrame;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Throughput of pipelined publishes in text mode and with binary framing, on both transports. The client writes
+ * all publishes from one thread and reads the replies on another. A plain nanoTime harness, as JMH is not part of
+ * the build. Only runs when asked for:
+ * <pre>
+ * mvn test -Dtest=BinaryFramingThroughputTest -Dbenchmark=true
+ * </pre>
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class BinaryFramingThroughputTest {
+
+    private static final int MESSAGES = 1_000_000;
+    private static final int ROUNDS = 3;
+    private static final String PAYLOAD = "message-of-thirty-bytes-------";
+
+    @TempDir
+    Path dataDirectory;
+
+    @Test
+    void compare_text_and_binary_publishes() throws IOException, InterruptedException {
+        System.out.printf("%-9s %-7s %14s %14s%n", "transport", "mode", "best msg/s", "median msg/s");
+        for (Transport transport : Transport.values()) {
+            report(transport, false);
+            report(transport, true);
+        }
+    }
+
+    private void report(Transport transport, boolean binary) throws IOException, InterruptedException {
+        run(transport, binary); // warm-up
+        double[] rates = new double[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            rates[i] = run(transport, binary);
+        }
+        Arrays.sort(rates);
+        System.out.printf("%-9s %-7s %14.0f %14.0f%n", transport, binary ? "binary" : "text", rates[ROUNDS - 1],
+                rates[ROUNDS / 2]);
+    }
+
+    /**
+     * Publish {@link #MESSAGES} messages to a queue without waiting for each reply
+     *
+     * @return messages per second, until the last reply is read
+     */
+    private double run(Transport transport, boolean binary) throws IOException, InterruptedException {
+        BrokerState state = BrokerState.open(dataDirectory);
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        IConnectionListener listener = transport == Transport.NIO
+                ? new NioConnectionListener(port, state, null, 1)
+                : new BrokerConnectionListener(port, state, null);
+        Thread.ofPlatform().start(listener);
+        NioTransportTest.awaitListening(port);
+        try (Socket socket = new Socket("localhost", port)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            assertThat(readLine(in)).isEqualTo("ok SMQP");
+            for (String command : new String[]{"exchange direct bench", "queue bench", "bind bench"}) {
+                writeLine(out, command);
+                assertThat(readLine(in)).isEqualTo("ok");
+            }
+            if (binary) {
+                writeLine(out, "binary");
+                assertThat(readLine(in)).isEqualTo("ok binary");
+            }
+
+            byte[] publish = binary
+                    ? SmqpFrame.encode(SmqpFrame.PUBLISH, PAYLOAD.getBytes(StandardCharsets.UTF_8), "", "bench")
+                    : ("publish bench " + PAYLOAD + "\n").getBytes(StandardCharsets.UTF_8);
+            long begin = System.nanoTime();
+            Thread writer = Thread.ofPlatform().start(() -> {
+                try {
+                    for (int i = 0; i < MESSAGES; i++) {
+                        out.write(publish);
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            for (int i = 0; i < MESSAGES; i++) {
+                String reply = binary ? readFrame(in) : readLine(in);
+                if (!reply.equals("ok")) {
+                    throw new AssertionError("publish " + i + " answered with " + reply);
+                }
+            }
+            long elapsed = System.nanoTime() - begin;
+            writer.join();
+            assertThat(state.getQueue("bench").size()).isEqualTo(MESSAGES);
+            return (double) MESSAGES * 1_000_000_000L / elapsed;
+        } finally {
+            listener.shutdown();
+            state.close();
+        }
+    }
+
+    private static void writeLine(OutputStream out, String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("connection closed");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static String readFrame(DataInputStream in) throws IOException {
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        if (body[0] != SmqpFrame.REPLY) {
+            throw new IOException("unexpected opcode " + body[0]);
+        }
+        return new String(body, 1 + Short.BYTES, body.length - 1 - Short.BYTES, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,106 @@
+package com.msgbroker.broker;
+
+import com.msgbroker.broker.enums.Transport;
+import com.msgbroker.config.BrokerTuningConfig;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Catch-up throughput of a subscriber that connects to a queue with a backlog, flushing after every message
+ * (a delivery batch of 1) against the default delivery batch. A plain nanoTime harness, as JMH is not part of the
+ * build. Only runs when asked for:
+ * <pre>
+ * mvn test -Dtest=DeliveryBatchThroughputTest -Dbenchmark=true
+ * </pre>
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class DeliveryBatchThroughputTest {
+
+    private static final int BACKLOG = 200_000;
+    private static final int ROUNDS = 3;
+
+    @TempDir
+    Path dataDirectory;
+
+    @Test
+    void compare_flush_per_message_with_batched_delivery() throws IOException, InterruptedException {
+        System.out.printf("%-9s %-7s %14s %14s%n", "transport", "batch", "best msg/s", "median msg/s");
+        for (Transport transport : Transport.values()) {
+            report(transport, 1);
+            report(transport, BrokerTuningConfig.DEFAULT_DELIVERY_BATCH_MESSAGES);
+        }
+    }
+
+    private void report(Transport transport, int batchMessages) throws IOException, InterruptedException {
+        run(transport, batchMessages); // warm-up
+        double[] rates = new double[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            rates[i] = run(transport, batchMessages);
+        }
+        Arrays.sort(rates);
+        System.out.printf("%-9s %-7d %14.0f %14.0f%n", transport, batchMessages, rates[ROUNDS - 1], rates[ROUNDS / 2]);
+    }
+
+    /**
+     * Fill a queue with {@link #BACKLOG} messages, then subscribe and read all of them
+     *
+     * @return messages per second read by the subscriber
+     */
+    private double run(Transport transport, int batchMessages) throws IOException, InterruptedException {
+        BrokerTuningConfig defaults = BrokerTuningConfig.defaults(dataDirectory.toString());
+        BrokerState state = BrokerState.open(new BrokerTuningConfig(defaults.routeCacheSize(),
+                defaults.fanoutParallelThreshold(), defaults.queueEngine(), defaults.ringCapacity(), batchMessages,
+                defaults.deliveryBatchBytes(), defaults.dataDirectory(), defaults.durableFsync(),
+                defaults.durableFsyncIntervalMs(), defaults.durableSegmentSize(), defaults.pagingQueueWatermark(),
+                defaults.pagingGlobalWatermark(), defaults.timerTickMs(), defaults.memoryHighWatermark(),
+                defaults.memoryLowWatermark(), defaults.offHeapSlabSize(), defaults.offHeapPooledSlabs(),
+                defaults.transport(), defaults.nioLoops()));
+        MessageQueue queue = state.getOrCreateQueue("backlog");
+        Message message = Message.of("backlog", "message-of-20-bytes!");
+        for (int i = 0; i < BACKLOG; i++) {
+            queue.enqueue(message);
+        }
+
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        IConnectionListener listener = transport == Transport.NIO
+                ? new NioConnectionListener(port, state, null, 1)
+                : new BrokerConnectionListener(port, state, null);
+        Thread.ofPlatform().start(listener);
+        NioTransportTest.awaitListening(port);
+        try (Socket socket = new Socket("localhost", port)) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+            assertThat(in.readLine()).isEqualTo("ok SMQP");
+            out.println("queue backlog");
+            assertThat(in.readLine()).isEqualTo("ok");
+
+            long begin = System.nanoTime();
+            out.println("subscribe");
+            assertThat(in.readLine()).isEqualTo("ok");
+            for (int i = 0; i < BACKLOG; i++) {
+                assertThat(in.readLine()).isNotNull();
+            }
+            long elapsed = System.nanoTime() - begin;
+            return (double) BACKLOG * 1_000_000_000L / elapsed;
+        } finally {
+            listener.shutdown();
+            state.close();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.msgbroker.broker;
+
+import com.msgbroker.broker.enums.FsyncMode;
+import com.msgbroker.broker.store.DurableQueueStore;
+import com.msgbroker.broker.store.DurableStorage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Single-threaded append throughput of a durable queue's log with each fsync mode. A plain nanoTime harness, as
+ * JMH is not part of the build. Only runs when asked for:
+ * <pre>
+ * mvn test -Dtest=DurableFsyncThroughputTest -Dbenchmark=true
+ * </pre>
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class DurableFsyncThroughputTest {
+
+    private static final int MESSAGES = 1_000_000;
+    // Forcing every append is orders of magnitude slower
+    private static final int FORCED_MESSAGES = 20_000;
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int ROUNDS = 3;
+
+    @TempDir
+    Path dataDirectory;
+
+    private int run;
+
+    @Test
+    void compare_fsync_modes() throws IOException {
+        System.out.printf("%-9s %14s %14s%n", "fsync", "best msg/s", "median msg/s");
+        for (FsyncMode fsync : FsyncMode.values()) {
+            int messages = fsync == FsyncMode.ALWAYS ? FORCED_MESSAGES : MESSAGES;
+            run(fsync, messages); // warm-up
+            double[] rates = new double[ROUNDS];
+            for (int i = 0; i < ROUNDS; i++) {
+                rates[i] = run(fsync, messages);
+            }
+            Arrays.sort(rates);
+            System.out.printf("%-9s %14.0f %14.0f%n", fsync, rates[ROUNDS - 1], rates[ROUNDS / 2]);
+        }
+    }
+
+    /**
+     * Append messages with 100-byte payloads to a new log, then take them back
+     *
+     * @return messages appended per second
+     */
+    private double run(FsyncMode fsync, int messages) throws IOException {
+        Message message = Message.of("durable", "x".repeat(100));
+        try (DurableStorage storage = new DurableStorage(dataDirectory.resolve("run-" + run++), SEGMENT_SIZE, fsync,
+                100)) {
+            DurableQueueStore store = storage.open("durable", "durable=true");
+            long begin = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                store.offer(message);
+            }
+            long elapsed = System.nanoTime() - begin;
+            for (int i = 0; i < messages; i++) {
+                assertThat(store.poll()).isNotNull();
+            }
+            return (double) messages * 1_000_000_000L / elapsed;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.msgbroker.broker;
+
+import com.msgbroker.broker.enums.FsyncMode;
+import com.msgbroker.broker.store.DurableStorage;
+import com.msgbroker.broker.store.DurableQueueStore;
+import com.msgbroker.broker.store.PagingMetrics;
+import com.msgbroker.config.BrokerTuningConfig;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+
+public class DurableQueueTest {
+
+    @TempDir
+    Path dataDirectory;
+
+    @Test
+    void durable_queue_is_recovered_with_unconsumed_messages_after_restart() throws InterruptedException {
+        BrokerState state = BrokerState.open(tuning("always", 0));
+        QueueArguments arguments = QueueArguments.parse("durable=true max-length=10 overflow=reject");
+        MessageQueue queue = state.getOrCreateQueue("orders", arguments);
+        queue.enqueue(Message.of("orders", "m1"));
+        queue.enqueue(Message.of("orders", "m2"));
+        queue.enqueue(Message.of("orders", "m3"));
+        assertThat(queue.dequeue().getText()).isEqualTo("m1");
+        state.close();
+
+        BrokerState restarted = BrokerState.open(tuning("always", 0));
+        MessageQueue recovered = restarted.getQueue("orders");
+        assertThat(recovered).isNotNull();
+        assertThat(recovered.getArguments()).isEqualTo(arguments);
+        assertThat(recovered.size()).isEqualTo(2);
+        assertThat(recovered.getBytes()).isEqualTo(4);
+        assertThat(recovered.dequeue().getText()).isEqualTo("m2");
+        assertThat(recovered.dequeue().getText()).isEqualTo("m3");
+        restarted.close();
+    }
+
+    @Test
+    void routing_key_longer_than_its_length_field_is_not_logged() throws IOException {
+        try (DurableStorage storage = new DurableStorage(dataDirectory, 1 << 20, FsyncMode.OS, 0)) {
+            DurableQueueStore store = storage.open("queue", "durable=true");
+            String longKey = "k".repeat(Message.MAX_ROUTING_KEY_LENGTH + 1);
+            assertThatThrownBy(() -> store.offer(Message.of(longKey, "lost"))).isInstanceOf(IllegalArgumentException.class);
+            store.offer(Message.of("key", "kept"));
+        }
+
+        try (DurableStorage storage = new DurableStorage(dataDirectory, 1 << 20, FsyncMode.OS, 0)) {
+            DurableQueueStore reopened = storage.open("queue", "durable=true");
+            assertThat(reopened.size()).isEqualTo(1);
+            assertThat(reopened.poll().getText()).isEqualTo("kept");
+        }
+    }
+
+    @Test
+    void dot_names_stay_inside_their_own_queue_directory() throws IOException {
+        try (DurableStorage storage = new DurableStorage(dataDirectory, 1 << 20, FsyncMode.OS, 0)) {
+            storage.open(".", "durable=true").offer(Message.of("key", "dot"));
+            storage.open("..", "durable=true").offer(Message.of("key", "dot-dot"));
+        }
+        try (Stream<Path> list = Files.list(dataDirectory)) {
+            assertThat(list.map(path -> path.getFileName().toString())).containsExactly("queues");
+        }
+        try (Stream<Path> list = Files.list(dataDirectory.resolve("queues"))) {
+            assertThat(list.allMatch(Files::isDirectory)).isTrue();
+        }
+
+        try (DurableStorage storage = new DurableStorage(dataDirectory, 1 << 20, FsyncMode.OS, 0)) {
+            assertThat(storage.findQueues()).containsOnlyKeys(".", "..");
+            assertThat(storage.open(".", "durable=true").poll().getText()).isEqualTo("dot");
+            assertThat(storage.open("..", "durable=true").poll().getText()).isEqualTo("dot-dot");
+            assertThatThrownBy(() -> storage.open("", "durable=true")).isInstanceOf(IllegalArgumentException.class);
+        }
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS)
+    void delivered_messages_stay_in_the_log_until_they_are_acknowledged() throws IOException, InterruptedException {
+        try (DurableStorage storage = new DurableStorage(dataDirectory, 1 << 20, FsyncMode.OS, 0)) {
+            MessageQueue queue = new MessageQueue("queue", QueueArguments.parse("durable=true"),
+                    storage.open("queue", "durable=true"));
+            for (int i = 0; i < 4; i++) {
+                queue.enqueue(Message.of("key", "m" + i));
+            }
+            List<String> delivered = new CopyOnWriteArrayList<>();
+            QueueConsumer consumer = new QueueConsumer(queue,
+                    (batch, firstTag) -> batch.forEach(m -> delivered.add(m.getText())), 16, 0,
+                    SubscriptionArguments.parse("ack=manual"));
+            consumer.start();
+            await().atMost(1, TimeUnit.SECONDS).until(() -> delivered.size() == 4);
+            assertThat(consumer.ack(2)).isEqualTo(2);
+            // The broker stops without the consumer acknowledging m2 and m3
+        }
+
+        try (DurableStorage storage = new DurableStorage(dataDirectory, 1 << 20, FsyncMode.OS, 0)) {
+            DurableQueueStore reopened = storage.open("queue", "durable=true");
+            assertThat(reopened.size()).isEqualTo(2);
+            assertThat(reopened.poll().getText()).isEqualTo("m2");
+            assertThat(reopened.poll().getText()).isEqualTo("m3");
+        }
+    }
+
+    @Test
+    void log_advances_over_messages_settled_out_of_order_once_the_oldest_is_settled() throws IOException {
+        try (DurableStorage storage = new DurableStorage(dataDirectory, 1 << 20, FsyncMode.OS, 0)) {
+            DurableQueueStore store = storage.open("queue", "durable=true");
+            for (int i = 0; i < 3; i++) {
+                store.offer(Message.of("key", "m" + i));
+            }
+            Message m0 = store.pollUnsettled();
+            Message m1 = store.pollUnsettled();
+            store.settle(m1);
+            assertThat(store.requeueAll(List.of(m0))).isEqualTo(1);
+            assertThat(store.poll()).isSameAs(m0);
+        }
+
+        try (DurableStorage storage = new DurableStorage(dataDirectory, 1 << 20, FsyncMode.OS, 0)) {
+            DurableQueueStore reopened = storage.open("queue", "durable=true");
+            assertThat(reopened.size()).isEqualTo(1);
+            assertThat(reopened.poll().getText()).isEqualTo("m2");
+        }
+    }
+
+    @Test
+    void log_holds_its_records_behind_a_long_unsettled_one_and_advances_once_it_is_settled() throws IOException {
+        int count = 20_000;
+        int held = 15_000;
+        try (DurableStorage storage = new DurableStorage(dataDirectory, 1 << 16, FsyncMode.OS, 0)) {
+            DurableQueueStore store = storage.open("queue", "durable=true");
+            for (int i = 0; i < count; i++) {
+                store.offer(Message.of("key", "m" + i));
+            }
+            List<Message> taken = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                taken.add(store.pollUnsettled());
+            }
+            // The window moves past its first word before the unsettled head makes it grow
+            for (int i = 0; i < 100; i++) {
+                store.settle(taken.get(i));
+            }
+            for (int i = 101; i < count; i++) {
+                if (i != held) {
+                    store.settle(taken.get(i));
+                }
+            }
+            int segments = store.getLog().getSegmentCount();
+            assertThat(segments).isGreaterThan(5);
+
+            store.settle(taken.get(100));
+            assertThat(store.getLog().getSegmentCount()).isLessThan(segments);
+            store.offer(Message.of("key", "after"));
+        }
+
+        try (DurableStorage storage = new DurableStorage(dataDirectory, 1 << 16, FsyncMode.OS, 0)) {
+            DurableQueueStore reopened = storage.open("queue", "durable=true");
+            // The records settled after the held one are redelivered, the log cannot skip them
+            assertThat(reopened.size()).isEqualTo(count - held + 1);
+            assertThat(reopened.poll().getText()).isEqualTo("m" + held);
+            for (int i = 1; i < count - held; i++) {
+                reopened.poll();
+            }
+            assertThat(reopened.poll().getText()).isEqualTo("after");
+        }
+    }
+
+    @Test
+    void closing_the_storage_releases_the_mappings_of_every_log() throws IOException {
+        BufferPoolMXBean mapped = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                .filter(pool -> pool.getName().equals("mapped")).findFirst().orElseThrow();
+        long before = mapped.getCount();
+        DurableStorage storage = new DurableStorage(dataDirectory, 256, FsyncMode.OS, 0);
+        DurableQueueStore store = storage.open("queue", "durable=true");
+        for (int i = 0; i < 50; i++) {
+            store.offer(Message.of("key", "message-" + i));
+        }
+        storage.openPages("paged").append(Message.of("key", "paged"));
+        assertThat(mapped.getCount()).isGreaterThan(before);
+
+        storage.close();
+        assertThat(mapped.getCount()).isLessThanOrEqualTo(before);
+        assertThatThrownBy(() -> store.offer(Message.of("key", "late"))).isInstanceOf(IllegalStateException.class);
+
+        try (DurableStorage reopened = new DurableStorage(dataDirectory, 256, FsyncMode.OS, 0)) {
+            assertThat(reopened.open("queue", "durable=true").size()).isEqualTo(50);
+        }
+    }
+
+    @Test
+    void consumed_segments_are_deleted() throws IOException {
+        try (DurableStorage storage = new DurableStorage(dataDirectory, 256, FsyncMode.OS, 0)) {
+            DurableQueueStore store = storage.open("queue", "durable=true");
+            for (int i = 0; i < 50; i++) {
+                store.offer(Message.of("key", "message-" + i));
+            }
+            assertThat(store.getLog().getSegmentCount()).isGreaterThan(5);
+
+            for (int i = 0; i < 45; i++) {
+                store.poll();
+            }
+            assertThat(store.getLog().getSegmentCount()).isLessThanOrEqualTo(2);
+        }
+
+        try (DurableStorage storage = new DurableStorage(dataDirectory, 256, FsyncMode.OS, 0)) {
+            DurableQueueStore reopened = storage.open("queue", "durable=true");
+            assertThat(reopened.size()).isEqualTo(5);
+            assertThat(reopened.poll().getText()).isEqualTo("message-45");
+        }
+    }
+
+    @Test
+    void messages_above_queue_watermark_are_paged_out_and_read_back_in_order() throws InterruptedException {
+        BrokerState state = BrokerState.open(tuning("os", 100));
+        PagingMetrics metrics = state.getPagingMetrics();
+        MessageQueue queue = state.getOrCreateQueue("bulk");
+        for (int i = 0; i < 50; i++) {
+            queue.enqueue(Message.of("bulk", String.format("message%03d", i)));
+        }
+        assertThat(metrics.getMemoryBytes()).isLessThanOrEqualTo(100);
+        assertThat(metrics.getPagedBytes()).isEqualTo(500 - metrics.getMemoryBytes());
+        assertThat(queue.size()).isEqualTo(50);
+        assertThat(state.getStats())
+                .containsEntry("paging-memory-bytes", metrics.getMemoryBytes())
+                .containsEntry("paged-bytes", metrics.getPagedBytes())
+                .containsEntry("paged-out-bytes", metrics.getPagedBytes())
+                .containsEntry("page-ins", 0L);
+
+        for (int i = 0; i < 50; i++) {
+            assertThat(queue.dequeue().getText()).isEqualTo(String.format("message%03d", i));
+        }
+        assertThat(metrics.getPagedBytes()).isZero();
+        assertThat(metrics.getPageIns()).isGreaterThan(1);
+        assertThat(metrics.getPagedOutBytes()).isGreaterThan(0);
+        assertThat(state.getStats())
+                .containsEntry("paged-bytes", 0L)
+                .containsEntry("page-ins", metrics.getPageIns())
+                .containsEntry("page-in-max-nanos", metrics.getMaxPageInNanos());
+        state.close();
+    }
+
+    @Test
+    void paging_a_queue_named_dot_dot_keeps_the_files_of_the_data_directory() throws InterruptedException, IOException {
+        Path unrelated = Files.writeString(dataDirectory.resolve("unrelated"), "kept");
+        BrokerState state = BrokerState.open(tuning("os", 10));
+        MessageQueue queue = state.getOrCreateQueue("..");
+        for (int i = 0; i < 5; i++) {
+            queue.enqueue(Message.of("..", "message" + i));
+        }
+        assertThat(state.getPagingMetrics().getPagedBytes()).isGreaterThan(0);
+        assertThat(Files.readString(unrelated)).isEqualTo("kept");
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(queue.dequeue().getText()).isEqualTo("message" + i);
+        }
+        state.close();
+    }
+
+    private BrokerTuningConfig tuning(String fsync, long pagingQueueWatermark) {
+        BrokerTuningConfig defaults = BrokerTuningConfig.defaults(dataDirectory.toString());
+        return new BrokerTuningConfig(defaults.routeCacheSize(), defaults.fanoutParallelThreshold(),
+                defaults.queueEngine(), defaults.ringCapacity(), defaults.deliveryBatchMessages(),
+                defaults.deliveryBatchBytes(), dataDirectory.toString(), fsync,
+                defaults.durableFsyncIntervalMs(), defaults.durableSegmentSize(), pagingQueueWatermark, 0,
+                defaults.timerTickMs(), defaults.memoryHighWatermark(), defaults.memoryLowWatermark(),
+                defaults.offHeapSlabSize(), defaults.offHeapPooledSlabs(), defaults.transport(), defaults.nioLoops());
+    }
+}
@@ -0,0 +1,167 @@
+package com.msgbroker.broker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ExchangeTest {
+
+    @Test
+    void repeated_routing_key_is_served_from_route_cache() {
+        Exchange exchange = new Exchange("exchange", "topic");
+        MessageQueue queue = new MessageQueue("queue");
+        exchange.bind("a.*", queue);
+
+        exchange.routeMessage(Message.of("a.b", "m1"));
+        exchange.routeMessage(Message.of("a.b", "m2"));
+        exchange.routeMessage(Message.of("a.b", "m3"));
+
+        assertThat(exchange.getRouteCacheMisses()).isEqualTo(1);
+        assertThat(exchange.getRouteCacheHits()).isEqualTo(2);
+    }
+
+    @Test
+    void bind_invalidates_cached_routes() throws InterruptedException {
+        Exchange exchange = new Exchange("exchange", "direct");
+        MessageQueue first = new MessageQueue("first");
+        MessageQueue second = new MessageQueue("second");
+        exchange.bind("key", first);
+
+        exchange.routeMessage(Message.of("key", "m1"));
+        exchange.bind("key", second);
+        exchange.routeMessage(Message.of("key", "m2"));
+
+        assertThat(exchange.getRouteCacheMisses()).isEqualTo(2);
+        assertThat(text(first.poll(0, TimeUnit.MILLISECONDS))).isEqualTo("m1");
+        assertThat(text(first.poll(0, TimeUnit.MILLISECONDS))).isEqualTo("m2");
+        assertThat(text(second.poll(0, TimeUnit.MILLISECONDS))).isEqualTo("m2");
+        assertThat(second.isEmpty()).isTrue();
+    }
+
+    @Test
+    void disabled_route_cache_always_resolves() {
+        Exchange exchange = new Exchange("exchange", "direct", 0, 0);
+        exchange.bind("key", new MessageQueue("queue"));
+
+        exchange.routeMessage(Message.of("key", "m1"));
+        exchange.routeMessage(Message.of("key", "m2"));
+
+        assertThat(exchange.getRouteCacheHits()).isZero();
+    }
+
+    @Test
+    void consistent_hash_exchange_routes_each_key_to_one_stable_queue() throws InterruptedException {
+        Exchange exchange = new Exchange("exchange", "consistent-hash");
+        MessageQueue[] queues = new MessageQueue[4];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new MessageQueue("queue-" + i);
+            exchange.bind("10", queues[i]);
+        }
+
+        for (int key = 0; key < 400; key++) {
+            exchange.routeMessage(Message.of("key-" + key, "first-" + key));
+            exchange.routeMessage(Message.of("key-" + key, "second-" + key));
+        }
+
+        int total = 0;
+        for (MessageQueue queue : queues) {
+            int received = 0;
+            String message;
+            while ((message = text(queue.poll(0, TimeUnit.MILLISECONDS))) != null) {
+                String key = message.substring(message.indexOf('-') + 1);
+                assertThat(message).startsWith("first-");
+                assertThat(text(queue.poll(0, TimeUnit.MILLISECONDS))).isEqualTo("second-" + key);
+                received += 2;
+            }
+            assertThat(received).isGreaterThan(100);
+            total += received;
+        }
+        assertThat(total).isEqualTo(800);
+    }
+
+    @Test
+    void consistent_hash_exchange_rejects_invalid_weights() {
+        Exchange exchange = new Exchange("exchange", "consistent-hash");
+
+        assertThat(exchange.acceptsBindingKey("abc")).isFalse();
+        assertThat(exchange.acceptsBindingKey("0")).isFalse();
+        assertThat(exchange.acceptsBindingKey("5")).isTrue();
+    }
+
+    @Test
+    void batch_is_routed_to_each_queue_in_publish_order() throws InterruptedException {
+        Exchange exchange = new Exchange("exchange", "topic");
+        MessageQueue orders = new MessageQueue("orders");
+        MessageQueue all = new MessageQueue("all");
+        exchange.bind("orders.*", orders);
+        exchange.bind("#", all);
+
+        exchange.routeBatch(List.of(
+                Message.of("orders.new", "o1"),
+                Message.of("audit.login", "a1"),
+                Message.of("orders.paid", "o2")));
+
+        assertThat(text(orders.poll(0, TimeUnit.MILLISECONDS))).isEqualTo("o1");
+        assertThat(text(orders.poll(0, TimeUnit.MILLISECONDS))).isEqualTo("o2");
+        assertThat(orders.isEmpty()).isTrue();
+        assertThat(text(all.poll(0, TimeUnit.MILLISECONDS))).isEqualTo("o1");
+        assertThat(text(all.poll(0, TimeUnit.MILLISECONDS))).isEqualTo("a1");
+        assertThat(text(all.poll(0, TimeUnit.MILLISECONDS))).isEqualTo("o2");
+    }
+
+    @Test
+    void fanout_above_parallel_threshold_reaches_every_queue_before_returning() throws InterruptedException {
+        Exchange exchange = new Exchange("exchange", "fanout", 0, 100);
+        MessageQueue[] queues = new MessageQueue[2000];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new MessageQueue("queue-" + i);
+            exchange.bind("none", queues[i]);
+        }
+
+        exchange.routeMessage(Message.of("none", "m1"));
+
+        for (MessageQueue queue : queues) {
+            assertThat(text(queue.poll(0, TimeUnit.MILLISECONDS))).isEqualTo("m1");
+        }
+    }
+
+    @Test
+    void topic_batch_above_parallel_threshold_keeps_order_per_queue() throws InterruptedException {
+        Exchange exchange = new Exchange("exchange", "topic", 0, 100);
+        MessageQueue[] queues = new MessageQueue[500];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new MessageQueue("queue-" + i);
+            exchange.bind("orders.*", queues[i]);
+        }
+
+        exchange.routeBatch(List.of(Message.of("orders.new", "o1"), Message.of("orders.paid", "o2")));
+
+        for (MessageQueue queue : queues) {
+            assertThat(text(queue.poll(0, TimeUnit.MILLISECONDS))).isEqualTo("o1");
+            assertThat(text(queue.poll(0, TimeUnit.MILLISECONDS))).isEqualTo("o2");
+        }
+    }
+
+    @Test
+    void parallel_fanout_does_not_run_on_the_common_pool() {
+        Exchange exchange = new Exchange("exchange", "fanout", 0, 100);
+        for (int i = 0; i < 1000; i++) {
+            exchange.bind("none", new MessageQueue("queue-" + i) {
+                @Override
+                public boolean enqueue(Message message) {
+                    assertThat(Thread.currentThread().getName()).doesNotContain("commonPool");
+                    return super.enqueue(message);
+                }
+            });
+        }
+
+        assertThat(exchange.routeMessage(Message.of("none", "m1"))).isTrue();
+    }
+
+    private static String text(Message message) {
+        return message != null ? message.getText() : null;
+    }
+}
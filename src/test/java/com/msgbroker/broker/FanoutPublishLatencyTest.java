@@ -0,0 +1,73 @@
+package com.msgbroker.broker;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Publish latency of a fanout exchange by number of bound queues, enqueuing into the targets one after another
+ * (parallel threshold off) and on the fanout pool (threshold on). A plain nanoTime harness, as JMH is not part of
+ * the build. Only runs when asked for:
+ * <pre>
+ * mvn test -Dtest=FanoutPublishLatencyTest -Dbenchmark=true
+ * </pre>
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class FanoutPublishLatencyTest {
+
+    // Enqueues per measured run, spread over the bound queues
+    private static final int ENQUEUES = 2_000_000;
+    private static final int MAX_PUBLISHES = 20_000;
+    private static final int PARALLEL_THRESHOLD = 64;
+
+    @Test
+    void compare_publish_latency_by_binding_count() {
+        System.out.printf("%-9s %-9s %14s %14s %14s%n", "bindings", "parallel", "median us", "p99 us", "msg/s");
+        for (int bindings : new int[]{1, 100, 1000, 5000}) {
+            report(bindings, 0);
+            report(bindings, PARALLEL_THRESHOLD);
+        }
+    }
+
+    private static void report(int bindings, int parallelThreshold) {
+        int publishes = Math.min(MAX_PUBLISHES, Math.max(200, ENQUEUES / bindings));
+        run(bindings, parallelThreshold, publishes); // warm-up
+        long[] latencies = run(bindings, parallelThreshold, publishes);
+        long total = 0;
+        for (long latency : latencies) {
+            total += latency;
+        }
+        Arrays.sort(latencies);
+        System.out.printf("%-9d %-9s %14.1f %14.1f %14.0f%n", bindings, parallelThreshold > 0 ? "on" : "off",
+                latencies[latencies.length / 2] / 1000.0, latencies[latencies.length * 99 / 100] / 1000.0,
+                (double) publishes * 1_000_000_000L / total);
+    }
+
+    /**
+     * Bind fresh queues to a fanout exchange and publish to all of them
+     *
+     * @return the latency of every publish in nanoseconds
+     */
+    private static long[] run(int bindings, int parallelThreshold, int publishes) {
+        Exchange exchange = new Exchange("fanout", "fanout", 0, parallelThreshold);
+        MessageQueue[] queues = new MessageQueue[bindings];
+        for (int i = 0; i < bindings; i++) {
+            queues[i] = new MessageQueue("queue-" + i);
+            exchange.bind("", queues[i]);
+        }
+        Message message = Message.of("key", "payload");
+        long[] latencies = new long[publishes];
+        for (int i = 0; i < publishes; i++) {
+            long begin = System.nanoTime();
+            exchange.routeMessage(message);
+            latencies[i] = System.nanoTime() - begin;
+        }
+        for (MessageQueue queue : queues) {
+            assertThat(queue.size()).isEqualTo(publishes);
+        }
+        return latencies;
+    }
+}
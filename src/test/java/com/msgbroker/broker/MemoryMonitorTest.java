@@ -0,0 +1,126 @@
+package com.msgbroker.broker;
+
+import com.msgbroker.config.BrokerTuningConfig;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+public class MemoryMonitorTest {
+
+    @TempDir
+    Path dataDirectory;
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS)
+    void alarm_pauses_publishers_from_high_watermark_until_low_watermark() throws InterruptedException {
+        AtomicLong used = new AtomicLong();
+        MemoryMonitor monitor = new MemoryMonitor(100, 50, 5, used::get);
+        TimingWheel timer = new TimingWheel(1);
+        monitor.start(timer);
+
+        used.set(150);
+        await().atMost(1, TimeUnit.SECONDS).until(monitor::isAlarmed);
+        Thread publisher = Thread.ofVirtual().start(() -> {
+            try {
+                monitor.awaitClear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        used.set(80);
+        await().atMost(1, TimeUnit.SECONDS).until(() -> monitor.getUsedBytes() == 80);
+        assertThat(monitor.isAlarmed()).isTrue();
+        assertThat(publisher.isAlive()).isTrue();
+
+        used.set(40);
+        publisher.join();
+        assertThat(monitor.isAlarmed()).isFalse();
+        assertThat(monitor.getAlarmCount()).isEqualTo(1);
+        timer.close();
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS)
+    void sampling_continues_after_a_failed_check() {
+        AtomicLong used = new AtomicLong(150);
+        AtomicBoolean fail = new AtomicBoolean();
+        MemoryMonitor monitor = new MemoryMonitor(100, 50, 5, () -> {
+            if (fail.getAndSet(false)) {
+                throw new IllegalStateException("usage unavailable");
+            }
+            return used.get();
+        });
+        TimingWheel timer = new TimingWheel(1);
+        monitor.start(timer);
+        await().atMost(1, TimeUnit.SECONDS).until(monitor::isAlarmed);
+
+        fail.set(true);
+        await().atMost(1, TimeUnit.SECONDS).until(() -> !fail.get());
+        used.set(40);
+        await().atMost(1, TimeUnit.SECONDS).until(() -> !monitor.isAlarmed());
+        timer.close();
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS)
+    void message_bytes_cover_queued_and_unacknowledged_messages() {
+        BrokerState state = BrokerState.open(dataDirectory);
+        MessageQueue first = state.getOrCreateQueue("memory-first");
+        MessageQueue second = state.getOrCreateQueue("memory-second");
+        first.enqueue(Message.of("key", "12345"));
+        second.enqueue(Message.of("key", "123"));
+        second.enqueue(Message.of("key", "1234567"));
+        assertThat(state.getMessageBytes()).isEqualTo(15);
+
+        QueueConsumer consumer = new QueueConsumer(second, (batch, firstTag) -> {
+        }, 16, 0, SubscriptionArguments.parse("ack=manual"));
+        consumer.start();
+        await().atMost(1, TimeUnit.SECONDS).until(() -> second.getUnackedBytes() == 10);
+        assertThat(state.getMessageBytes()).isEqualTo(15);
+
+        consumer.ack(1);
+        assertThat(state.getMessageBytes()).isEqualTo(12);
+        consumer.cancel();
+        state.close();
+    }
+
+    @Test
+    @Timeout(value = 5000, unit = TimeUnit.MILLISECONDS)
+    void paged_and_off_heap_backlogs_do_not_raise_the_alarm() {
+        BrokerTuningConfig defaults = BrokerTuningConfig.defaults(dataDirectory.toString());
+        BrokerState state = BrokerState.open(new BrokerTuningConfig(defaults.routeCacheSize(),
+                defaults.fanoutParallelThreshold(), defaults.queueEngine(), defaults.ringCapacity(),
+                defaults.deliveryBatchMessages(), defaults.deliveryBatchBytes(), defaults.dataDirectory(), "os",
+                defaults.durableFsyncIntervalMs(), defaults.durableSegmentSize(), 100, 0, defaults.timerTickMs(),
+                1000, 500, 4096, defaults.offHeapPooledSlabs(), defaults.transport(), defaults.nioLoops()));
+        MessageQueue paged = state.getOrCreateQueue("memory-paged");
+        MessageQueue offHeap = state.getOrCreateQueue("memory-offheap", QueueArguments.parse("engine=offheap"));
+        String payload = "x".repeat(100);
+        for (int i = 0; i < 100; i++) {
+            paged.enqueue(Message.of("key", payload));
+            offHeap.enqueue(Message.of("key", payload));
+        }
+        assertThat(paged.getBytes()).isEqualTo(10_000);
+        assertThat(offHeap.getBytes()).isEqualTo(10_000);
+        assertThat(state.getMessageBytes()).isLessThanOrEqualTo(100);
+
+        MemoryMonitor monitor = state.getMemoryMonitor();
+        await().during(200, TimeUnit.MILLISECONDS).atMost(1, TimeUnit.SECONDS).until(() -> !monitor.isAlarmed());
+
+        MessageQueue onHeap = state.getOrCreateQueue("memory-ring", QueueArguments.parse("engine=ring"));
+        for (int i = 0; i < 10; i++) {
+            onHeap.enqueue(Message.of("key", payload));
+        }
+        await().atMost(1, TimeUnit.SECONDS).until(monitor::isAlarmed);
+        state.close();
+    }
+}
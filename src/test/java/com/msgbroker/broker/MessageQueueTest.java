@@ -0,0 +1,438 @@
+package com.msgbroker.broker;
+
+import com.msgbroker.broker.enums.FsyncMode;
+import com.msgbroker.broker.store.DurableStorage;
+import com.msgbroker.broker.store.OffHeapQueueStore;
+import com.msgbroker.broker.store.PriorityQueueStore;
+import com.msgbroker.broker.store.RingQueueStore;
+import com.msgbroker.broker.store.SlabAllocator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+
+public class MessageQueueTest {
+
+    @TempDir
+    Path dataDirectory;
+
+    @Test
+    void reject_policy_refuses_messages_above_max_length() throws InterruptedException {
+        MessageQueue queue = new MessageQueue("queue", QueueArguments.parse("max-length=2 overflow=reject"));
+
+        assertThat(queue.enqueue(Message.of("key", "m1"))).isTrue();
+        assertThat(queue.enqueue(Message.of("key", "m2"))).isTrue();
+        assertThat(queue.enqueue(Message.of("key", "m3"))).isFalse();
+
+        assertThat(queue.size()).isEqualTo(2);
+        assertThat(queue.dequeue().getText()).isEqualTo("m1");
+    }
+
+    @Test
+    void drop_head_policy_discards_oldest_messages_to_stay_within_max_bytes() throws InterruptedException {
+        MessageQueue queue = new MessageQueue("queue", QueueArguments.parse("max-bytes=6 overflow=drop-head"));
+
+        queue.enqueueAll(List.of(Message.of("key", "aa"), Message.of("key", "bb"), Message.of("key", "cc")));
+        assertThat(queue.enqueue(Message.of("key", "ddd"))).isTrue();
+
+        assertThat(queue.getBytes()).isEqualTo(5);
+        assertThat(queue.dequeue().getText()).isEqualTo("cc");
+        assertThat(queue.dequeue().getText()).isEqualTo("ddd");
+    }
+
+    @Test
+    @Timeout(value = 2000, unit = TimeUnit.MILLISECONDS)
+    void block_policy_holds_publisher_until_consumer_makes_room() throws InterruptedException {
+        MessageQueue queue = new MessageQueue("queue", QueueArguments.parse("max-length=1 overflow=block"));
+        queue.enqueue(Message.of("key", "m1"));
+
+        Thread publisher = Thread.ofVirtual().start(() -> queue.enqueue(Message.of("key", "m2")));
+        await().atMost(1, TimeUnit.SECONDS).until(() -> publisher.getState() == Thread.State.WAITING);
+        assertThat(queue.size()).isEqualTo(1);
+
+        assertThat(queue.dequeue().getText()).isEqualTo("m1");
+        publisher.join();
+        assertThat(queue.dequeue().getText()).isEqualTo("m2");
+    }
+
+    @Test
+    void invalid_queue_arguments_are_rejected() {
+        assertThatThrownBy(() -> QueueArguments.parse("max-length=-1")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> SubscriptionArguments.parse("prefetch=x")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> QueueArguments.parse("overflow=sometimes")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> QueueArguments.parse("colour=blue")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> QueueArguments.parse("max-priority=10")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> QueueArguments.parse("durable=true max-priority=3"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> PublishArguments.parse("priority=-1")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void priority_queue_delivers_higher_priorities_ahead_of_the_backlog() throws InterruptedException {
+        QueueArguments arguments = QueueArguments.parse("max-priority=5");
+        assertThat(QueueArguments.parse(arguments.format())).isEqualTo(arguments);
+        MessageQueue queue = new MessageQueue("queue", arguments, new PriorityQueueStore(arguments.maxPriority()));
+
+        for (int i = 0; i < 1000; i++) {
+            queue.enqueue(Message.of("key", "bulk" + i));
+        }
+        queue.enqueue(Message.of("key", "control", 0, 5));
+        queue.enqueue(Message.of("key", "capped", 0, Message.MAX_PRIORITY));
+        queue.enqueueAll(List.of(Message.of("key", "low", 0, 1), Message.of("key", "high", 0, 3)));
+
+        assertThat(queue.dequeue().getText()).isEqualTo("control");
+        assertThat(queue.dequeue().getText()).isEqualTo("capped");
+        assertThat(queue.dequeue().getText()).isEqualTo("high");
+        assertThat(queue.dequeue().getText()).isEqualTo("low");
+        assertThat(queue.dequeue().getText()).isEqualTo("bulk0");
+        assertThat(queue.size()).isEqualTo(999);
+    }
+
+    @Test
+    void ring_store_rounds_capacity_up_and_refuses_offers_when_full() {
+        RingQueueStore store = new RingQueueStore(3);
+        assertThat(store.capacity()).isEqualTo(4);
+
+        for (int i = 0; i < 4; i++) {
+            assertThat(store.offer(Message.of("key", "m" + i))).isTrue();
+        }
+        assertThat(store.offer(Message.of("key", "m4"))).isFalse();
+        assertThat(store.poll().getText()).isEqualTo("m0");
+        assertThat(store.offer(Message.of("key", "m4"))).isTrue();
+        assertThat(store.size()).isEqualTo(4);
+    }
+
+    @Test
+    void off_heap_store_keeps_messages_in_pooled_slabs() throws InterruptedException {
+        SlabAllocator allocator = new SlabAllocator(128, 2);
+        MessageQueue queue = new MessageQueue("queue", QueueArguments.parse("engine=offheap"),
+                new OffHeapQueueStore(allocator));
+        for (int i = 0; i < 20; i++) {
+            queue.enqueue(Message.of("key" + i, "message" + i));
+        }
+        Message large = new Message("large", new byte[300], 42, Long.MAX_VALUE, 7);
+        queue.enqueue(large);
+        assertThat(allocator.getSlabsInUse()).isGreaterThan(2);
+        assertThat(allocator.getUsedBytes()).isGreaterThan(300);
+
+        for (int i = 0; i < 20; i++) {
+            Message message = queue.dequeue();
+            assertThat(message.getRoutingKey()).isEqualTo("key" + i);
+            assertThat(message.getText()).isEqualTo("message" + i);
+        }
+        Message copy = queue.dequeue();
+        assertThat(copy.getPayloadLength()).isEqualTo(300);
+        assertThat(copy.getTimestamp()).isEqualTo(42);
+        assertThat(copy.getExpiresAt()).isEqualTo(Long.MAX_VALUE);
+        assertThat(copy.getPriority()).isEqualTo(7);
+
+        assertThat(allocator.getSlabsInUse()).isZero();
+        assertThat(allocator.getUsedBytes()).isZero();
+        assertThat(allocator.getPooledSlabs()).isEqualTo(2);
+        queue.enqueue(Message.of("key", "again"));
+        assertThat(allocator.getPoolHits()).isEqualTo(1);
+        assertThat(queue.dequeue().getText()).isEqualTo("again");
+    }
+
+    @Test
+    @Timeout(value = 5000, unit = TimeUnit.MILLISECONDS)
+    void ring_backed_queue_delivers_every_message_once_to_competing_consumers() throws InterruptedException {
+        MessageQueue queue = new MessageQueue("queue", QueueArguments.DEFAULT, new RingQueueStore(64));
+        int producers = 4;
+        int perProducer = 5_000;
+        Set<String> received = ConcurrentHashMap.newKeySet();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads.add(Thread.ofPlatform().start(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    queue.enqueue(Message.of("key", producer + "-" + i));
+                }
+            }));
+        }
+        for (int c = 0; c < 4; c++) {
+            threads.add(Thread.ofPlatform().start(() -> {
+                try {
+                    Message message;
+                    while ((message = queue.poll(200, TimeUnit.MILLISECONDS)) != null) {
+                        assertThat(received.add(message.getText())).isTrue();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Set<String> expected = new HashSet<>();
+        for (int p = 0; p < producers; p++) {
+            for (int i = 0; i < perProducer; i++) {
+                expected.add(p + "-" + i);
+            }
+        }
+        assertThat(received).isEqualTo(expected);
+        assertThat(queue.isEmpty()).isTrue();
+        assertThat(queue.getBytes()).isZero();
+    }
+
+    @Test
+    @Timeout(value = 10000, unit = TimeUnit.MILLISECONDS)
+    void ring_store_conditional_poll_only_sees_messages_it_can_claim() throws InterruptedException {
+        RingQueueStore store = new RingQueueStore(8);
+        int perProducer = 100_000;
+        AtomicInteger nullsSeen = new AtomicInteger();
+        AtomicInteger taken = new AtomicInteger();
+        Set<String> received = ConcurrentHashMap.newKeySet();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < 2; p++) {
+            int producer = p;
+            threads.add(Thread.ofPlatform().start(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    Message message = Message.of("key", producer + "-" + i);
+                    while (!store.offer(message)) {
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+        for (int c = 0; c < 3; c++) {
+            boolean conditional = c == 0; // polls like the expiry check of the queue
+            threads.add(Thread.ofPlatform().start(() -> {
+                while (taken.get() < 2 * perProducer) {
+                    Message message = conditional
+                            ? store.pollIf(head -> {
+                                if (head == null) {
+                                    nullsSeen.incrementAndGet();
+                                }
+                                return true;
+                            })
+                            : store.poll();
+                    if (message != null) {
+                        assertThat(received.add(message.getText())).isTrue();
+                        taken.incrementAndGet();
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(nullsSeen.get()).isZero();
+        assertThat(received).hasSize(2 * perProducer);
+        assertThat(store.isEmpty()).isTrue();
+    }
+
+    @Test
+    @Timeout(value = 5000, unit = TimeUnit.MILLISECONDS)
+    void ring_backed_queue_drops_expired_messages_while_consumers_compete() throws InterruptedException {
+        try (TimingWheel timer = new TimingWheel(1)) {
+            MessageQueue queue = new MessageQueue("queue", QueueArguments.parse("ttl=20"), new RingQueueStore(64), timer);
+            AtomicBoolean publishing = new AtomicBoolean(true);
+            List<Thread> consumers = new ArrayList<>();
+            for (int c = 0; c < 2; c++) {
+                consumers.add(Thread.ofPlatform().start(() -> {
+                    while (publishing.get()) {
+                        queue.poll();
+                    }
+                }));
+            }
+            for (int i = 0; i < 20_000; i++) {
+                queue.enqueue(Message.of("key", "m" + i));
+            }
+            publishing.set(false);
+            for (Thread consumer : consumers) {
+                consumer.join();
+            }
+            // Left over messages expire without another enqueue to schedule their check
+            await().atMost(2, TimeUnit.SECONDS).until(queue::isEmpty);
+            assertThat(queue.getBytes()).isZero();
+        }
+    }
+
+    @Test
+    @Timeout(value = 2000, unit = TimeUnit.MILLISECONDS)
+    void consumer_is_woken_up_by_enqueue_and_exits_on_cancel() throws InterruptedException {
+        MessageQueue queue = new MessageQueue("queue");
+        List<String> delivered = new CopyOnWriteArrayList<>();
+        QueueConsumer consumer = new QueueConsumer(queue,
+                (batch, firstTag) -> batch.forEach(m -> delivered.add(m.getText())), 16, 0);
+        consumer.start();
+
+        queue.enqueue(Message.of("key", "m1"));
+        queue.enqueueAll(List.of(Message.of("key", "m2"), Message.of("key", "m3")));
+        await().atMost(1, TimeUnit.SECONDS).until(() -> delivered.size() == 3);
+        assertThat(delivered).containsExactly("m1", "m2", "m3");
+
+        consumer.cancel();
+        consumer.awaitTermination(1, TimeUnit.SECONDS);
+        assertThat(queue.getConsumerCount()).isZero();
+        queue.enqueue(Message.of("key", "m4"));
+        assertThat(queue.size()).isEqualTo(1);
+    }
+
+    @Test
+    @Timeout(value = 2000, unit = TimeUnit.MILLISECONDS)
+    void message_taken_while_cancelling_goes_back_to_the_head_without_applying_limits()
+            throws InterruptedException {
+        QueueConsumer[] consumer = new QueueConsumer[1];
+        MessageQueue queue = new MessageQueue("queue", QueueArguments.parse("max-length=2 overflow=drop-head")) {
+            @Override
+            Message pollUnsettled() {
+                Message message = super.pollUnsettled();
+                if (message != null && message.getText().equals("m1")) {
+                    // The queue fills up again and the consumer is stopped before it delivers m1
+                    enqueue(Message.of("key", "m3"));
+                    consumer[0].cancel();
+                }
+                return message;
+            }
+        };
+        queue.enqueue(Message.of("key", "m1"));
+        queue.enqueue(Message.of("key", "m2"));
+        List<String> delivered = new CopyOnWriteArrayList<>();
+        consumer[0] = new QueueConsumer(queue, (batch, firstTag) -> batch.forEach(m -> delivered.add(m.getText())),
+                16, 0);
+        consumer[0].start();
+        consumer[0].awaitTermination(1, TimeUnit.SECONDS);
+
+        assertThat(delivered).isEmpty();
+        assertThat(queue.poll(0, TimeUnit.MILLISECONDS).getText()).isEqualTo("m1");
+        assertThat(queue.poll(0, TimeUnit.MILLISECONDS).getText()).isEqualTo("m2");
+        assertThat(queue.poll(0, TimeUnit.MILLISECONDS).getText()).isEqualTo("m3");
+        assertThat(queue.getRedeliveredCount()).isZero();
+    }
+
+    @Test
+    @Timeout(value = 2000, unit = TimeUnit.MILLISECONDS)
+    void consumer_drains_backlog_in_batches_limited_by_count_and_bytes() throws InterruptedException {
+        MessageQueue queue = new MessageQueue("queue");
+        for (int i = 0; i < 10; i++) {
+            queue.enqueue(Message.of("key", "m" + i));
+        }
+        List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        QueueConsumer byCount = new QueueConsumer(queue, (batch, firstTag) -> batchSizes.add(batch.size()), 4, 0);
+        byCount.start();
+        await().atMost(1, TimeUnit.SECONDS).until(queue::isEmpty);
+        byCount.cancel();
+        byCount.awaitTermination(1, TimeUnit.SECONDS);
+        assertThat(batchSizes).containsExactly(4, 4, 2);
+
+        for (int i = 0; i < 6; i++) {
+            queue.enqueue(Message.of("key", "m" + i));
+        }
+        batchSizes.clear();
+        QueueConsumer byBytes = new QueueConsumer(queue, (batch, firstTag) -> batchSizes.add(batch.size()), 100, 5);
+        byBytes.start();
+        await().atMost(1, TimeUnit.SECONDS).until(() -> batchSizes.size() == 2);
+        byBytes.cancel();
+        assertThat(batchSizes).containsExactly(3, 3);
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS)
+    void competing_consumers_share_queue_within_their_prefetch_window() throws InterruptedException {
+        MessageQueue queue = new MessageQueue("queue");
+        for (int i = 0; i < 20; i++) {
+            queue.enqueue(Message.of("key", "m" + i));
+        }
+        Set<String> received = ConcurrentHashMap.newKeySet();
+        List<Integer> firstBatches = new CopyOnWriteArrayList<>();
+        List<Integer> secondBatches = new CopyOnWriteArrayList<>();
+        QueueConsumer first = slowConsumer(queue, received, firstBatches);
+        QueueConsumer second = slowConsumer(queue, received, secondBatches);
+        first.start();
+        second.start();
+
+        await().atMost(2, TimeUnit.SECONDS).until(() -> received.size() == 20);
+        first.cancel();
+        second.cancel();
+        assertThat(firstBatches).isNotEmpty().allMatch(size -> size <= 2);
+        assertThat(secondBatches).isNotEmpty().allMatch(size -> size <= 2);
+        assertThat(queue.isEmpty()).isTrue();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"deque", "offheap", "ring", "durable"})
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS)
+    void unacknowledged_messages_are_redelivered_from_the_head_after_the_consumer_stops(String engine)
+            throws InterruptedException, IOException {
+        DurableStorage storage = new DurableStorage(dataDirectory, 1 << 20, FsyncMode.OS, 0);
+        MessageQueue queue = switch (engine) {
+            case "offheap" -> new MessageQueue("queue", QueueArguments.parse("engine=offheap"),
+                    new OffHeapQueueStore(new SlabAllocator(128, 2)));
+            case "ring" -> new MessageQueue("queue", QueueArguments.parse("engine=ring"), new RingQueueStore(8));
+            case "durable" -> new MessageQueue("queue", QueueArguments.parse("durable=true"),
+                    storage.open("queue", "durable=true"));
+            default -> new MessageQueue("queue");
+        };
+        for (int i = 0; i < 5; i++) {
+            queue.enqueue(Message.of("key", "m" + i));
+        }
+        List<String> delivered = new CopyOnWriteArrayList<>();
+        List<Long> tags = new CopyOnWriteArrayList<>();
+        QueueConsumer consumer = new QueueConsumer(queue, (batch, firstTag) -> {
+            for (int i = 0; i < batch.size(); i++) {
+                delivered.add(batch.get(i).getText());
+                tags.add(firstTag + i);
+            }
+        }, 16, 0, SubscriptionArguments.parse("prefetch=3 ack=manual"));
+        consumer.start();
+
+        await().atMost(1, TimeUnit.SECONDS).until(() -> delivered.size() == 3);
+        assertThat(tags).containsExactly(1L, 2L, 3L);
+        assertThat(consumer.hasCredit()).isFalse();
+        assertThat(consumer.ack(2)).isEqualTo(2);
+        assertThat(consumer.ack(1)).isZero();
+        assertThatThrownBy(() -> consumer.ack(9)).isInstanceOf(IllegalArgumentException.class);
+
+        await().atMost(1, TimeUnit.SECONDS).until(() -> delivered.size() == 5);
+        // Published while the prefetch window is full, so it stays behind the redelivered messages
+        queue.enqueue(Message.of("key", "m5"));
+        consumer.cancel();
+        consumer.awaitTermination(1, TimeUnit.SECONDS);
+
+        assertThat(queue.getRedeliveredCount()).isEqualTo(3);
+        assertThat(queue.size()).isEqualTo(4);
+        assertThat(queue.dequeue().getText()).isEqualTo("m2");
+        assertThat(queue.dequeue().getText()).isEqualTo("m3");
+        assertThat(queue.dequeue().getText()).isEqualTo("m4");
+        assertThat(queue.dequeue().getText()).isEqualTo("m5");
+        storage.close();
+    }
+
+    private static QueueConsumer slowConsumer(MessageQueue queue, Set<String> received, List<Integer> batches) {
+        return new QueueConsumer(queue, (batch, firstTag) -> {
+            batches.add(batch.size());
+            batch.forEach(m -> assertThat(received.add(m.getText())).isTrue());
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 16, 0, new SubscriptionArguments(2, false));
+    }
+}
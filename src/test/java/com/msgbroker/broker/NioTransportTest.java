@@ -0,0 +1,205 @@
+package com.msgbroker.broker;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+public class NioTransportTest {
+
+    @TempDir
+    Path dataDirectory;
+
+    private BrokerState state;
+    private NioConnectionListener listener;
+    private int port;
+
+    @BeforeEach
+    void start() throws IOException {
+        state = BrokerState.open(dataDirectory);
+        startListener(2);
+    }
+
+    private void startListener(int loops) throws IOException {
+        startListener(loops, null);
+    }
+
+    private void startListener(int loops, Consumer<String> monitoringCallback) throws IOException {
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        listener = new NioConnectionListener(port, state, monitoringCallback, loops);
+        Thread.ofVirtual().start(listener);
+        awaitListening(port);
+    }
+
+    static void awaitListening(int port) {
+        await().atMost(2, TimeUnit.SECONDS).ignoreExceptions().until(() -> {
+            new Socket("localhost", port).close();
+            return true;
+        });
+    }
+
+    @AfterEach
+    void stop() {
+        listener.shutdown();
+        state.close();
+    }
+
+    @Test
+    @Timeout(value = 5000, unit = TimeUnit.MILLISECONDS)
+    void publish_subscribe_and_ack_over_event_loop() throws IOException {
+        try (Client publisher = new Client(port); Client subscriber = new Client(port)) {
+            publisher.send("exchange direct nio", "ok");
+            publisher.send("queue nio-queue", "ok");
+            publisher.send("bind key", "ok");
+            // Several commands in one write are handled one after another
+            publisher.out.print("publish key m1\npublish key m2\r\npublish key m3\n");
+            publisher.out.flush();
+            assertThat(List.of(publisher.in.readLine(), publisher.in.readLine(), publisher.in.readLine()))
+                    .containsOnly("ok");
+
+            subscriber.send("queue nio-queue", "ok");
+            subscriber.send("subscribe ack=manual", "ok");
+            assertThat(List.of(subscriber.in.readLine(), subscriber.in.readLine(), subscriber.in.readLine()))
+                    .containsExactly("1 m1", "2 m2", "3 m3");
+            subscriber.out.println("ack 3");
+            subscriber.out.println("stop");
+            subscriber.send("exit", "ok bye");
+            assertThat(subscriber.in.readLine()).isNull();
+        }
+        assertThat(state.getOrCreateQueue("nio-queue").isEmpty()).isTrue();
+    }
+
+    @Test
+    @Timeout(value = 5000, unit = TimeUnit.MILLISECONDS)
+    void idle_connections_do_not_hold_up_active_ones() throws IOException {
+        List<Client> idle = new ArrayList<>();
+        try {
+            for (int i = 0; i < 200; i++) {
+                idle.add(new Client(port));
+            }
+            try (Client active = new Client(port)) {
+                active.send("exchange fanout nio-fanout", "ok");
+                active.send("publish key m1", "ok");
+            }
+            for (Client client : idle) {
+                client.send("exit", "ok bye");
+            }
+        } finally {
+            for (Client client : idle) {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    @Timeout(value = 5000, unit = TimeUnit.MILLISECONDS)
+    void publish_waiting_for_room_does_not_stall_a_consumer_on_the_same_loop() throws IOException,
+            InterruptedException {
+        listener.shutdown();
+        startListener(1);
+        try (Client publisher = new Client(port); Client subscriber = new Client(port)) {
+            publisher.send("exchange direct nio-block", "ok");
+            publisher.send("queue nio-block max-length=1 overflow=block", "ok");
+            publisher.send("bind key", "ok");
+            subscriber.send("queue nio-block", "ok");
+            subscriber.send("subscribe prefetch=1 ack=manual", "ok");
+
+            publisher.send("publish key m1", "ok");
+            assertThat(subscriber.in.readLine()).isEqualTo("1 m1");
+            publisher.send("publish key m2", "ok");
+            // The queue is full until the subscriber acks m1 and takes m2, so this publish waits
+            publisher.out.println("publish key m3");
+            Thread.sleep(100); // let the broker start waiting for room before the ack arrives
+            subscriber.out.println("ack 1");
+            assertThat(subscriber.in.readLine()).isEqualTo("2 m2");
+            assertThat(publisher.in.readLine()).isEqualTo("ok");
+            subscriber.out.println("ack 2");
+            assertThat(subscriber.in.readLine()).isEqualTo("3 m3");
+
+            // Commands after stop are answered once the consumer is done, without holding up the loop
+            subscriber.out.println("ack 3");
+            subscriber.out.println("stop");
+            subscriber.send("exit", "ok bye");
+            publisher.send("publish key m4", "ok");
+        }
+    }
+
+    @Test
+    @Timeout(value = 5000, unit = TimeUnit.MILLISECONDS)
+    void publish_with_over_long_routing_key_is_rejected() throws IOException {
+        try (Client publisher = new Client(port)) {
+            publisher.send("exchange direct nio-long-key", "ok");
+            publisher.send("publish " + "k".repeat(Message.MAX_ROUTING_KEY_LENGTH + 1) + " m1",
+                    "error routing key too long");
+            publisher.out.println("publish-batch 2");
+            publisher.out.println("key m1");
+            publisher.send("k".repeat(Message.MAX_ROUTING_KEY_LENGTH + 1) + " m2", "error routing key too long");
+            publisher.send("publish key m3", "ok");
+        }
+    }
+
+    @Test
+    @Timeout(value = 5000, unit = TimeUnit.MILLISECONDS)
+    void unexpected_failure_of_one_connection_keeps_the_others_on_its_loop() throws IOException {
+        listener.shutdown();
+        startListener(1, routingKey -> {
+            if (routingKey.equals("fail")) {
+                throw new IllegalStateException("monitoring failed");
+            }
+        });
+        try (Client failing = new Client(port); Client other = new Client(port)) {
+            failing.send("exchange fanout nio-fail", "ok");
+            other.send("exchange fanout nio-fail", "ok");
+            failing.out.println("publish fail m1");
+            assertThat(failing.in.readLine()).isNull();
+
+            other.send("publish key m2", "ok");
+            try (Client late = new Client(port)) {
+                late.send("exchange fanout nio-fail", "ok");
+            }
+        }
+    }
+
+    private static final class Client implements AutoCloseable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        Client(int port) throws IOException {
+            socket = new Socket("localhost", port);
+            socket.setSoTimeout(5000); // a stalled loop fails the test instead of hanging it
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+            assertThat(in.readLine()).isEqualTo("ok SMQP");
+        }
+
+        void send(String command, String expectedReply) throws IOException {
+            out.println(command);
+            assertThat(in.readLine()).isEqualTo(expectedReply);
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.msgbroker.broker;
+
+import com.msgbroker.broker.store.DequeQueueStore;
+import com.msgbroker.broker.store.OffHeapQueueStore;
+import com.msgbroker.broker.store.QueueStore;
+import com.msgbroker.broker.store.SlabAllocator;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * GC pauses while a queue holds a large backlog on the heap and off the heap. Each run builds a backlog, then
+ * publishes and consumes more messages on top of it, and sums up the stop-the-world pauses reported by the JVM. Only
+ * runs when asked for, best with a fixed heap:
+ * <pre>
+ * mvn test -Dtest=OffHeapGcPauseTest -Dbenchmark=true -DargLine=-Xmx2g
+ * </pre>
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class OffHeapGcPauseTest {
+
+    private static final int BACKLOG = 2_000_000;
+    private static final int MESSAGES = 2_000_000;
+    private static final String PAYLOAD = "x".repeat(64);
+
+    @Test
+    void compare_gc_pauses_of_heap_and_off_heap_backlogs() throws ListenerNotFoundException {
+        System.out.printf("%-8s %10s %10s %12s %12s %12s%n", "engine", "heap MB", "direct MB", "pauses",
+                "total ms", "max ms");
+        run("deque", DequeQueueStore::new, null);
+        SlabAllocator allocator = new SlabAllocator(1024 * 1024, 64);
+        run("offheap", () -> new OffHeapQueueStore(allocator), allocator);
+    }
+
+    private static void run(String engine, Supplier<QueueStore> store, SlabAllocator allocator)
+            throws ListenerNotFoundException {
+        System.gc();
+        AtomicLong pauses = new AtomicLong();
+        AtomicLong totalMs = new AtomicLong();
+        AtomicLong maxMs = new AtomicLong();
+        NotificationListener listener = (notification, handback) -> {
+            if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                return;
+            }
+            GarbageCollectionNotificationInfo info =
+                    GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            // Concurrent cycles run next to the application and are no pauses
+            if (info.getGcName().contains("Concurrent") || info.getGcName().contains("Cycles")) {
+                return;
+            }
+            long duration = info.getGcInfo().getDuration();
+            pauses.incrementAndGet();
+            totalMs.addAndGet(duration);
+            maxMs.accumulateAndGet(duration, Math::max);
+        };
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        for (GarbageCollectorMXBean collector : collectors) {
+            ((NotificationEmitter) collector).addNotificationListener(listener, null, null);
+        }
+
+        MessageQueue queue = new MessageQueue("queue", QueueArguments.parse(null), store.get());
+        for (int i = 0; i < BACKLOG; i++) {
+            queue.enqueue(Message.of("key", PAYLOAD));
+        }
+        for (int i = 0; i < MESSAGES; i++) {
+            queue.enqueue(Message.of("key", PAYLOAD));
+            assertThat(queue.poll()).isNotNull();
+        }
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long heapMb = memory.getHeapMemoryUsage().getUsed() / (1024 * 1024);
+        long directMb = allocator != null ? allocator.getReservedBytes() / (1024 * 1024) : 0;
+        assertThat(queue.size()).isEqualTo(BACKLOG);
+
+        for (GarbageCollectorMXBean collector : collectors) {
+            ((NotificationEmitter) collector).removeNotificationListener(listener);
+        }
+        System.out.printf("%-8s %10d %10d %12d %12d %12d%n", engine, heapMb, directMb, pauses.get(), totalMs.get(),
+                maxMs.get());
+    }
+}
@@ -0,0 +1,120 @@
+package com.msgbroker.broker;
+
+import com.msgbroker.broker.enums.Transport;
+import com.msgbroker.connection.Channel;
+import com.msgbroker.connection.types.ExchangeType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PublisherConfirmTest {
+
+    @TempDir
+    Path dataDirectory;
+
+    private BrokerState state;
+    private IConnectionListener listener;
+
+    @AfterEach
+    void stop() {
+        listener.shutdown();
+        state.close();
+    }
+
+    @ParameterizedTest
+    @CsvSource({"THREADS, false", "NIO, false", "THREADS, true", "NIO, true"})
+    @Timeout(value = 5000, unit = TimeUnit.MILLISECONDS)
+    void pipelined_publishes_are_confirmed_cumulatively(Transport transport, boolean binary)
+            throws IOException, InterruptedException {
+        int port = start(transport);
+        MessageQueue queue = state.getOrCreateQueue("confirm-queue", QueueArguments.parse("max-length=1000 overflow=reject"));
+        Channel channel = new Channel("localhost", port, binary);
+        assertThat(channel.connect()).isTrue();
+        assertThat(channel.exchangeDeclare(ExchangeType.DIRECT, "confirm")).isTrue();
+        assertThat(channel.queueBind("confirm-queue", "key")).isTrue();
+        assertThat(channel.confirmSelect(16)).isTrue();
+
+        for (int i = 0; i < 1000; i++) {
+            assertThat(channel.publish("key", "m" + i)).isTrue();
+        }
+        assertThat(channel.waitForConfirms()).isTrue();
+        assertThat(queue.size()).isEqualTo(1000);
+
+        // A rejected publish fails the next wait, the following ones are still confirmed
+        for (int i = 0; i < 3; i++) {
+            assertThat(channel.publish("key", "over")).isTrue();
+        }
+        assertThat(channel.waitForConfirms()).isFalse();
+        queue.poll(0, TimeUnit.MILLISECONDS);
+        assertThat(channel.publish("key", "m1000")).isTrue();
+        assertThat(channel.waitForConfirms()).isTrue();
+
+        // Other commands are still answered after the confirms
+        queue.poll(0, TimeUnit.MILLISECONDS);
+        assertThat(channel.publish("key", "m1001")).isTrue();
+        assertThat(channel.exchangeDeclare(ExchangeType.DIRECT, "confirm")).isTrue();
+        assertThat(channel.waitForConfirms()).isTrue();
+        channel.disconnect();
+    }
+
+    @ParameterizedTest
+    @CsvSource({"THREADS, false", "NIO, true"})
+    @Timeout(value = 5000, unit = TimeUnit.MILLISECONDS)
+    void batch_publish_is_routed_in_order_and_answered_once(Transport transport, boolean binary)
+            throws IOException, InterruptedException {
+        int port = start(transport);
+        MessageQueue first = state.getOrCreateQueue("batch-first", QueueArguments.parse("max-length=3 overflow=reject"));
+        MessageQueue second = state.getOrCreateQueue("batch-second");
+        Channel channel = new Channel("localhost", port, binary);
+        assertThat(channel.connect()).isTrue();
+        assertThat(channel.exchangeDeclare(ExchangeType.DIRECT, "batch")).isTrue();
+        assertThat(channel.queueBind("batch-first", "a")).isTrue();
+        assertThat(channel.queueBind("batch-second", "b")).isTrue();
+
+        assertThat(channel.publishBatch(List.of(Map.entry("a", "a1"), Map.entry("b", "b1 with spaces"),
+                Map.entry("a", "a2"), Map.entry("b", "b2")))).isTrue();
+        assertThat(first.poll(0, TimeUnit.MILLISECONDS).getText()).isEqualTo("a1");
+        assertThat(first.poll(0, TimeUnit.MILLISECONDS).getText()).isEqualTo("a2");
+        assertThat(second.poll(0, TimeUnit.MILLISECONDS).getText()).isEqualTo("b1 with spaces");
+        assertThat(second.poll(0, TimeUnit.MILLISECONDS).getText()).isEqualTo("b2");
+
+        // One rejected message fails the whole answer, the others are still routed
+        assertThat(channel.publishBatch(List.of(Map.entry("a", "a3"), Map.entry("a", "a4"), Map.entry("a", "a5"),
+                Map.entry("a", "a6"), Map.entry("b", "b3")))).isFalse();
+        assertThat(first.size()).isEqualTo(3);
+        assertThat(second.size()).isEqualTo(1);
+
+        // With confirms, a batch takes one sequence number
+        assertThat(channel.confirmSelect(1)).isTrue();
+        assertThat(channel.publishBatch(List.of(Map.entry("b", "b4"), Map.entry("b", "b5")))).isTrue();
+        assertThat(channel.publish("b", "b6")).isTrue();
+        assertThat(channel.waitForConfirms()).isTrue();
+        assertThat(second.size()).isEqualTo(4);
+        channel.disconnect();
+    }
+
+    private int start(Transport transport) throws IOException {
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        state = BrokerState.open(dataDirectory);
+        listener = transport == Transport.NIO
+                ? new NioConnectionListener(port, state, null, 1)
+                : new BrokerConnectionListener(port, state, null);
+        Thread.ofVirtual().start(listener);
+        NioTransportTest.awaitListening(port);
+        return port;
+    }
+}
@@ -0,0 +1,105 @@
+package com.msgbroker.broker;
+
+import com.msgbroker.broker.store.DequeQueueStore;
+import com.msgbroker.broker.store.QueueStore;
+import com.msgbroker.broker.store.RingQueueStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Throughput of a queue backed by the deque and by the ring engine, with a plain nanoTime harness as JMH is not part
+ * of the build. Only runs when asked for:
+ * <pre>
+ * mvn test -Dtest=QueueEngineThroughputTest -Dbenchmark=true
+ * </pre>
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class QueueEngineThroughputTest {
+
+    private static final int MESSAGES = 1_000_000;
+    private static final int RING_CAPACITY = 4096;
+    private static final int ROUNDS = 3;
+
+    @Test
+    void compare_deque_and_ring_engines() throws InterruptedException {
+        int[][] threads = {{1, 1}, {2, 2}, {4, 4}};
+        System.out.printf("%-8s %-10s %14s %14s%n", "engine", "prod/cons", "best msg/s", "median msg/s");
+        for (int[] counts : threads) {
+            report("deque", counts[0], counts[1], DequeQueueStore::new);
+            report("ring", counts[0], counts[1], () -> new RingQueueStore(RING_CAPACITY));
+        }
+    }
+
+    private static void report(String engine, int producers, int consumers, Supplier<QueueStore> store)
+            throws InterruptedException {
+        run(producers, consumers, store); // warm-up
+        double[] rates = new double[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            rates[i] = run(producers, consumers, store);
+        }
+        Arrays.sort(rates);
+        System.out.printf("%-8s %-10s %14.0f %14.0f%n", engine, producers + "/" + consumers, rates[ROUNDS - 1],
+                rates[ROUNDS / 2]);
+    }
+
+    /**
+     * Push {@link #MESSAGES} messages through a bounded queue with blocking publishers and polling consumers
+     *
+     * @return messages per second
+     */
+    private static double run(int producers, int consumers, Supplier<QueueStore> store) throws InterruptedException {
+        MessageQueue queue = new MessageQueue("queue",
+                QueueArguments.parse("max-length=" + RING_CAPACITY + " overflow=block"), store.get());
+        Message message = Message.of("key", "payload");
+        int perProducer = MESSAGES / producers;
+        int perConsumer = perProducer * producers / consumers;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            threads.add(Thread.ofPlatform().start(() -> {
+                await(start);
+                for (int i = 0; i < perProducer; i++) {
+                    queue.enqueue(message);
+                }
+            }));
+        }
+        for (int c = 0; c < consumers; c++) {
+            threads.add(Thread.ofPlatform().start(() -> {
+                await(start);
+                int taken = 0;
+                while (taken < perConsumer) {
+                    if (queue.poll() != null) {
+                        taken++;
+                    } else {
+                        Thread.onSpinWait();
+                    }
+                }
+            }));
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        assertThat(queue.isEmpty()).isTrue();
+        return (double) perProducer * producers * 1_000_000_000L / elapsed;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
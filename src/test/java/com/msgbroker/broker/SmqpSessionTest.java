@@ -0,0 +1,217 @@
+package com.msgbroker.broker;
+
+import com.msgbroker.connection.SmqpFrame;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+public class SmqpSessionTest {
+
+    @TempDir
+    Path dataDirectory;
+
+    private final List<String> replies = new ArrayList<>();
+    private final List<Message> deliveries = new CopyOnWriteArrayList<>();
+    private BrokerState state;
+    private SmqpSession session;
+
+    @BeforeEach
+    void start() {
+        state = BrokerState.open(dataDirectory);
+        session = new SmqpSession(state, null, new SmqpSession.Output() {
+            @Override
+            public void reply(String line) {
+                replies.add(line);
+            }
+
+            @Override
+            public void deliver(List<Message> batch, long firstTag) {
+                deliveries.addAll(batch);
+            }
+
+            @Override
+            public void switchToBinary() {
+            }
+        });
+    }
+
+    @AfterEach
+    void stop() {
+        session.close();
+        state.close();
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS)
+    void routing_key_may_contain_equals_sign() throws InterruptedException {
+        MessageQueue queue = state.getOrCreateQueue("session-queue");
+        send("exchange topic session");
+        send("queue session-queue");
+        send("bind #");
+        replies.clear();
+
+        send("publish user=42 hello");
+        send("publish ttl=5000 a=b msg");
+        send("publish priority=1 ttl=5000 c=d=e more text");
+        assertThat(replies).containsExactly("ok", "ok", "ok");
+        assertThat(queue.poll(0, TimeUnit.MILLISECONDS).getRoutingKey()).isEqualTo("user=42");
+        Message second = queue.poll(0, TimeUnit.MILLISECONDS);
+        assertThat(second.getRoutingKey()).isEqualTo("a=b");
+        assertThat(second.getText()).isEqualTo("msg");
+        Message third = queue.poll(0, TimeUnit.MILLISECONDS);
+        assertThat(third.getRoutingKey()).isEqualTo("c=d=e");
+        assertThat(third.getText()).isEqualTo("more text");
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS)
+    void time_to_live_beyond_the_end_of_time_never_expires() throws InterruptedException {
+        send("exchange direct session");
+        send("queue session-forever ttl=" + Long.MAX_VALUE);
+        send("bind key");
+        replies.clear();
+
+        send("publish ttl=" + Long.MAX_VALUE + " key forever");
+        assertThat(replies).containsExactly("ok");
+        MessageQueue queue = state.getQueue("session-forever");
+        Message message = queue.poll(0, TimeUnit.MILLISECONDS);
+        assertThat(message).isNotNull();
+        assertThat(message.getExpiresAt()).isEqualTo(Long.MAX_VALUE);
+        assertThat(queue.getArguments().expiresAt(message)).isEqualTo(Long.MAX_VALUE);
+        assertThat(queue.getExpiredCount()).isZero();
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS)
+    void commands_are_tokenized_on_any_whitespace() throws InterruptedException {
+        MessageQueue queue = state.getOrCreateQueue("session-queue");
+        assertThat(send("   exchange\tdirect   session\r")).isTrue();
+        assertThat(send("queue  session-queue\r")).isTrue();
+        assertThat(send("\tbind\t\tkey")).isTrue();
+        assertThat(send("")).isTrue();
+        assertThat(send(" \t\r")).isTrue();
+        assertThat(replies).containsExactly("ok", "ok", "ok");
+        replies.clear();
+
+        send("publish\tkey\tfirst\r");
+        send("  publish   key    second  message  \r");
+        send("publish key");
+        send("publish key   \r");
+        send("publish");
+        assertThat(replies).containsExactly("ok", "ok",
+                "error usage: publish [<argument>=<value> ...] <routing-key> <message>",
+                "error usage: publish [<argument>=<value> ...] <routing-key> <message>",
+                "error usage: publish [<argument>=<value> ...] <routing-key> <message>");
+        assertThat(queue.poll(0, TimeUnit.MILLISECONDS).getText()).isEqualTo("first");
+        assertThat(queue.poll(0, TimeUnit.MILLISECONDS).getText()).isEqualTo("second  message");
+        assertThat(queue.size()).isZero();
+
+        replies.clear();
+        assertThat(send("exit\r")).isFalse();
+        assertThat(replies).containsExactly("ok bye");
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS)
+    void only_ack_and_stop_are_read_during_subscription() {
+        MessageQueue queue = state.getOrCreateQueue("session-queue");
+        queue.enqueue(Message.of("key", "m1"));
+        queue.enqueue(Message.of("key", "m2"));
+        send("queue session-queue");
+        send("subscribe\tack=manual\r");
+        assertThat(session.isSubscribed()).isTrue();
+        await().atMost(1, TimeUnit.SECONDS).until(() -> deliveries.size() == 2);
+        replies.clear();
+
+        send("exchange direct ignored");
+        send("ack\tx\r");
+        send("  ack  1  \r");
+        assertThat(replies).containsExactly("error unknown delivery tag x");
+        assertThat(queue.getUnackedBytes()).isEqualTo(2);
+
+        send("\tstop \r");
+        assertThat(session.isSubscribed()).isFalse();
+        assertThat(state.getExchange("ignored")).isNull();
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS)
+    void stats_report_route_cache_hits_and_misses() {
+        send("exchange direct session");
+        send("queue session-queue");
+        send("bind key");
+        replies.clear();
+        send("stats");
+        assertThat(replies).singleElement().asString().startsWith("ok route-cache-hits=0 route-cache-misses=0");
+        replies.clear();
+
+        send("publish key first");
+        send("publish key second");
+        send("publish key third");
+        send("publish other lost");
+        replies.clear();
+        send("stats");
+        assertThat(replies).singleElement().asString().startsWith("ok route-cache-hits=2 route-cache-misses=2");
+        replies.clear();
+
+        send("binary");
+        replies.clear();
+        byte[] frame = SmqpFrame.encode(SmqpFrame.STATS);
+        session.handleFrame(ByteBuffer.wrap(frame, Integer.BYTES, frame.length - Integer.BYTES).slice());
+        assertThat(replies).singleElement().asString().startsWith("ok route-cache-hits=2 route-cache-misses=2");
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS)
+    void stats_report_delayed_messages_that_failed_to_route() {
+        send("exchange direct session");
+        send("publish delay=10 unbound lost");
+        await().atMost(2, TimeUnit.SECONDS).until(() -> state.getDelayedDelivery().getPendingCount() == 0);
+        replies.clear();
+        send("stats");
+        assertThat(replies).singleElement().asString().contains(" delayed-pending=0 delayed-failed=1 ");
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS)
+    void stats_report_off_heap_slabs() throws InterruptedException {
+        send("exchange direct session");
+        send("queue session-offheap engine=offheap");
+        send("bind key");
+        send("publish key first");
+        send("publish key second");
+        replies.clear();
+        send("stats");
+        assertThat(replies).singleElement().asString()
+                .contains(" slabs-in-use=1 ", " pooled-slabs=0 ",
+                        " slab-used-bytes=" + state.getSlabAllocator().getUsedBytes() + " ",
+                        " slab-allocations=1 ");
+        assertThat(state.getSlabAllocator().getUsedBytes()).isGreaterThan(0);
+
+        MessageQueue queue = state.getQueue("session-offheap");
+        queue.poll(0, TimeUnit.MILLISECONDS);
+        queue.poll(0, TimeUnit.MILLISECONDS);
+        replies.clear();
+        send("stats");
+        assertThat(replies).singleElement().asString()
+                .contains(" slabs-in-use=0 ", " pooled-slabs=1 ", " slab-used-bytes=0 ");
+    }
+
+    private boolean send(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        return session.handle(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,175 @@
+package com.msgbroker.broker;
+
+import com.msgbroker.broker.store.DequeQueueStore;
+import com.msgbroker.broker.store.PriorityQueueStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+
+public class TimingWheelTest {
+
+    private final TimingWheel timer = new TimingWheel(1);
+
+    @AfterEach
+    void closeTimer() {
+        timer.close();
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS)
+    void tasks_fire_in_deadline_order_and_never_early() {
+        long start = System.currentTimeMillis();
+        List<String> fired = new CopyOnWriteArrayList<>();
+        List<Long> lateness = new CopyOnWriteArrayList<>();
+        // 600 ticks ahead crosses the lowest level and has to be moved down once
+        long[] delays = {600, 100, 300, 0, 200};
+        for (long delay : delays) {
+            long deadline = start + delay;
+            timer.schedule(deadline, () -> {
+                lateness.add(System.currentTimeMillis() - deadline);
+                fired.add("t" + delay);
+            });
+        }
+
+        await().atMost(2, TimeUnit.SECONDS).until(() -> fired.size() == delays.length);
+        assertThat(fired).containsExactly("t0", "t100", "t200", "t300", "t600");
+        assertThat(lateness).allMatch(late -> late >= 0);
+        assertThat(timer.getPendingCount()).isZero();
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS)
+    void queue_ttl_drops_expired_messages_without_consumers() throws InterruptedException {
+        MessageQueue queue = new MessageQueue("queue", QueueArguments.parse("ttl=50"), new DequeQueueStore(), timer);
+        queue.enqueue(Message.of("key", "m1"));
+        queue.enqueue(Message.of("key", "m2"));
+
+        await().atMost(1, TimeUnit.SECONDS).until(queue::isEmpty);
+        assertThat(queue.getExpiredCount()).isEqualTo(2);
+        assertThat(queue.getBytes()).isZero();
+    }
+
+    @Test
+    @Timeout(value = 5000, unit = TimeUnit.MILLISECONDS)
+    void expired_messages_behind_a_head_that_expires_later_are_dropped_without_consumers() {
+        MessageQueue queue = new MessageQueue("queue", QueueArguments.parse(null), new DequeQueueStore(), timer);
+        queue.enqueue(Message.of("key", "forever"));
+        queue.enqueue(Message.of("key", "long", 60_000));
+        queue.enqueue(Message.of("key", "short", 50));
+        queue.enqueue(Message.of("key", "later", 200));
+
+        await().atMost(1, TimeUnit.SECONDS).until(() -> queue.size() == 3);
+        assertThat(queue.getExpiredCount()).isEqualTo(1);
+        assertThat(queue.getBytes()).isEqualTo("forever".length() + "long".length() + "later".length());
+
+        // Checks between two scans only look at the head, the next scan drops the message behind it
+        await().atMost(MessageQueue.EXPIRY_SCAN_INTERVAL_MS + 1000, TimeUnit.MILLISECONDS)
+                .until(() -> queue.size() == 2);
+        assertThat(queue.getExpiredCount()).isEqualTo(2);
+        assertThat(queue.getBytes()).isEqualTo("forever".length() + "long".length());
+        assertThat(queue.poll().getText()).isEqualTo("forever");
+        assertThat(queue.poll().getText()).isEqualTo("long");
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS)
+    void queue_ttl_drops_expired_messages_behind_higher_priorities() {
+        QueueArguments arguments = QueueArguments.parse("ttl=50 max-priority=5");
+        MessageQueue queue = new MessageQueue("queue", arguments, new PriorityQueueStore(5), timer);
+        queue.enqueue(new Message("key", "low".getBytes(), System.currentTimeMillis(), 0, 1));
+        queue.enqueue(new Message("key", "high".getBytes(), System.currentTimeMillis() + 1000, 0, 5));
+
+        await().atMost(1, TimeUnit.SECONDS).until(() -> queue.size() == 1);
+        assertThat(queue.getExpiredCount()).isEqualTo(1);
+        assertThat(queue.poll().getText()).isEqualTo("high");
+    }
+
+    @Test
+    void message_ttl_is_skipped_by_consumers_once_expired() throws InterruptedException {
+        MessageQueue queue = new MessageQueue("queue");
+        queue.enqueue(new Message("key", "old".getBytes(), System.currentTimeMillis() - 100, System.currentTimeMillis() - 1));
+        queue.enqueue(Message.of("key", "fresh", 60_000));
+
+        assertThat(queue.poll(0, TimeUnit.MILLISECONDS).getText()).isEqualTo("fresh");
+        assertThat(queue.getExpiredCount()).isEqualTo(1);
+    }
+
+    @Test
+    @Timeout(value = 5000, unit = TimeUnit.MILLISECONDS)
+    void delayed_messages_are_routed_through_exchange_when_due() {
+        DelayedDelivery delayedDelivery = new DelayedDelivery(timer);
+        Exchange exchange = new Exchange("exchange", "direct");
+        MessageQueue queue = new MessageQueue("queue");
+        exchange.bind("key", queue);
+
+        long deliverAt = System.currentTimeMillis() + 100;
+        for (int i = 0; i < 100_000; i++) {
+            delayedDelivery.schedule(exchange, new Message("key", new byte[]{'m'}, deliverAt), deliverAt);
+        }
+        assertThat(queue.isEmpty()).isTrue();
+
+        await().atMost(4, TimeUnit.SECONDS).until(() -> queue.size() == 100_000);
+        assertThat(System.currentTimeMillis()).isGreaterThanOrEqualTo(deliverAt);
+        assertThat(delayedDelivery.getPendingCount()).isZero();
+        delayedDelivery.close();
+    }
+
+    @Test
+    void delay_and_absolute_delivery_time_cannot_be_combined() {
+        assertThat(PublishArguments.parse("delay=100").deliveryTime(1000)).isEqualTo(1100);
+        assertThat(PublishArguments.parse("at=5000").deliveryTime(1000)).isEqualTo(5000);
+        assertThat(PublishArguments.parse("at=500").deliveryTime(1000)).isEqualTo(1000);
+        assertThatThrownBy(() -> PublishArguments.parse("delay=100 at=5000")).isInstanceOf(IllegalArgumentException.class);
+        assertThat(PublishArguments.parse("delay=" + Long.MAX_VALUE).deliveryTime(1000)).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    @Timeout(value = 3000, unit = TimeUnit.MILLISECONDS)
+    void delayed_messages_that_cannot_be_routed_are_counted() {
+        DelayedDelivery delayedDelivery = new DelayedDelivery(timer);
+        Exchange exchange = new Exchange("exchange", "direct");
+        exchange.bind("key", new MessageQueue("queue", QueueArguments.parse("max-length=1 overflow=reject")));
+
+        long deliverAt = System.currentTimeMillis() + 10;
+        delayedDelivery.schedule(exchange, new Message("unbound", new byte[]{'m'}, deliverAt), deliverAt);
+        delayedDelivery.schedule(exchange, new Message("key", new byte[]{'m'}, deliverAt), deliverAt);
+        delayedDelivery.schedule(exchange, new Message("key", new byte[]{'m'}, deliverAt), deliverAt);
+
+        await().atMost(2, TimeUnit.SECONDS).until(() -> delayedDelivery.getPendingCount() == 0);
+        assertThat(delayedDelivery.getFailedCount()).isEqualTo(2);
+        delayedDelivery.close();
+    }
+
+    @Test
+    @Timeout(value = 5000, unit = TimeUnit.MILLISECONDS)
+    void failed_delayed_messages_are_not_logged_one_by_one() {
+        DelayedDelivery delayedDelivery = new DelayedDelivery(timer);
+        Exchange exchange = new Exchange("exchange", "direct");
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        PrintStream stderr = System.err;
+        System.setErr(new PrintStream(log, true, StandardCharsets.UTF_8));
+        try {
+            long deliverAt = System.currentTimeMillis() + 10;
+            for (int i = 0; i < 1000; i++) {
+                delayedDelivery.schedule(exchange, new Message("unbound", new byte[]{'m'}, deliverAt), deliverAt);
+            }
+            await().atMost(3, TimeUnit.SECONDS).until(() -> delayedDelivery.getPendingCount() == 0);
+        } finally {
+            System.setErr(stderr);
+        }
+        assertThat(delayedDelivery.getFailedCount()).isEqualTo(1000);
+        assertThat(log.toString(StandardCharsets.UTF_8).lines()).hasSize(1);
+        delayedDelivery.close();
+    }
+}
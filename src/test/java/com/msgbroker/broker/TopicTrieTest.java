@@ -0,0 +1,63 @@
+package com.msgbroker.broker;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TopicTrieTest {
+
+    private final MessageQueue queueA = new MessageQueue("queue-a");
+    private final MessageQueue queueB = new MessageQueue("queue-b");
+
+    @Test
+    void literal_key_matches_only_exact_routing_key() {
+        TopicTrie trie = new TopicTrie();
+        trie.insert("stock.nyse.ibm", queueA);
+
+        assertThat(trie.match("stock.nyse.ibm")).containsExactly(queueA);
+        assertThat(trie.match("stock.nyse")).isEmpty();
+        assertThat(trie.match("stock.nyse.ibm.x")).isEmpty();
+    }
+
+    @Test
+    void star_matches_exactly_one_word() {
+        TopicTrie trie = new TopicTrie();
+        trie.insert("*.nyse.*", queueA);
+
+        assertThat(trie.match("stock.nyse.ibm")).containsExactly(queueA);
+        assertThat(trie.match("nyse.ibm")).isEmpty();
+        assertThat(trie.match("a.stock.nyse.ibm")).isEmpty();
+    }
+
+    @Test
+    void hash_matches_zero_or_more_words() {
+        TopicTrie trie = new TopicTrie();
+        trie.insert("stock.#", queueA);
+        trie.insert("#.ibm.#", queueB);
+
+        assertThat(trie.match("stock")).containsExactly(queueA);
+        assertThat(trie.match("stock.nyse.ibm")).containsExactlyInAnyOrder(queueA, queueB);
+        assertThat(trie.match("ibm")).containsExactly(queueB);
+        assertThat(trie.match("bond.nyse")).isEmpty();
+    }
+
+    @Test
+    void binding_reachable_over_several_paths_matches_once() {
+        TopicTrie trie = new TopicTrie();
+        trie.insert("#.#", queueA);
+        trie.insert("a.#.b.#", queueB);
+
+        assertThat(trie.match("a.b.b.b")).containsExactlyInAnyOrder(queueA, queueB);
+    }
+
+    @Test
+    void queue_bound_with_several_matching_keys_receives_one_entry_per_key() {
+        TopicTrie trie = new TopicTrie();
+        trie.insert("a.*", queueA);
+        trie.insert("a.#", queueA);
+        trie.insert("b.*", queueA);
+
+        MessageQueue[] matched = trie.match("a.b");
+        assertThat(matched).containsExactly(queueA, queueA);
+    }
+}